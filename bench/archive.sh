@@ -0,0 +1,12 @@
+#!/bin/sh
+# Compiles the export classes and reads a lap archive exported from the phone on the desktop JVM.
+#
+# Usage: bench/archive.sh info|csv|json archive.m4wl
+#        bench/archive.sh sample archive.m4wl [sessions]
+
+cd "$(dirname "$0")/.." || exit 1
+
+rm -rf bench/build
+mkdir -p bench/build
+javac -nowarn -sourcepath src:bench/src -d bench/build bench/src/com/pimentoso/android/laptimer/bench/*.java || exit 1
+java $JAVA_OPTS -cp bench/build com.pimentoso.android.laptimer.bench.ArchiveTool "$@"
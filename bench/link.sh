@@ -0,0 +1,12 @@
+#!/bin/sh
+# Compiles the gate link classes and runs a master and its sector gates over loopback on the desktop JVM,
+# with skewed clocks, to check the merged sector times. Options in JAVA_OPTS, see LinkLoopback.java.
+#
+# Usage: bench/link.sh
+
+cd "$(dirname "$0")/.." || exit 1
+
+rm -rf bench/build
+mkdir -p bench/build
+javac -nowarn -sourcepath src:bench/src -d bench/build bench/src/com/pimentoso/android/laptimer/bench/*.java || exit 1
+java $JAVA_OPTS -cp bench/build com.pimentoso.android.laptimer.bench.LinkLoopback "$@"
@@ -0,0 +1,12 @@
+#!/bin/sh
+# Compiles the detection classes and replays a frame recording through them on the desktop JVM.
+# Detection settings can be overridden with -Dreplay.* options in JAVA_OPTS, see Replay.java.
+#
+# Usage: bench/replay.sh recording.m4wr
+
+cd "$(dirname "$0")/.." || exit 1
+
+rm -rf bench/build
+mkdir -p bench/build
+javac -nowarn -sourcepath src:bench/src -d bench/build bench/src/com/pimentoso/android/laptimer/bench/*.java || exit 1
+java $JAVA_OPTS -cp bench/build com.pimentoso.android.laptimer.bench.Replay "$@"
@@ -0,0 +1,12 @@
+#!/bin/sh
+# Compiles and runs the benchmarks on the desktop JVM.
+# Only the Android-free classes of the app are compiled, straight from the app sources.
+#
+# Usage: bench/run.sh [name filter]
+
+cd "$(dirname "$0")/.." || exit 1
+
+rm -rf bench/build
+mkdir -p bench/build
+javac -nowarn -sourcepath src:bench/src -d bench/build bench/src/com/pimentoso/android/laptimer/bench/*.java || exit 1
+java $JAVA_OPTS -cp bench/build com.pimentoso.android.laptimer.bench.BenchmarkRunner "$@"
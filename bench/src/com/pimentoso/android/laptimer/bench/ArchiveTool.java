@@ -0,0 +1,130 @@
+package com.pimentoso.android.laptimer.bench;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import com.pimentoso.android.laptimer.ExportWriter;
+import com.pimentoso.android.laptimer.LapArchive;
+import com.pimentoso.android.laptimer.TimeFormat;
+
+/**
+ * Reads lap archives exported from the phone (.m4wl files), on the desktop JVM.
+ *
+ * <pre>
+ * ArchiveTool info archive.m4wl         sessions, laps and size per lap
+ * ArchiveTool csv archive.m4wl          converts to CSV on standard output
+ * ArchiveTool json archive.m4wl         converts to JSON on standard output
+ * ArchiveTool sample archive.m4wl N     writes a season of N random sessions, for testing
+ * </pre>
+ *
+ * @author Pimentoso
+ */
+public class ArchiveTool {
+
+	public static void main(String[] args) throws IOException {
+
+		if (args.length < 2) {
+			System.err.println("Usage: ArchiveTool info|csv|json|sample archive.m4wl [sessions]");
+			System.exit(1);
+		}
+
+		String command = args[0];
+		File file = new File(args[1]);
+		if (command.equals("info")) {
+			info(file);
+		}
+		else if (command.equals("csv") || command.equals("json")) {
+			ExportWriter writer = ExportWriter.create(command.equals("csv") ? ExportWriter.CSV : ExportWriter.JSON, System.out,
+					TimeFormat.MILLIS, true, true);
+			read(file, writer);
+		}
+		else if (command.equals("sample")) {
+			sample(file, args.length > 2 ? Integer.parseInt(args[2]) : 100);
+		}
+		else {
+			System.err.println("Unknown command: " + command);
+			System.exit(1);
+		}
+	}
+
+	private static void read(File file, ExportWriter writer) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			LapArchive.read(in, writer);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	private static void info(File file) throws IOException {
+
+		final int[] counts = new int[3]; // sessions, lanes, laps
+		long start = System.nanoTime();
+		read(file, new ExportWriter() {
+
+			@Override
+			public void startSession(long startedMillis) {
+				counts[0]++;
+			}
+
+			@Override
+			public void startLane(int lane, String car) {
+				counts[1]++;
+			}
+
+			@Override
+			public void lap(int number, long lapMillis, long timestampMillis, long rawMillis, int flags) {
+				counts[2]++;
+			}
+
+			@Override
+			public void finish() {
+			}
+		});
+		long nanos = System.nanoTime() - start;
+
+		System.out.println(counts[0] + " sessions, " + counts[1] + " lanes, " + counts[2] + " laps");
+		System.out.println(String.format("%d bytes, %.2f bytes per lap, read in %.1f ms", file.length(),
+				counts[2] > 0 ? (double) file.length() / counts[2] : 0.0, nanos / 1e6));
+	}
+
+	/**
+	 * Sessions of 1 to 3 lanes with 20 to 200 laps each, about a day apart, as a season of racing.
+	 */
+	private static void sample(File file, int sessions) throws IOException {
+
+		Random random = new Random(42);
+		OutputStream out = new FileOutputStream(file);
+		try {
+			ExportWriter writer = new LapArchive.Writer(out);
+			long started = 1430000000000L;
+			for (int s = 0; s < sessions; s++) {
+				started += 20 * 3600000L + random.nextInt(8 * 3600000);
+				writer.startSession(started);
+				int lanes = 1 + random.nextInt(3);
+				for (int lane = 0; lane < lanes; lane++) {
+					writer.startLane(lane, "Car " + (1 + random.nextInt(10)));
+					long timestamp = started + 1000 + random.nextInt(5000);
+					long base = 3000 + random.nextInt(2000);
+					int laps = 20 + random.nextInt(181);
+					for (int i = 1; i <= laps; i++) {
+						long lap = base + random.nextInt(400) - 200;
+						timestamp += lap + random.nextInt(3) - 1;
+						writer.lap(i, lap, timestamp, lap, 0);
+					}
+				}
+			}
+			writer.finish();
+		}
+		finally {
+			out.close();
+		}
+	}
+}
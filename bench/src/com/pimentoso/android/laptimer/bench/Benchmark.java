@@ -0,0 +1,29 @@
+package com.pimentoso.android.laptimer.bench;
+
+/**
+ * A benchmarked operation. {@link BenchmarkRunner} calls {@link #setup()} once, then {@link #run(int)}
+ * repeatedly while timing it.
+ *
+ * @author Pimentoso
+ */
+public abstract class Benchmark {
+
+	private final String name;
+
+	protected Benchmark(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setup() throws Exception {
+	}
+
+	/**
+	 * Runs the operation the given number of times. The result must depend on the work done, so the JIT
+	 * can't remove it: the runner consumes it.
+	 */
+	public abstract long run(int ops);
+}
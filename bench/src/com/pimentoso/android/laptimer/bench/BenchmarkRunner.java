@@ -0,0 +1,106 @@
+package com.pimentoso.android.laptimer.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.pimentoso.android.laptimer.ExportWriter;
+import com.pimentoso.android.laptimer.GateLayout;
+import com.pimentoso.android.laptimer.GateRegion;
+import com.pimentoso.android.laptimer.LaneSet;
+import com.pimentoso.android.laptimer.TimeFormat;
+
+/**
+ * Runs the benchmarks and prints the time per operation.
+ *
+ * Usage: BenchmarkRunner [name filter]
+ *
+ * Recorded frames can be benchmarked too, by passing a file of raw NV21 frames with
+ * -Dbench.frames=path -Dbench.size=WIDTHxHEIGHT
+ *
+ * @author Pimentoso
+ */
+public class BenchmarkRunner {
+
+	private static final long WARMUP_NANOS = 1000000000L;
+	private static final long ROUND_NANOS = 500000000L;
+	private static final int ROUNDS = 5;
+
+	// results end up here, so the JIT can't eliminate the benchmarked code
+	public static volatile long sink;
+
+	public static void main(String[] args) throws Exception {
+
+		String filter = args.length > 0 ? args[0] : "";
+
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		int[][] sizes = { { 176, 144 }, { 320, 240 }, { 640, 480 }, { 1280, 720 } };
+		int[] bands = { 1, GateRegion.DEFAULT_BAND, 16 };
+		GateLayout sectors = GateLayout.parse("Finish@50; Sector 1@20; Sector 2@80");
+		for (int[] size : sizes) {
+			Frames frames = Frames.synthetic(size[0], size[1]);
+			benchmarks.add(new DetectorBenchmark(frames));
+			for (int band : bands) {
+				GateRegion region = GateRegion.line(0.5f, band, 0.1f, 0.9f, GateRegion.DEFAULT_SEGMENTS);
+				benchmarks.add(new DetectorBenchmark(frames, region, "line band " + band));
+			}
+			benchmarks.add(new LaneSetBenchmark(frames, LaneSet.MAX_LANES, false));
+			benchmarks.add(new LaneSetBenchmark(frames, LaneSet.MAX_LANES, true));
+			benchmarks.add(new LaneSetBenchmark(frames, LaneSet.MAX_LANES, sectors, false));
+			benchmarks.add(new CarClassifierBenchmark(frames));
+		}
+		String recorded = System.getProperty("bench.frames");
+		if (recorded != null) {
+			benchmarks.add(new DetectorBenchmark(Frames.recorded(recorded, System.getProperty("bench.size"))));
+		}
+		String recording = System.getProperty("bench.recording");
+		if (recording != null) {
+			benchmarks.add(new DetectorBenchmark(Frames.recording(recording)));
+		}
+		benchmarks.add(new FrameClockBenchmark());
+		benchmarks.add(new ConvertTimeBenchmark(TimeFormat.TENTHS, true));
+		benchmarks.add(new ConvertTimeBenchmark(TimeFormat.MILLIS, true));
+		benchmarks.add(new ConvertTimeBenchmark(TimeFormat.MILLIS, false));
+		for (int format = -1; format <= ExportWriter.BINARY; format++) {
+			benchmarks.add(new ExportBenchmark(format, 100));
+			benchmarks.add(new ExportBenchmark(format, 10000));
+		}
+		benchmarks.add(new StatisticsBenchmark(100));
+		benchmarks.add(new StatisticsBenchmark(100000));
+
+		System.out.println(String.format("%-56s %14s %14s", "benchmark", "ns/op", "min ns/op"));
+		for (Benchmark benchmark : benchmarks) {
+			if (benchmark.getName().contains(filter)) {
+				run(benchmark);
+			}
+		}
+	}
+
+	private static void run(Benchmark benchmark) throws Exception {
+
+		benchmark.setup();
+
+		// warm up, and find how many ops fit in a round
+		int ops = 1;
+		long start = System.nanoTime();
+		while (System.nanoTime() - start < WARMUP_NANOS) {
+			long t = System.nanoTime();
+			sink += benchmark.run(ops);
+			if (System.nanoTime() - t < ROUND_NANOS / 10) {
+				ops *= 2;
+			}
+		}
+		ops *= 10;
+
+		double total = 0;
+		double min = Double.MAX_VALUE;
+		for (int r = 0; r < ROUNDS; r++) {
+			long t = System.nanoTime();
+			sink += benchmark.run(ops);
+			double perOp = (double) (System.nanoTime() - t) / ops;
+			total += perOp;
+			min = Math.min(min, perOp);
+		}
+
+		System.out.println(String.format("%-56s %14.1f %14.1f", benchmark.getName(), total / ROUNDS, min));
+	}
+}
@@ -0,0 +1,70 @@
+package com.pimentoso.android.laptimer.bench;
+
+import com.pimentoso.android.laptimer.CarClassifier;
+import com.pimentoso.android.laptimer.GateRegion;
+import com.pimentoso.android.laptimer.LapDetector;
+
+/**
+ * Per-frame cost of {@link CarClassifier#process(byte[], int, int, boolean)}, done on the camera thread
+ * after the detection when the cars sharing a lane are told apart by color. The car of the synthetic
+ * frames passes every 100 frames, and is matched against a registered car. The frames caught by the
+ * start/finish line are found by a {@link LapDetector} in the setup, so its cost is left out.
+ *
+ * @author Pimentoso
+ */
+public class CarClassifierBenchmark extends Benchmark {
+
+	private final Frames frames;
+	private CarClassifier classifier;
+	private boolean[] caught;
+	private int passes;
+	private int next;
+
+	public CarClassifierBenchmark(Frames frames) {
+		super("car classifier " + frames.name);
+		this.frames = frames;
+	}
+
+	@Override
+	public void setup() {
+		byte[][] frames = this.frames.frames;
+		LapDetector detector = new LapDetector(GateRegion.line());
+		detector.calibrate();
+		for (int i = 0; i < LapDetector.CALIBRATION_FRAMES; i++) {
+			// calibrate on the last frames, where no car is crossing
+			detector.process(frames[frames.length - 1 - i % 2], this.frames.width, this.frames.height, 0);
+		}
+		caught = new boolean[frames.length];
+		for (int i = 0; i < frames.length; i++) {
+			detector.process(frames[i], this.frames.width, this.frames.height, 0);
+			caught[i] = detector.isCaught();
+		}
+
+		classifier = new CarClassifier(0.5f, 0.1f, 0.9f);
+		classifier.setSignature(0, new float[CarClassifier.BINS]);
+		classifier.setListener(new CarClassifier.Listener() {
+			@Override
+			public void onCarPassed(int car, float distance) {
+				passes++;
+			}
+
+			@Override
+			public void onCarLearned(int car, float[] signature) {
+			}
+		});
+	}
+
+	@Override
+	public long run(int ops) {
+		byte[][] frames = this.frames.frames;
+		int width = this.frames.width;
+		int height = this.frames.height;
+		for (int i = 0; i < ops; i++) {
+			classifier.process(frames[next], width, height, caught[next]);
+			if (++next == frames.length) {
+				next = 0;
+			}
+		}
+		return passes;
+	}
+}
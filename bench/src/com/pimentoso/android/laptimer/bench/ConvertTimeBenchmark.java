@@ -0,0 +1,37 @@
+package com.pimentoso.android.laptimer.bench;
+
+import com.pimentoso.android.laptimer.TimeFormat;
+
+/**
+ * Cost of formatting a time, done for the running clock and for every lap row. The char array variant is
+ * the one used on screen, the string variant is there for comparison.
+ *
+ * @author Pimentoso
+ */
+public class ConvertTimeBenchmark extends Benchmark {
+
+	private final int precision;
+	private final boolean chars;
+	private final char[] buffer = new char[TimeFormat.MAX_LENGTH];
+
+	public ConvertTimeBenchmark(int precision, boolean chars) {
+		super("format precision " + precision + (chars ? " char[]" : " String"));
+		this.precision = precision;
+		this.chars = chars;
+	}
+
+	@Override
+	public long run(int ops) {
+		long result = 0;
+		for (int i = 0; i < ops; i++) {
+			long millis = 1000L + (i & 0xFFFF) * 7;
+			if (chars) {
+				result += TimeFormat.format(millis, precision, buffer, 0) + buffer[0];
+			}
+			else {
+				result += TimeFormat.toString(millis, precision).length();
+			}
+		}
+		return result;
+	}
+}
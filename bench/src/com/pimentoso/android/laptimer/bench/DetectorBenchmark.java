@@ -0,0 +1,64 @@
+package com.pimentoso.android.laptimer.bench;
+
+import com.pimentoso.android.laptimer.GateRegion;
+import com.pimentoso.android.laptimer.LapDetector;
+
+/**
+ * Per-frame cost of {@link LapDetector#process(byte[], int, int, long)} on a calibrated and started
+ * detector, which is the work done on the camera thread for every preview frame.
+ *
+ * @author Pimentoso
+ */
+public class DetectorBenchmark extends Benchmark {
+
+	private static final long FRAME_NANOS = 33333333L;
+
+	private final Frames frames;
+	private final GateRegion region;
+	private LapDetector detector;
+	private long time;
+	private int next;
+
+	public DetectorBenchmark(Frames frames) {
+		this(frames, GateRegion.pixels(), "3 pixels");
+	}
+
+	public DetectorBenchmark(Frames frames, GateRegion region, String regionName) {
+		super("detector " + frames.name + " " + regionName + " (" + pixelCount(frames, region) + " px)");
+		this.frames = frames;
+		this.region = region;
+	}
+
+	private static int pixelCount(Frames frames, GateRegion region) {
+		region.resolve(frames.width, frames.height);
+		return region.getPixelCount();
+	}
+
+	@Override
+	public void setup() {
+		detector = new LapDetector(region);
+		detector.calibrate();
+		for (int i = 0; i < LapDetector.CALIBRATION_FRAMES; i++) {
+			// calibrate on the last frames, where no car is crossing
+			detector.process(frames.frames[frames.frames.length - 1 - i % 2], frames.width, frames.height, time += FRAME_NANOS);
+		}
+		detector.start();
+	}
+
+	@Override
+	public long run(int ops) {
+		byte[][] frames = this.frames.frames;
+		int width = this.frames.width;
+		int height = this.frames.height;
+		long caught = 0;
+		for (int i = 0; i < ops; i++) {
+			if (detector.process(frames[next], width, height, time += FRAME_NANOS)) {
+				caught++;
+			}
+			if (++next == frames.length) {
+				next = 0;
+			}
+		}
+		return caught;
+	}
+}
@@ -0,0 +1,101 @@
+package com.pimentoso.android.laptimer.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import com.pimentoso.android.laptimer.ExportWriter;
+import com.pimentoso.android.laptimer.LapExporter;
+import com.pimentoso.android.laptimer.LapStatistics;
+import com.pimentoso.android.laptimer.LapStore;
+import com.pimentoso.android.laptimer.TimeFormat;
+
+/**
+ * Cost of exporting a session: as text for sharing, or streamed to a file in one of the export formats.
+ *
+ * @author Pimentoso
+ */
+public class ExportBenchmark extends Benchmark {
+
+	private static final String[] FORMATS = { "csv", "json", "binary" };
+
+	// -1 for the shared text
+	private final int format;
+	private final int count;
+	private final LapStore laps = new LapStore();
+	private final List<LapStore> lanes = Collections.singletonList(laps);
+	private final LapStatistics stats = new LapStatistics();
+	private final List<LapStatistics> laneStats = Collections.singletonList(stats);
+	private final CountingStream out = new CountingStream();
+
+	/**
+	 * @param format an {@link ExportWriter} format, or -1 for the shared text
+	 */
+	public ExportBenchmark(int format, int count) {
+		super("export " + (format < 0 ? "text" : FORMATS[format]) + " " + count + " laps");
+		this.format = format;
+		this.count = count;
+	}
+
+	@Override
+	public void setup() {
+		Random random = new Random(42);
+		long timestamp = 1430000000000L;
+		for (int i = 0; i < count; i++) {
+			long lap = 3000L + random.nextInt(500);
+			laps.add(lap, timestamp += lap);
+			stats.add(lap);
+		}
+	}
+
+	@Override
+	public long run(int ops) {
+		long result = 0;
+		for (int i = 0; i < ops; i++) {
+			if (format < 0) {
+				result += LapExporter.lapsToString(lanes, laneStats, TimeFormat.MILLIS).length();
+			}
+			else {
+				result += export();
+			}
+		}
+		return result;
+	}
+
+	private long export() {
+		try {
+			out.count = 0;
+			ExportWriter writer = ExportWriter.create(format, out, TimeFormat.MILLIS, false, false);
+			writer.startSession(1430000000000L);
+			writer.startLane(0, null);
+			for (int i = 0; i < laps.size(); i++) {
+				writer.lap(i + 1, laps.get(i), laps.getTimestamp(i), laps.getRaw(i), laps.getFlags(i));
+			}
+			writer.finish();
+			return out.count;
+		}
+		catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Counts the bytes and drops them.
+	 */
+	private static class CountingStream extends OutputStream {
+
+		long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
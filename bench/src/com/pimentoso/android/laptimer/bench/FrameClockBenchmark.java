@@ -0,0 +1,45 @@
+package com.pimentoso.android.laptimer.bench;
+
+import java.util.Random;
+
+import com.pimentoso.android.laptimer.FrameClock;
+
+/**
+ * Per-frame cost of the capture time estimation.
+ *
+ * @author Pimentoso
+ */
+public class FrameClockBenchmark extends Benchmark {
+
+	private final long[] arrivals = new long[1024];
+	private FrameClock clock;
+	private long offset;
+	private int next;
+
+	public FrameClockBenchmark() {
+		super("frame clock");
+	}
+
+	@Override
+	public void setup() {
+		// 30 fps, with up to 10 ms of callback latency
+		Random random = new Random(42);
+		for (int i = 0; i < arrivals.length; i++) {
+			arrivals[i] = i * 33333333L + random.nextInt(10000000);
+		}
+		clock = new FrameClock();
+	}
+
+	@Override
+	public long run(int ops) {
+		long result = 0;
+		for (int i = 0; i < ops; i++) {
+			result += clock.onFrame(offset + arrivals[next]);
+			if (++next == arrivals.length) {
+				next = 0;
+				offset += arrivals.length * 33333333L;
+			}
+		}
+		return result;
+	}
+}
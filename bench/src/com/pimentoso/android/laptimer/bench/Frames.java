@@ -0,0 +1,112 @@
+package com.pimentoso.android.laptimer.bench;
+
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.pimentoso.android.laptimer.FrameRecording;
+
+/**
+ * A set of NV21 frames to feed to the detector, either generated or loaded from a file.
+ *
+ * @author Pimentoso
+ */
+public class Frames {
+
+	private static final int SYNTHETIC_FRAMES = 100;
+	private static final int MAX_RECORDED_FRAMES = 300;
+
+	public final String name;
+	public final int width;
+	public final int height;
+	public final byte[][] frames;
+
+	private Frames(String name, int width, int height, byte[][] frames) {
+		this.name = name;
+		this.width = width;
+		this.height = height;
+		this.frames = frames;
+	}
+
+	/**
+	 * Generates a noisy, evenly lit track, with a car crossing the middle of the frame every
+	 * {@link #SYNTHETIC_FRAMES} frames.
+	 */
+	public static Frames synthetic(int width, int height) {
+
+		Random random = new Random(42);
+		byte[][] frames = new byte[SYNTHETIC_FRAMES][width * height * 3 / 2];
+
+		for (int f = 0; f < SYNTHETIC_FRAMES; f++) {
+			byte[] frame = frames[f];
+			for (int i = 0; i < width * height; i++) {
+				frame[i] = (byte) (100 + random.nextInt(5) - 2);
+			}
+			for (int i = width * height; i < frame.length; i++) {
+				frame[i] = (byte) 128;
+			}
+
+			// the car covers a block around the middle column in the first 2 frames
+			if (f < 2) {
+				int x0 = width / 2 - width / 16 + f * width / 16;
+				for (int y = 0; y < height; y++) {
+					for (int x = x0; x < x0 + width / 16; x++) {
+						frame[y * width + x] = (byte) 200;
+					}
+				}
+			}
+		}
+
+		return new Frames("synthetic " + width + "x" + height, width, height, frames);
+	}
+
+	/**
+	 * Loads raw NV21 frames of the given size ("WIDTHxHEIGHT"), stored one after the other.
+	 */
+	public static Frames recorded(String path, String size) throws IOException {
+
+		String[] dimensions = size.split("x");
+		int width = Integer.parseInt(dimensions[0]);
+		int height = Integer.parseInt(dimensions[1]);
+		int frameSize = width * height * 3 / 2;
+
+		FileInputStream file = new FileInputStream(path);
+		try {
+			int count = (int) Math.min(MAX_RECORDED_FRAMES, file.getChannel().size() / frameSize);
+			byte[][] frames = new byte[count][frameSize];
+			DataInputStream in = new DataInputStream(file);
+			for (int f = 0; f < count; f++) {
+				in.readFully(frames[f]);
+			}
+			return new Frames("recorded " + width + "x" + height, width, height, frames);
+		}
+		finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Loads the frames of a recording made by the app (see {@link FrameRecording}).
+	 */
+	public static Frames recording(String path) throws IOException {
+
+		FrameRecording recording = new FrameRecording(new FileInputStream(path));
+		try {
+			int frameSize = recording.width * recording.height * 3 / 2;
+			List<byte[]> frames = new ArrayList<byte[]>();
+			byte[] frame = new byte[frameSize];
+			while (frames.size() < MAX_RECORDED_FRAMES && recording.next(frame)) {
+				frames.add(frame);
+				frame = new byte[frameSize];
+			}
+			return new Frames("recording " + recording.width + "x" + recording.height, recording.width, recording.height,
+					frames.toArray(new byte[frames.size()][]));
+		}
+		finally {
+			recording.close();
+		}
+	}
+}
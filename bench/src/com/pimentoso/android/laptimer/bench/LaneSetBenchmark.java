@@ -0,0 +1,92 @@
+package com.pimentoso.android.laptimer.bench;
+
+import java.nio.ByteBuffer;
+
+import com.pimentoso.android.laptimer.GateLayout;
+import com.pimentoso.android.laptimer.GateRegion;
+import com.pimentoso.android.laptimer.LaneSet;
+import com.pimentoso.android.laptimer.LapDetector;
+
+/**
+ * Per-frame cost of {@link LaneSet#process(byte[], int, int, long)} with all lanes calibrated and started,
+ * to compare with a single {@link DetectorBenchmark} over the same line.
+ *
+ * The direct variant reads the frames from direct buffers with padded rows, as the Y plane of a camera2
+ * image, through {@link LaneSet#process(ByteBuffer, int, int, int, long)}. With sector gates in the frame,
+ * the gates share the rows of a single one: on a desktop JVM, 3 gates take about 9 us per frame against
+ * 7 us for one at 640x480, and 17 against 13 us at 1280x720.
+ *
+ * @author Pimentoso
+ */
+public class LaneSetBenchmark extends Benchmark {
+
+	private static final long FRAME_NANOS = 33333333L;
+
+	private final Frames frames;
+	private final int laneCount;
+	private final GateLayout layout;
+	private final boolean direct;
+	private ByteBuffer[] buffers;
+	private int rowStride;
+	private LaneSet lanes;
+	private long time;
+	private int next;
+
+	public LaneSetBenchmark(Frames frames, int laneCount, boolean direct) {
+		this(frames, laneCount, GateLayout.single(), direct);
+	}
+
+	public LaneSetBenchmark(Frames frames, int laneCount, GateLayout layout, boolean direct) {
+		super("lanes " + frames.name + " " + laneCount + " lanes " + (layout.getGateCount() > 1 ? layout.getGateCount() + " gates " : "") + "line band "
+				+ GateRegion.DEFAULT_BAND + (direct ? " direct" : ""));
+		this.frames = frames;
+		this.laneCount = laneCount;
+		this.layout = layout;
+		this.direct = direct;
+	}
+
+	@Override
+	public void setup() {
+		lanes = new LaneSet(laneCount, layout, true, GateRegion.DEFAULT_BAND, GateRegion.DEFAULT_SEGMENTS);
+		lanes.calibrate();
+		for (int i = 0; i < LapDetector.CALIBRATION_FRAMES; i++) {
+			// calibrate on the last frames, where no car is crossing
+			lanes.process(frames.frames[frames.frames.length - 1 - i % 2], frames.width, frames.height, time += FRAME_NANOS);
+		}
+		lanes.start();
+
+		if (direct) {
+			// rows aligned to 64 bytes, as camera buffers usually are
+			rowStride = (frames.width + 63) & ~63;
+			buffers = new ByteBuffer[frames.frames.length];
+			for (int f = 0; f < buffers.length; f++) {
+				buffers[f] = ByteBuffer.allocateDirect(rowStride * frames.height);
+				for (int row = 0; row < frames.height; row++) {
+					buffers[f].position(row * rowStride);
+					buffers[f].put(frames.frames[f], row * frames.width, frames.width);
+				}
+				buffers[f].clear();
+			}
+		}
+	}
+
+	@Override
+	public long run(int ops) {
+		byte[][] frames = this.frames.frames;
+		int width = this.frames.width;
+		int height = this.frames.height;
+		long caught = 0;
+		for (int i = 0; i < ops; i++) {
+			boolean frameCaught = direct
+					? lanes.process(buffers[next], width, height, rowStride, time += FRAME_NANOS)
+					: lanes.process(frames[next], width, height, time += FRAME_NANOS);
+			if (frameCaught) {
+				caught++;
+			}
+			if (++next == frames.length) {
+				next = 0;
+			}
+		}
+		return caught;
+	}
+}
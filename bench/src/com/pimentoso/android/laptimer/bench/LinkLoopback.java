@@ -0,0 +1,177 @@
+package com.pimentoso.android.laptimer.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.pimentoso.android.laptimer.ClockSync;
+import com.pimentoso.android.laptimer.GateLink;
+import com.pimentoso.android.laptimer.GateMaster;
+import com.pimentoso.android.laptimer.SectorSequencer;
+import com.pimentoso.android.laptimer.TimeFormat;
+
+/**
+ * Runs a master and its sector gates on this machine, over loopback, each gate with a clock that is off
+ * by seconds and drifts by tens of ppm, then drives a simulated car around the gates in real time and
+ * compares the sectors merged by the master with the true ones.
+ *
+ * <pre>
+ * -Dlink.gates=3 (the start/finish line included) -Dlink.laps=10 -Dlink.lap=1500 (milliseconds)
+ * -Dlink.drift=80 (ppm) -Dlink.port=47652
+ * </pre>
+ *
+ * Usage: LinkLoopback
+ *
+ * @author Pimentoso
+ */
+public class LinkLoopback implements SectorSequencer.Listener {
+
+	/**
+	 * The system clock, off by a fixed offset and drifting at a fixed rate.
+	 */
+	private static class SkewedClock implements ClockSync.Clock {
+
+		private final long start = System.nanoTime();
+		private final long offset;
+		private final double drift;
+
+		SkewedClock(long offset, double drift) {
+			this.offset = offset;
+			this.drift = drift;
+		}
+
+		long fromTrue(long nanos) {
+			return nanos + offset + (long) ((nanos - start) * drift);
+		}
+
+		@Override
+		public long nanoTime() {
+			return fromTrue(System.nanoTime());
+		}
+	}
+
+	private final List<long[]> measured = new ArrayList<long[]>();
+
+	@Override
+	public void onSector(int lane, int sector, long sectorNanos) {
+	}
+
+	@Override
+	public synchronized void onLap(int lane, long lapNanos, long[] sectorNanos, int sectors) {
+		long[] lap = new long[sectors + 1];
+		lap[0] = lapNanos;
+		System.arraycopy(sectorNanos, 0, lap, 1, sectors);
+		measured.add(lap);
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		int gates = Integer.getInteger("link.gates", 3);
+		int laps = Integer.getInteger("link.laps", 10);
+		long lapNanos = Long.getLong("link.lap", 1500) * 1000000L;
+		double drift = Integer.getInteger("link.drift", 80) * 1e-6;
+		int port = Integer.getInteger("link.port", GateLink.PORT);
+
+		LinkLoopback loopback = new LinkLoopback();
+		SectorSequencer sequencer = new SectorSequencer(1, gates);
+		sequencer.setListener(loopback);
+		GateMaster master = new GateMaster(sequencer, port, ClockSync.SYSTEM);
+		master.start();
+
+		Random random = new Random(42);
+		GateLink[] links = new GateLink[gates];
+		SkewedClock[] clocks = new SkewedClock[gates];
+		for (int gate = 1; gate < gates; gate++) {
+			// seconds off, and drifting alternately ahead and behind
+			clocks[gate] = new SkewedClock((random.nextInt(20000) - 10000) * 1000000L + random.nextInt(1000000), gate % 2 == 0 ? drift : -drift);
+			links[gate] = new GateLink(gate, "127.0.0.1", port, clocks[gate]);
+			links[gate].start();
+		}
+
+		// enough exchanges for the drift to be fitted
+		Thread.sleep(ClockSync.SAMPLES / 2 * GateLink.SYNC_INTERVAL_NANOS / 1000000L);
+		checkError(master, links);
+		System.out.println(gates + " gates, " + laps + " laps of " + TimeFormat.toString(lapNanos / 1000000L, TimeFormat.MILLIS) + ", drift "
+				+ Math.round(drift * 1e6) + " ppm");
+		for (int gate = 1; gate < gates; gate++) {
+			ClockSync sync = links[gate].getClockSync();
+			long local = clocks[gate].nanoTime();
+			long truth = System.nanoTime();
+			System.out.println(String.format("gate %d: offset %.3f s, error %d us, round trip %d us, drift %.1f ppm (true %.1f)", gate,
+					-sync.getOffsetNanos(local) / 1e9, (sync.toRemote(local) - truth) / 1000, sync.getRoundTripNanos() / 1000,
+					-sync.getDrift() * 1e6, clocks[gate].drift * 1e6));
+		}
+
+		// the car: sectors of uneven length, with some jitter on each lap
+		long[][] sectors = new long[laps][gates];
+		long time = System.nanoTime() + 100000000L;
+		for (int lap = 0; lap <= laps; lap++) {
+			for (int gate = 0; gate < gates; gate++) {
+				sleepUntil(time);
+				if (gate == 0) {
+					master.addCrossing(0, 0, time);
+				}
+				else {
+					links[gate].sendCrossing(0, clocks[gate].fromTrue(time));
+				}
+				if (lap == laps) {
+					break;
+				}
+				long sector = lapNanos * (gates + gate) / (gates * gates + gates * (gates - 1) / 2) + random.nextInt(20000000);
+				sectors[lap][gate] = sector;
+				time += sector;
+			}
+		}
+		Thread.sleep((GateMaster.REORDER_NANOS + GateLink.SYNC_INTERVAL_NANOS) / 1000000L);
+
+		for (int gate = 1; gate < gates; gate++) {
+			links[gate].stop();
+		}
+		master.stop();
+		checkError(master, links);
+
+		long maxError = 0;
+		long sumError = 0;
+		int count = 0;
+		int incomplete = 0;
+		synchronized (loopback) {
+			for (int lap = 0; lap < loopback.measured.size(); lap++) {
+				long[] merged = loopback.measured.get(lap);
+				StringBuilder s = new StringBuilder("lap " + (lap + 1) + " " + TimeFormat.toString(merged[0] / 1000000L, TimeFormat.MILLIS));
+				if (merged.length == 1) {
+					incomplete++;
+					s.append(" (no sectors)");
+				}
+				for (int gate = 1; gate < merged.length; gate++) {
+					long error = merged[gate] - sectors[lap][gate - 1];
+					s.append(String.format(" | %s %+d us", TimeFormat.toString(merged[gate] / 1000000L, TimeFormat.MILLIS), error / 1000));
+					maxError = Math.max(maxError, Math.abs(error));
+					sumError += Math.abs(error);
+					count++;
+				}
+				System.out.println(s);
+			}
+		}
+		System.out.println(String.format("%d laps, %d without sectors, %d late crossings; sector error mean %d us, max %d us",
+				loopback.measured.size(), incomplete, master.getLateCrossings(), count > 0 ? sumError / count / 1000 : 0, maxError / 1000));
+	}
+
+	private static void checkError(GateMaster master, GateLink[] links) throws IOException {
+		if (master.getError() != null) {
+			throw master.getError();
+		}
+		for (GateLink link : links) {
+			if (link != null && link.getError() != null) {
+				throw link.getError();
+			}
+		}
+	}
+
+	private static void sleepUntil(long nanos) throws InterruptedException {
+		long wait = nanos - System.nanoTime();
+		if (wait > 0) {
+			Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+		}
+	}
+}
@@ -0,0 +1,244 @@
+package com.pimentoso.android.laptimer.bench;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import com.pimentoso.android.laptimer.FrameGaps;
+import com.pimentoso.android.laptimer.FrameRecording;
+import com.pimentoso.android.laptimer.GateLayout;
+import com.pimentoso.android.laptimer.LaneSet;
+import com.pimentoso.android.laptimer.LatencyHistogram;
+import com.pimentoso.android.laptimer.LapDetector;
+import com.pimentoso.android.laptimer.LapFilter;
+import com.pimentoso.android.laptimer.LapStore;
+import com.pimentoso.android.laptimer.SectorSequencer;
+import com.pimentoso.android.laptimer.TimeFormat;
+
+/**
+ * Replays a session recorded on the phone through the detector, and prints the laps.
+ *
+ * The detection settings of the session are stored in the recording, and can be overridden with system
+ * properties, to see how a tuning change would have timed the same race:
+ *
+ * <pre>
+ * -Dreplay.threshold=10 -Dreplay.catchDelay=500 (milliseconds) -Dreplay.lanes=1
+ * -Dreplay.lineScan=true -Dreplay.band=4 -Dreplay.segments=16 -Dreplay.interpolate=true
+ * -Dreplay.filter=true -Dreplay.gates="Finish@50; Hairpin@20"
+ * </pre>
+ *
+ * Only the gates are recorded, so a changed layout is only useful to move a gate within the recorded
+ * columns.
+ *
+ * Laps go through a {@link LapFilter}, as on the phone, unless replay.filter is false; corrected laps are
+ * printed with the time measured by the detector. Laps during which the recording has frame gaps are
+ * marked as possibly missed, see {@link FrameGaps}. With sector gates in the layout, the sector times of
+ * each lap are printed after it, from a {@link SectorSequencer} as on the phone.
+ *
+ * Calibration runs on the first frames of the recording, and the timer is started right after it, as if
+ * the start button had been pressed.
+ *
+ * Usage: Replay recording.m4wr
+ *
+ * @author Pimentoso
+ */
+public class Replay implements LapDetector.Listener {
+
+	private final LaneSet lanes;
+	private final LapFilter filter;
+	private final LapStore[] laps;
+	private final SectorSequencer sectors;
+	private final FrameGaps gaps = new FrameGaps();
+	private int backgroundResets = 0;
+	private int rejected = 0;
+
+	private Replay(LaneSet lanes, boolean filtered) {
+		this.lanes = lanes;
+		this.filter = new LapFilter(lanes.getLaneCount());
+		this.filter.setEnabled(filtered);
+		this.laps = new LapStore[lanes.getLaneCount()];
+		for (int i = 0; i < laps.length; i++) {
+			laps[i] = new LapStore();
+		}
+		int gates = lanes.getGateCount();
+		if (gates > 1) {
+			final GateLayout layout = lanes.getLayout();
+			sectors = new SectorSequencer(lanes.getLaneCount(), gates);
+			sectors.setListener(new SectorSequencer.Listener() {
+
+				@Override
+				public void onSector(int lane, int sector, long sectorNanos) {
+				}
+
+				@Override
+				public void onLap(int lane, long lapNanos, long[] sectorNanos, int count) {
+					if (count == 0) {
+						System.out.println("lane " + (lane + 1) + ": sectors incomplete");
+						return;
+					}
+					StringBuilder s = new StringBuilder("lane " + (lane + 1) + ": sectors");
+					for (int i = 0; i < count; i++) {
+						s.append(i > 0 ? ", " : " ").append(layout.getName((i + 1) % count)).append(' ')
+								.append(TimeFormat.toString((sectorNanos[i] + 500000L) / 1000000L, TimeFormat.MILLIS));
+					}
+					System.out.println(s);
+				}
+			});
+		}
+		else {
+			sectors = null;
+		}
+	}
+
+	private void crossing(int lane, int gate, long crossingNanos) {
+		if (sectors != null) {
+			sectors.crossing(lane, gate, crossingNanos);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		if (args.length != 1) {
+			System.err.println("Usage: Replay recording.m4wr");
+			System.exit(1);
+		}
+
+		FrameRecording recording = new FrameRecording(new FileInputStream(args[0]));
+		try {
+			replay(recording);
+		}
+		finally {
+			recording.close();
+		}
+	}
+
+	private static void replay(FrameRecording recording) throws IOException {
+
+		int threshold = Integer.getInteger("replay.threshold", recording.threshold);
+		int laneCount = Integer.getInteger("replay.lanes", recording.lanes);
+		boolean lineScan = Boolean.parseBoolean(System.getProperty("replay.lineScan", String.valueOf(recording.lineScan)));
+		int band = Integer.getInteger("replay.band", recording.band);
+		int segments = Integer.getInteger("replay.segments", recording.segments);
+		boolean interpolate = Boolean.parseBoolean(System.getProperty("replay.interpolate", String.valueOf(recording.interpolate)));
+		long catchDelay = Long.getLong("replay.catchDelay", LapDetector.DEFAULT_CATCH_DELAY / 1000000L) * 1000000L;
+		boolean filtered = Boolean.parseBoolean(System.getProperty("replay.filter", "true"));
+		GateLayout layout = GateLayout.parse(System.getProperty("replay.gates", recording.layout.toString()));
+
+		StringBuilder columns = new StringBuilder();
+		for (int x : recording.cropX) {
+			columns.append(columns.length() > 0 ? ", " : "").append(x).append('-').append(x + recording.cropWidth);
+		}
+		System.out.println("recording " + recording.width + "x" + recording.height + ", columns " + columns);
+		System.out.println("threshold " + threshold + ", lanes " + laneCount + ", gates " + layout + ", "
+				+ (lineScan ? "line band " + band + " x " + segments : "3 pixels") + ", catch delay " + catchDelay / 1000000L + " ms"
+				+ (interpolate ? ", interpolated" : "") + (filtered ? ", filtered" : ""));
+
+		LaneSet lanes = new LaneSet(laneCount, layout, lineScan, band, segments);
+		lanes.setThreshold(threshold);
+		lanes.setInterpolate(interpolate);
+		lanes.setCatchDelay(catchDelay);
+
+		Replay replay = new Replay(lanes, filtered);
+		lanes.setListener(replay);
+		lanes.calibrate();
+
+		byte[] luma = new byte[recording.width * recording.height];
+		int frames = 0;
+		long first = 0;
+		long last = 0;
+		long processNanos = 0;
+		LatencyHistogram detection = new LatencyHistogram();
+		while (recording.next(luma)) {
+			long timestamp = recording.getTimestamp();
+			if (frames == 0) {
+				first = timestamp;
+			}
+			last = timestamp;
+			frames++;
+
+			replay.gaps.onFrame(timestamp);
+			long start = System.nanoTime();
+			lanes.process(luma, recording.width, recording.height, timestamp);
+			long nanos = System.nanoTime() - start;
+			processNanos += nanos;
+			detection.record(nanos);
+		}
+
+		System.out.println();
+		System.out.println(String.format("%d frames, %.1f s, %.1f fps, %.1f us per frame", frames, (last - first) / 1e9,
+				frames > 1 ? (frames - 1) * 1e9 / (last - first) : 0.0, frames > 0 ? processNanos / 1e3 / frames : 0.0));
+		System.out.println(String.format("detection p50 %d us, p99 %d us, max %d us", detection.getPercentileMicros(0.5),
+				detection.getPercentileMicros(0.99), detection.getMaxMicros()));
+		System.out.println(replay.gaps.getGapCount() + " frame gaps, " + replay.gaps.getDroppedFrames() + " frames dropped");
+		for (int lane = 0; lane < laneCount; lane++) {
+			LapStore laneLaps = replay.laps[lane];
+			int corrected = 0;
+			int flagged = 0;
+			for (int i = 0; i < laneLaps.size(); i++) {
+				if (laneLaps.isCorrected(i)) {
+					corrected++;
+				}
+				if ((laneLaps.getFlags(i) & LapStore.FLAG_POSSIBLY_MISSED) != 0) {
+					flagged++;
+				}
+			}
+			System.out.println("lane " + (lane + 1) + ": " + laneLaps.size() + " laps, " + corrected + " corrected, " + flagged + " possibly missed"
+					+ (laneLaps.size() > 0 ? ", best " + TimeFormat.toString(laneLaps.getMin(), TimeFormat.MILLIS) : ""));
+		}
+		System.out.println(replay.rejected + " short laps ignored, " + replay.backgroundResets + " background resets");
+	}
+
+	@Override
+	public void onCalibrated(LapDetector detector) {
+		if (lanes.isCalibrated()) {
+			System.out.println("calibrated");
+			lanes.start();
+		}
+	}
+
+	@Override
+	public void onBackgroundReset(LapDetector detector) {
+		backgroundResets++;
+		System.out.println("lane " + (detector.getLane() + 1) + ": background reset");
+	}
+
+	@Override
+	public void onGateBlocked(LapDetector detector) {
+		System.out.println("lane " + (detector.getLane() + 1) + ": gate blocked");
+	}
+
+	@Override
+	public void onTimerStarted(LapDetector detector, long crossingNanos) {
+		crossing(detector.getLane(), detector.getGate(), crossingNanos);
+		if (detector.getGate() > 0) {
+			return;
+		}
+		System.out.println("lane " + (detector.getLane() + 1) + ": started");
+	}
+
+	@Override
+	public void onLap(LapDetector detector, long lapNanos, long crossingNanos) {
+		if (detector.getGate() > 0) {
+			// a sector gate: the lap is timed at the start/finish line
+			crossing(detector.getLane(), detector.getGate(), crossingNanos);
+			return;
+		}
+		int lane = detector.getLane();
+		long lapMillis = (lapNanos + 500000L) / 1000000L;
+		LapStore laneLaps = laps[lane];
+		int from = laneLaps.size();
+		int flags = gaps.overlaps(crossingNanos - lapNanos, crossingNanos) ? LapStore.FLAG_POSSIBLY_MISSED : 0;
+		boolean accepted = filter.process(lane, lapMillis, crossingNanos / 1000000L, flags, laneLaps) != LapFilter.REJECTED;
+		if (!accepted) {
+			rejected++;
+			System.out.println("lane " + (lane + 1) + ": ignored " + TimeFormat.toString(lapMillis, TimeFormat.MILLIS));
+		}
+		for (int i = from; i < laneLaps.size(); i++) {
+			System.out.println("lane " + (lane + 1) + ": lap " + (i + 1) + " " + TimeFormat.toString(laneLaps.get(i), TimeFormat.MILLIS)
+					+ (laneLaps.isCorrected(i) ? " (measured " + TimeFormat.toString(laneLaps.getRaw(i), TimeFormat.MILLIS) + ")" : "")
+					+ ((laneLaps.getFlags(i) & LapStore.FLAG_POSSIBLY_MISSED) != 0 ? " (possibly missed)" : ""));
+		}
+		if (accepted) {
+			crossing(lane, 0, crossingNanos);
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package com.pimentoso.android.laptimer.bench;
+
+import java.util.Random;
+
+import com.pimentoso.android.laptimer.LapStatistics;
+
+/**
+ * Cost of adding a lap to the statistics and reading them back, as done after every lap. It must not
+ * grow with the number of laps already added.
+ *
+ * @author Pimentoso
+ */
+public class StatisticsBenchmark extends Benchmark {
+
+	private final long[] laps = new long[1024];
+	private final LapStatistics stats = new LapStatistics();
+	private final int preloaded;
+	private int next;
+
+	/**
+	 * @param preloaded laps added before timing
+	 */
+	public StatisticsBenchmark(int preloaded) {
+		super("statistics after " + preloaded + " laps");
+		this.preloaded = preloaded;
+	}
+
+	@Override
+	public void setup() {
+		Random random = new Random(42);
+		for (int i = 0; i < laps.length; i++) {
+			laps[i] = 3000L + random.nextInt(500);
+		}
+		for (int i = 0; i < preloaded; i++) {
+			stats.add(laps[i % laps.length]);
+		}
+	}
+
+	@Override
+	public long run(int ops) {
+		long result = 0;
+		for (int i = 0; i < ops; i++) {
+			stats.add(laps[next]);
+			next = (next + 1) % laps.length;
+			result += stats.getMedian() + stats.getP90() + (long) stats.getStandardDeviation() + (long) stats.getRollingMean();
+		}
+		return result;
+	}
+}
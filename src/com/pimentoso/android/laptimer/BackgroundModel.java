@@ -0,0 +1,146 @@
+package com.pimentoso.android.laptimer;
+
+/**
+ * Running model of the empty track lightness, one mean and variance per gate segment.
+ *
+ * The model is seeded by averaging the calibration frames, then follows slow lighting changes with an
+ * exponential moving average, updated only by frames where nothing is crossing the gate. Each segment is
+ * caught when it differs from its mean by more than the larger of the configured threshold and
+ * {@link #NOISE_SIGMAS} standard deviations of its own noise, so noisy segments (low light, flickering
+ * lamps) need a bigger change to trigger.
+ *
+ * All the state is allocated once per segment count, nothing is allocated per frame.
+ *
+ * @author Pimentoso
+ */
+public class BackgroundModel {
+
+	// weight of a new clear frame in the running mean and variance (about 2 seconds at 30 fps)
+	private static final float GAIN = 1f / 64;
+
+	// a segment is caught when it is farther than this many standard deviations from its mean
+	private static final float NOISE_SIGMAS = 4f;
+
+	private final float[] mean;
+	private final float[] variance;
+	private final float[] noiseThreshold;
+
+	// calibration accumulators
+	private final long[] sum;
+	private final long[] sumSquares;
+	private int samples = 0;
+
+	public BackgroundModel(int segments) {
+		mean = new float[segments];
+		variance = new float[segments];
+		noiseThreshold = new float[segments];
+		sum = new long[segments];
+		sumSquares = new long[segments];
+	}
+
+	/**
+	 * Forgets everything, and starts collecting calibration frames.
+	 */
+	public void reset() {
+		for (int i = 0; i < mean.length; i++) {
+			sum[i] = 0;
+			sumSquares[i] = 0;
+		}
+		samples = 0;
+	}
+
+	/**
+	 * Adds a calibration frame.
+	 */
+	public void addCalibrationSample(int[] values) {
+		for (int i = 0; i < mean.length; i++) {
+			sum[i] += values[i];
+			sumSquares[i] += values[i] * values[i];
+		}
+		samples++;
+	}
+
+	/**
+	 * Seeds the model with mean and variance of the calibration frames.
+	 */
+	public void finishCalibration() {
+		for (int i = 0; i < mean.length; i++) {
+			float m = (float) sum[i] / samples;
+			mean[i] = m;
+			variance[i] = Math.max(0f, (float) sumSquares[i] / samples - m * m);
+			noiseThreshold[i] = NOISE_SIGMAS * (float) Math.sqrt(variance[i]);
+		}
+	}
+
+	/**
+	 * Compares a frame with the model.
+	 *
+	 * @param values lightness of each segment
+	 * @param threshold minimum lightness difference for a segment to be caught
+	 * @param deltas output, difference of each segment from its mean
+	 * @return true if any segment is caught
+	 */
+	public boolean compare(int[] values, int threshold, int[] deltas) {
+		boolean caught = false;
+		for (int i = 0; i < mean.length; i++) {
+			float delta = values[i] - mean[i];
+			deltas[i] = Math.round(delta);
+			float limit = Math.max(threshold, noiseThreshold[i]);
+			if (delta < -limit || delta > limit) {
+				caught = true;
+			}
+		}
+		return caught;
+	}
+
+	/**
+	 * True when the differences of a frame from the model, as returned by
+	 * {@link #compare(int[], int, int[])}, look like a change of lighting rather than something standing
+	 * on the gate: most segments are caught, all the same way, and by about as much. A car or a hand
+	 * covers some segments only, or changes them by different amounts.
+	 */
+	public boolean isLightingChange(int[] deltas, int threshold) {
+		int caught = 0;
+		int sign = 0;
+		int min = Integer.MAX_VALUE;
+		int max = Integer.MIN_VALUE;
+		long sum = 0;
+		for (int i = 0; i < mean.length; i++) {
+			int delta = deltas[i];
+			min = Math.min(min, delta);
+			max = Math.max(max, delta);
+			sum += delta;
+			if (Math.abs(delta) > Math.max(threshold, noiseThreshold[i])) {
+				int s = delta > 0 ? 1 : -1;
+				if (sign != 0 && s != sign) {
+					return false;
+				}
+				sign = s;
+				caught++;
+			}
+		}
+		return caught * 4 >= mean.length * 3 && (max - min) * mean.length <= Math.abs(sum);
+	}
+
+	/**
+	 * Moves the model towards a frame where nothing is crossing.
+	 */
+	public void update(int[] values) {
+		for (int i = 0; i < mean.length; i++) {
+			float delta = values[i] - mean[i];
+			mean[i] += GAIN * delta;
+			variance[i] = (1 - GAIN) * (variance[i] + GAIN * delta * delta);
+			noiseThreshold[i] = NOISE_SIGMAS * (float) Math.sqrt(variance[i]);
+		}
+	}
+
+	/**
+	 * Takes a frame as the new background, keeping the measured noise. Used when the lighting has
+	 * changed too suddenly to be followed.
+	 */
+	public void reseed(int[] values) {
+		for (int i = 0; i < mean.length; i++) {
+			mean[i] = values[i];
+		}
+	}
+}
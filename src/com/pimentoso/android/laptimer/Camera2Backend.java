@@ -0,0 +1,386 @@
+package com.pimentoso.android.laptimer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+/**
+ * Capture backend built on the camera2 API, for API 21 and later.
+ *
+ * Frames are delivered by an {@link ImageReader} in YUV_420_888 format. Only the Y plane is used, and it
+ * is handed to the listener as the direct buffer of the image: the detection reads the bytes of the gate
+ * rows in place, nothing is copied. Frames are timed with the sensor timestamp of the image, which is the
+ * real capture time, so there is no need to estimate it from the arrival time as with the old camera.
+ * When the camera does not say which clock the timestamps are on, only their offset to
+ * {@link System#nanoTime()} is measured, once, from the arrival times of the first frames.
+ *
+ * The repeating request asks for the fastest frame rate range the camera offers, and only output sizes
+ * that can be delivered at that rate are considered. Constrained high speed sessions are not used: they
+ * only accept preview and video encoder outputs, never an ImageReader.
+ *
+ * All the methods, and the listener, run on the handler given to the constructor.
+ *
+ * @author Pimentoso
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class Camera2Backend implements ImageReader.OnImageAvailableListener {
+
+	public interface Listener {
+
+		/**
+		 * The camera is open and the output size has been chosen. The preview surface must be set to this
+		 * size, then passed to {@link Camera2Backend#startSession(Surface)}.
+		 *
+		 * @param minFps lowest frame rate of the range asked to the camera, 0 if not known
+		 * @param maxFps highest frame rate of the range, 0 if not known
+		 */
+		void onCameraOpened(int width, int height, int minFps, int maxFps);
+
+		/**
+		 * A frame has been captured. The buffer is only valid during the call.
+		 *
+		 * @param luma the Y plane
+		 * @param rowStride distance in bytes between the start of two rows
+		 * @param timestampNanos capture time, on the {@link System#nanoTime()} clock
+		 */
+		void onFrame(ByteBuffer luma, int width, int height, int rowStride, long timestampNanos);
+
+		/**
+		 * The camera could not be opened, or has been lost.
+		 *
+		 * @param messageId error message resource
+		 */
+		void onCameraError(int messageId);
+	}
+
+
+	private final CameraManager manager;
+	private final Handler handler;
+	private final Listener listener;
+
+	private CameraDevice device;
+	private CameraCaptureSession session;
+	private CaptureRequest.Builder request;
+	private ImageReader reader;
+
+	private Range<Integer> fpsRange;
+	private int width;
+	private int height;
+	private boolean locked = false;
+
+	// images the reader can hold: one being processed, one waiting, one being filled by the camera, and
+	// more if the processing can take longer than a frame
+	private int maxImages = CaptureProfile.MIN_BUFFERS;
+
+	// frames used to measure the sensor clock offset, when the camera does not say which clock it uses
+	private static final int OFFSET_FRAMES = 30;
+
+	// difference between the sensor clock and System.nanoTime(), and the number of frames it has been
+	// measured over so far
+	private long timestampOffset = 0;
+	private int offsetFrames = 0;
+
+	public Camera2Backend(Context context, Handler handler, Listener listener) {
+		this.manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+		this.handler = handler;
+		this.listener = listener;
+	}
+
+	/**
+	 * Sets the number of images the reader can hold, see {@link CaptureProfile#chooseBufferCount(long, long)}.
+	 * Takes effect when the camera is opened.
+	 */
+	public void setMaxImages(int maxImages) {
+		this.maxImages = maxImages;
+	}
+
+	/**
+	 * True if the device has a back camera with native camera2 support. On legacy devices camera2 runs on
+	 * top of the old camera, and gives no advantage.
+	 */
+	public static boolean isSupported(Context context) {
+
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+			return false;
+		}
+
+		try {
+			CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+			String id = findBackCamera(manager);
+			if (id == null) {
+				return false;
+			}
+			Integer level = manager.getCameraCharacteristics(id).get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+			return level != null && level != CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY;
+		}
+		catch (CameraAccessException e) {
+			return false;
+		}
+	}
+
+	private static String findBackCamera(CameraManager manager) throws CameraAccessException {
+		for (String id : manager.getCameraIdList()) {
+			Integer facing = manager.getCameraCharacteristics(id).get(CameraCharacteristics.LENS_FACING);
+			if (facing != null && facing == CameraMetadata.LENS_FACING_BACK) {
+				return id;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Opens the back camera, and chooses the frame rate and the output size.
+	 *
+	 * @param highFps if true, the fastest frame rate is requested, and the size is chosen by measuring
+	 *            the detection; otherwise the smallest size is taken at the default rate
+	 * @param lanes a lane set with the current gate setup, used only for measuring
+	 * @param keepWidth if not 0, this size is kept (the camera is reopened on a calibrated gate)
+	 * @param keepHeight see keepWidth
+	 */
+	public void open(boolean highFps, LaneSet lanes, int keepWidth, int keepHeight) {
+
+		try {
+			String id = findBackCamera(manager);
+			if (id == null) {
+				listener.onCameraError(R.string.error_camera_null_text);
+				return;
+			}
+
+			CameraCharacteristics characteristics = manager.getCameraCharacteristics(id);
+			StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+
+			fpsRange = highFps ? chooseFpsRange(characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES)) : null;
+			long frameNanos = 1000000000L / (fpsRange != null ? fpsRange.getUpper() : 30);
+
+			// sizes that both the reader and the preview accept, at the requested rate
+			List<Size> sizes = new ArrayList<Size>();
+			List<Size> previewSizes = Arrays.asList(map.getOutputSizes(SurfaceHolder.class));
+			for (Size size : map.getOutputSizes(ImageFormat.YUV_420_888)) {
+				if (previewSizes.contains(size) && map.getOutputMinFrameDuration(ImageFormat.YUV_420_888, size) <= frameNanos) {
+					sizes.add(size);
+				}
+			}
+			if (sizes.isEmpty()) {
+				sizes.addAll(Arrays.asList(map.getOutputSizes(ImageFormat.YUV_420_888)));
+			}
+
+			int[] widths = new int[sizes.size()];
+			int[] heights = new int[sizes.size()];
+			int smallest = 0;
+			int chosen = -1;
+			for (int i = 0; i < widths.length; i++) {
+				widths[i] = sizes.get(i).getWidth();
+				heights[i] = sizes.get(i).getHeight();
+				if (widths[i] * heights[i] < widths[smallest] * heights[smallest]) {
+					smallest = i;
+				}
+				if (widths[i] == keepWidth && heights[i] == keepHeight) {
+					chosen = i;
+				}
+			}
+			if (chosen < 0) {
+				chosen = highFps ? CaptureProfile.chooseSize(widths, heights, lanes, frameNanos) : smallest;
+			}
+			width = widths[chosen];
+			height = heights[chosen];
+
+			// sensor timestamps on the elapsed realtime clock have a known offset. Otherwise the clock is
+			// unknown, and the offset is measured from the arrival times of the first frames
+			timestampOffset = 0;
+			offsetFrames = 0;
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+				Integer source = characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+				if (source != null && source == CameraMetadata.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME) {
+					timestampOffset = SystemClock.elapsedRealtimeNanos() - System.nanoTime();
+					offsetFrames = OFFSET_FRAMES;
+				}
+			}
+
+			Log.d("Mini4WD Lap Timer", "Camera2 size: " + width + "x" + height + ", fps range: " + fpsRange);
+
+			manager.openCamera(id, deviceCallback, handler);
+		}
+		catch (CameraAccessException e) {
+			listener.onCameraError(R.string.error_camera_locked_text);
+		}
+		catch (SecurityException e) {
+			listener.onCameraError(R.string.error_camera_null_text);
+		}
+	}
+
+	/**
+	 * Returns the range with the highest maximum, and among those the highest minimum.
+	 */
+	private static Range<Integer> chooseFpsRange(Range<Integer>[] ranges) {
+		Range<Integer> best = null;
+		if (ranges != null) {
+			for (Range<Integer> range : ranges) {
+				if (best == null || range.getUpper() > best.getUpper()
+						|| (range.getUpper().equals(best.getUpper()) && range.getLower() > best.getLower())) {
+					best = range;
+				}
+			}
+		}
+		return best;
+	}
+
+	private final CameraDevice.StateCallback deviceCallback = new CameraDevice.StateCallback() {
+
+		@Override
+		public void onOpened(CameraDevice camera) {
+			device = camera;
+			reader = ImageReader.newInstance(width, height, ImageFormat.YUV_420_888, maxImages);
+			reader.setOnImageAvailableListener(Camera2Backend.this, handler);
+			listener.onCameraOpened(width, height, fpsRange != null ? fpsRange.getLower() : 0, fpsRange != null ? fpsRange.getUpper() : 0);
+		}
+
+		@Override
+		public void onDisconnected(CameraDevice camera) {
+			camera.close();
+			if (device == camera) {
+				device = null;
+			}
+		}
+
+		@Override
+		public void onError(CameraDevice camera, int error) {
+			camera.close();
+			if (device == camera) {
+				device = null;
+			}
+			listener.onCameraError(R.string.error_camera_locked_text);
+		}
+	};
+
+	/**
+	 * Starts capturing to the preview surface and to the reader.
+	 */
+	public void startSession(final Surface preview) {
+
+		if (device == null) {
+			return;
+		}
+
+		try {
+			device.createCaptureSession(Arrays.asList(preview, reader.getSurface()), new CameraCaptureSession.StateCallback() {
+
+				@Override
+				public void onConfigured(CameraCaptureSession captureSession) {
+					if (device == null) {
+						return;
+					}
+					session = captureSession;
+					try {
+						request = device.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+						request.addTarget(preview);
+						request.addTarget(reader.getSurface());
+						if (fpsRange != null) {
+							request.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange);
+						}
+						setRepeatingRequest();
+					}
+					catch (CameraAccessException e) {
+						listener.onCameraError(R.string.error_camera_null_text);
+					}
+				}
+
+				@Override
+				public void onConfigureFailed(CameraCaptureSession captureSession) {
+					listener.onCameraError(R.string.error_camera_null_text);
+				}
+			}, handler);
+		}
+		catch (CameraAccessException e) {
+			listener.onCameraError(R.string.error_camera_null_text);
+		}
+	}
+
+	private void setRepeatingRequest() throws CameraAccessException {
+		request.set(CaptureRequest.CONTROL_AE_LOCK, locked);
+		request.set(CaptureRequest.CONTROL_AWB_LOCK, locked);
+		session.setRepeatingRequest(request.build(), null, handler);
+	}
+
+	/**
+	 * Locks or unlocks auto exposure and auto white balance.
+	 */
+	public void setLocks(boolean locked) {
+
+		this.locked = locked;
+		if (session == null) {
+			return;
+		}
+
+		try {
+			setRepeatingRequest();
+		}
+		catch (CameraAccessException e) {
+			Log.e("Camera", "Could not set exposure lock: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public void onImageAvailable(ImageReader imageReader) {
+
+		// every image is taken in order: skipping to the latest one would lose crossings
+		Image image = imageReader.acquireNextImage();
+		if (image == null) {
+			return;
+		}
+
+		try {
+			long timestamp = image.getTimestamp();
+			if (offsetFrames < OFFSET_FRAMES) {
+				// an image arrives some time after its capture, never before: the offset is the lower
+				// envelope of the delays, and is then kept fixed so that lap times do not shift with it
+				long offset = timestamp - System.nanoTime();
+				timestampOffset = offsetFrames == 0 ? offset : Math.max(timestampOffset, offset);
+				offsetFrames++;
+			}
+			Image.Plane luma = image.getPlanes()[0];
+			listener.onFrame(luma.getBuffer(), image.getWidth(), image.getHeight(), luma.getRowStride(), timestamp - timestampOffset);
+		}
+		finally {
+			image.close();
+		}
+	}
+
+	public void close() {
+
+		if (session != null) {
+			session.close();
+			session = null;
+		}
+		if (device != null) {
+			device.close();
+			device = null;
+		}
+		if (reader != null) {
+			reader.close();
+			reader = null;
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package com.pimentoso.android.laptimer;
+
+import java.util.Arrays;
+import java.util.List;
+
+import android.hardware.Camera;
+
+/**
+ * Camera settings for timing: the fastest preview frame rate the camera offers, and the largest preview
+ * size the detection can keep up with at that rate.
+ *
+ * The preview size is chosen by timing the work done on the camera thread for a frame of each supported
+ * size, and taking the largest one that stays within {@link #FRAME_BUDGET_SHARE} of the frame interval.
+ * The detection alone costs about the same at any size, since the line scan reads a bounded number of
+ * rows, so what is timed is the whole per-frame path: the copy of the full NV21 frame into the callback
+ * buffer, as the camera1 framework does, then {@link LaneSet#process(byte[], int, int, long)} on that
+ * buffer. The copy grows with the frame, and is what rules out the large sizes on a slow phone. Camera2
+ * hands over its images without the copy, so the size chosen there is on the safe side. Larger frames
+ * give the line scan more pixels across the car, but the camera also spends more time filling the
+ * buffers, so sizes wider than {@link #MAX_PREVIEW_WIDTH} are never used.
+ *
+ * The number of frame buffers is chosen from the time the detection holds a buffer: while one buffer is
+ * processed the camera needs another to fill and one queued, plus one more for each further frame
+ * interval the processing can take. With too few buffers the camera has nowhere to write and drops
+ * frames.
+ *
+ * Exposure and white balance are locked once the gate is calibrated, so the camera does not change the
+ * lightness of the track under the background model.
+ *
+ * @author Pimentoso
+ */
+public class CaptureProfile {
+
+	// share of the frame interval the detection can take on the camera thread
+	private static final float FRAME_BUDGET_SHARE = 0.25f;
+
+	// preview sizes wider than this are not considered
+	private static final int MAX_PREVIEW_WIDTH = 640;
+
+	// frames processed for each size; the fastest one is taken, to leave out the JIT warm up
+	private static final int MEASURE_FRAMES = 30;
+
+	public static final int MIN_BUFFERS = 3;
+	public static final int MAX_BUFFERS = 8;
+
+	private CaptureProfile() {}
+
+	/**
+	 * Returns the supported fps range with the highest maximum, and among those the highest minimum (a
+	 * high minimum keeps the camera from lengthening the exposure, and the frame interval, in low light).
+	 * Values are in fps * 1000, as in {@link Camera.Parameters#getSupportedPreviewFpsRange()}.
+	 */
+	public static int[] chooseFpsRange(Camera.Parameters parameters) {
+		List<int[]> ranges = parameters.getSupportedPreviewFpsRange();
+		if (ranges == null) {
+			return null;
+		}
+
+		int[] best = null;
+		for (int[] range : ranges) {
+			int max = range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX];
+			int min = range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX];
+			if (best == null || max > best[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]
+					|| (max == best[Camera.Parameters.PREVIEW_FPS_MAX_INDEX] && min > best[Camera.Parameters.PREVIEW_FPS_MIN_INDEX])) {
+				best = range;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Returns the largest supported preview size whose per-frame time fits in the frame budget.
+	 *
+	 * @param lanes a lane set with the current gate setup, used only for measuring
+	 * @param frameNanos frame interval at the chosen fps
+	 */
+	public static Camera.Size choosePreviewSize(Camera.Parameters parameters, LaneSet lanes, long frameNanos) {
+		List<Camera.Size> sizes = parameters.getSupportedPreviewSizes();
+		int[] widths = new int[sizes.size()];
+		int[] heights = new int[sizes.size()];
+		for (int i = 0; i < widths.length; i++) {
+			widths[i] = sizes.get(i).width;
+			heights[i] = sizes.get(i).height;
+		}
+		return sizes.get(chooseSize(widths, heights, lanes, frameNanos));
+	}
+
+	/**
+	 * Returns the index of the largest size whose per-frame time fits in the frame budget, or of the
+	 * smallest size if none does.
+	 *
+	 * @param lanes a lane set with the current gate setup, used only for measuring
+	 * @param frameNanos frame interval at the chosen fps
+	 */
+	public static int chooseSize(int[] widths, int[] heights, LaneSet lanes, long frameNanos) {
+
+		int smallest = 0;
+		int bufferSize = 0;
+		for (int i = 0; i < widths.length; i++) {
+			if (widths[i] * heights[i] < widths[smallest] * heights[smallest]) {
+				smallest = i;
+			}
+			if (widths[i] <= MAX_PREVIEW_WIDTH) {
+				bufferSize = Math.max(bufferSize, widths[i] * heights[i] * 3 / 2);
+			}
+		}
+
+		// a plain gray frame, copied into the callback buffer: the work done per frame does not depend on
+		// the content
+		byte[] frame = new byte[bufferSize];
+		byte[] buffer = new byte[bufferSize];
+		Arrays.fill(frame, (byte) 128);
+
+		long budget = (long) (frameNanos * FRAME_BUDGET_SHARE);
+		int chosen = smallest;
+		for (int i = 0; i < widths.length; i++) {
+			if (widths[i] > MAX_PREVIEW_WIDTH || widths[i] * heights[i] <= widths[chosen] * heights[chosen]) {
+				continue;
+			}
+			if (measure(lanes, frame, buffer, widths[i], heights[i]) <= budget) {
+				chosen = i;
+			}
+		}
+		return chosen;
+	}
+
+	/**
+	 * Returns the fastest time in nanoseconds taken to copy an NV21 frame of the given size into the
+	 * callback buffer and process it.
+	 */
+	private static long measure(LaneSet lanes, byte[] frame, byte[] buffer, int width, int height) {
+		int size = width * height * 3 / 2;
+		long fastest = Long.MAX_VALUE;
+		for (int i = 0; i < MEASURE_FRAMES; i++) {
+			long start = System.nanoTime();
+			System.arraycopy(frame, 0, buffer, 0, size);
+			lanes.process(buffer, width, height, start);
+			fastest = Math.min(fastest, System.nanoTime() - start);
+		}
+		return fastest;
+	}
+
+	/**
+	 * Returns the number of frame buffers that keeps the camera from running out of them, between
+	 * {@link #MIN_BUFFERS} and {@link #MAX_BUFFERS}.
+	 *
+	 * @param holdNanos time a buffer is held by the detection, e.g. its 99th percentile; 0 if not known
+	 * @param frameNanos frame interval, 0 if not known
+	 */
+	public static int chooseBufferCount(long holdNanos, long frameNanos) {
+		if (holdNanos <= 0 || frameNanos <= 0) {
+			return MIN_BUFFERS;
+		}
+		long held = (holdNanos + frameNanos - 1) / frameNanos;
+		return (int) Math.max(MIN_BUFFERS, Math.min(MAX_BUFFERS, 2 + held));
+	}
+
+	/**
+	 * Locks or unlocks auto exposure and auto white balance, where supported.
+	 */
+	public static void setLocks(Camera.Parameters parameters, boolean locked) {
+		if (parameters.isAutoExposureLockSupported()) {
+			parameters.setAutoExposureLock(locked);
+		}
+		if (parameters.isAutoWhiteBalanceLockSupported()) {
+			parameters.setAutoWhiteBalanceLock(locked);
+		}
+	}
+}
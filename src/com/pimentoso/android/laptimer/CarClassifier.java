@@ -0,0 +1,394 @@
+package com.pimentoso.android.laptimer;
+
+/**
+ * Tells cars apart by their colors, when several cars share a lane. The pixels of a band around the
+ * start/finish line are compared with the empty track; while a car is passing, the pixels that differ
+ * make up its signature, and when it has left the gate the signature is matched against the registered
+ * cars. Whether a car is passing is told by the {@link LapDetector} of the start/finish line, see
+ * {@link #process(byte[], int, int, boolean)}, so that every pass holds exactly one crossing timed by
+ * the detector, or none for a bounce within its catch delay.
+ *
+ * The signature is a histogram of {@link #BINS} bins: {@link #HUE_BINS} hues for the colored pixels,
+ * read from the VU plane of the NV21 frame, and {@link #GREY_BINS} levels of lightness for the grey,
+ * black and white ones. Hue and saturation of every chroma value are precomputed in a lookup table, so
+ * each sample costs a few array reads. At most {@link #MAX_SAMPLES} pixels are read per frame, and nothing
+ * is allocated per frame. Signatures are compared by their L1 distance, from 0 for the same colors to 2
+ * for no color in common.
+ *
+ * Frames must be processed on one thread, and the listener is called on it. Cars can be registered
+ * from any thread.
+ *
+ * @author Pimentoso
+ */
+public class CarClassifier {
+
+	public interface Listener {
+
+		/**
+		 * A car has passed the gate.
+		 *
+		 * @param car the registered car it looks like, -1 if none is close enough or no pixel of the car
+		 *            was seen
+		 * @param distance distance of the signature from that car
+		 */
+		void onCarPassed(int car, float distance);
+
+		/**
+		 * A car has passed the gate while learning, and its signature has been registered.
+		 *
+		 * @param signature only valid during the call
+		 */
+		void onCarLearned(int car, float[] signature);
+	}
+
+	public static final int MAX_CARS = LaneSet.MAX_LANES;
+
+	public static final int HUE_BINS = 12;
+	public static final int GREY_BINS = 4;
+	public static final int BINS = HUE_BINS + GREY_BINS;
+
+	public static final int MAX_SAMPLES = 512;
+
+	// width of the band read around the gate line, in luma pixels; every other column is read
+	private static final int SAMPLE_BAND = 16;
+
+	// chroma closer than this to neutral is grey
+	private static final int MIN_SATURATION = 20;
+
+	// a pixel differing from the empty track by this much in lightness, or in chroma, belongs to a car
+	private static final int FOREGROUND_LUMA = 40;
+	private static final int FOREGROUND_CHROMA = 16;
+
+	// frames averaged for the empty track, and then how slowly it follows the lighting (1/2^n per frame)
+	private static final int BACKGROUND_FRAMES = 8;
+	private static final int BACKGROUND_SHIFT = 3;
+
+	// a pass longer than this is a change of lighting or something left on the track: the current
+	// frame is taken as the empty track
+	private static final int MAX_PASS_FRAMES = 50;
+
+	// signatures farther than this from every car are unknown, and so are those about as close to two
+	public static final float MAX_DISTANCE = 0.5f;
+	private static final float MIN_MARGIN = 0.1f;
+
+	// hue bin of each VU pair, -1 if grey; grey level of each luma value
+	private static final byte[] CHROMA_BINS = new byte[256 * 256];
+	private static final byte[] LUMA_BINS = new byte[256];
+
+	static {
+		for (int v = 0; v < 256; v++) {
+			for (int u = 0; u < 256; u++) {
+				int cr = v - 128;
+				int cb = u - 128;
+				int bin = -1;
+				if (cr * cr + cb * cb >= MIN_SATURATION * MIN_SATURATION) {
+					double hue = Math.atan2(cr, cb) + Math.PI;
+					bin = (int) (hue / (2 * Math.PI) * HUE_BINS) % HUE_BINS;
+				}
+				CHROMA_BINS[v << 8 | u] = (byte) bin;
+			}
+		}
+		for (int y = 0; y < 256; y++) {
+			LUMA_BINS[y] = (byte) (HUE_BINS + y * GREY_BINS / 256);
+		}
+	}
+
+	private Listener listener;
+
+	// the band, as fractions of the frame
+	private final float x;
+	private final float top;
+	private final float bottom;
+
+	// offsets of the samples in the NV21 buffer, for the frame size they were computed for
+	private int width = 0;
+	private int height = 0;
+	private int samples = 0;
+	private final int[] lumaOffsets = new int[MAX_SAMPLES];
+	private final int[] chromaOffsets = new int[MAX_SAMPLES];
+
+	// the empty track, in 1/16 units
+	private final int[] backgroundY = new int[MAX_SAMPLES];
+	private final int[] backgroundU = new int[MAX_SAMPLES];
+	private final int[] backgroundV = new int[MAX_SAMPLES];
+	private int backgroundFrames = 0;
+
+	// the car passing
+	private final boolean[] foreground = new boolean[MAX_SAMPLES];
+	private final int[] frameHistogram = new int[BINS];
+	private final int[] passHistogram = new int[BINS];
+	private boolean passing = false;
+	private int passFrames = 0;
+	private final float[] signature = new float[BINS];
+
+	// registered cars, guarded by this
+	private final float[][] cars = new float[MAX_CARS][BINS];
+	private final boolean[] registered = new boolean[MAX_CARS];
+	private volatile int learning = -1;
+
+	/**
+	 * @param x column of the gate line, as a fraction of frame width
+	 * @param top first row, as a fraction of frame height
+	 * @param bottom last row, as a fraction of frame height
+	 */
+	public CarClassifier(float x, float top, float bottom) {
+		if (top >= bottom) {
+			throw new IllegalArgumentException("Invalid gate region");
+		}
+		this.x = x;
+		this.top = top;
+		this.bottom = bottom;
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Registers the signature of the next car passing the gate as the given car.
+	 */
+	public void learn(int car) {
+		learning = car;
+	}
+
+	public int getLearning() {
+		return learning;
+	}
+
+	public synchronized void setSignature(int car, float[] carSignature) {
+		System.arraycopy(carSignature, 0, cars[car], 0, BINS);
+		registered[car] = true;
+	}
+
+	public synchronized void clearSignature(int car) {
+		registered[car] = false;
+	}
+
+	public synchronized boolean isRegistered(int car) {
+		return registered[car];
+	}
+
+	/**
+	 * Processes an NV21 frame: the luma plane, followed by the interleaved VU plane at half resolution.
+	 *
+	 * @param caught true if the detector of the start/finish line caught this frame, see
+	 *            {@link LapDetector#isCaught()}: the pass ends with the first frame it does not
+	 */
+	public void process(byte[] nv21, int width, int height, boolean caught) {
+
+		if (width != this.width || height != this.height) {
+			resolve(width, height);
+		}
+
+		if (backgroundFrames < BACKGROUND_FRAMES) {
+			// a car passing before the empty track is known is not seen, but its pass is still reported
+			if (caught) {
+				passing = true;
+				return;
+			}
+			if (passing) {
+				endPass();
+			}
+			for (int i = 0; i < samples; i++) {
+				backgroundY[i] += (nv21[lumaOffsets[i]] & 0xFF) << 4;
+				backgroundV[i] += (nv21[chromaOffsets[i]] & 0xFF) << 4;
+				backgroundU[i] += (nv21[chromaOffsets[i] + 1] & 0xFF) << 4;
+			}
+			if (++backgroundFrames == BACKGROUND_FRAMES) {
+				for (int i = 0; i < samples; i++) {
+					backgroundY[i] /= BACKGROUND_FRAMES;
+					backgroundV[i] /= BACKGROUND_FRAMES;
+					backgroundU[i] /= BACKGROUND_FRAMES;
+				}
+			}
+			return;
+		}
+
+		for (int bin = 0; bin < BINS; bin++) {
+			frameHistogram[bin] = 0;
+		}
+		for (int i = 0; i < samples; i++) {
+			int y = nv21[lumaOffsets[i]] & 0xFF;
+			int v = nv21[chromaOffsets[i]] & 0xFF;
+			int u = nv21[chromaOffsets[i] + 1] & 0xFF;
+			boolean car = Math.abs((y << 4) - backgroundY[i]) > FOREGROUND_LUMA << 4
+					|| Math.abs((u << 4) - backgroundU[i]) + Math.abs((v << 4) - backgroundV[i]) > FOREGROUND_CHROMA << 4;
+			foreground[i] = car;
+			if (car) {
+				int bin = CHROMA_BINS[v << 8 | u];
+				frameHistogram[bin >= 0 ? bin : LUMA_BINS[y]]++;
+			}
+		}
+
+		if (caught) {
+			passing = true;
+			for (int bin = 0; bin < BINS; bin++) {
+				passHistogram[bin] += frameHistogram[bin];
+			}
+			if (++passFrames > MAX_PASS_FRAMES) {
+				// the pass goes on, so that its crossing is still reported when the gate clears
+				for (int i = 0; i < samples; i++) {
+					backgroundY[i] = (nv21[lumaOffsets[i]] & 0xFF) << 4;
+					backgroundV[i] = (nv21[chromaOffsets[i]] & 0xFF) << 4;
+					backgroundU[i] = (nv21[chromaOffsets[i] + 1] & 0xFF) << 4;
+				}
+				passFrames = 0;
+				for (int bin = 0; bin < BINS; bin++) {
+					passHistogram[bin] = 0;
+				}
+			}
+			return;
+		}
+
+		if (passing) {
+			endPass();
+		}
+
+		// no car: follow the lighting, leaving out the few pixels that differ
+		for (int i = 0; i < samples; i++) {
+			if (!foreground[i]) {
+				backgroundY[i] += (((nv21[lumaOffsets[i]] & 0xFF) << 4) - backgroundY[i]) >> BACKGROUND_SHIFT;
+				backgroundV[i] += (((nv21[chromaOffsets[i]] & 0xFF) << 4) - backgroundV[i]) >> BACKGROUND_SHIFT;
+				backgroundU[i] += (((nv21[chromaOffsets[i] + 1] & 0xFF) << 4) - backgroundU[i]) >> BACKGROUND_SHIFT;
+			}
+		}
+	}
+
+	private void clearPass() {
+		passing = false;
+		passFrames = 0;
+		for (int bin = 0; bin < BINS; bin++) {
+			passHistogram[bin] = 0;
+		}
+	}
+
+	private void endPass() {
+
+		int total = 0;
+		for (int bin = 0; bin < BINS; bin++) {
+			total += passHistogram[bin];
+		}
+		if (total == 0) {
+			// the detector saw something the samples did not: the crossing is reported, with no car
+			clearPass();
+			if (listener != null) {
+				listener.onCarPassed(-1, Float.MAX_VALUE);
+			}
+			return;
+		}
+		for (int bin = 0; bin < BINS; bin++) {
+			signature[bin] = (float) passHistogram[bin] / total;
+		}
+		clearPass();
+
+		int car = learning;
+		if (car >= 0) {
+			learning = -1;
+			setSignature(car, signature);
+			if (listener != null) {
+				listener.onCarLearned(car, signature);
+			}
+			return;
+		}
+
+		int best = -1;
+		float bestDistance = Float.MAX_VALUE;
+		float secondDistance = Float.MAX_VALUE;
+		synchronized (this) {
+			for (int i = 0; i < MAX_CARS; i++) {
+				if (!registered[i]) {
+					continue;
+				}
+				float d = distance(signature, cars[i]);
+				if (d < bestDistance) {
+					secondDistance = bestDistance;
+					bestDistance = d;
+					best = i;
+				}
+				else if (d < secondDistance) {
+					secondDistance = d;
+				}
+			}
+		}
+		if (bestDistance > MAX_DISTANCE || secondDistance - bestDistance < MIN_MARGIN) {
+			best = -1;
+		}
+		if (listener != null) {
+			listener.onCarPassed(best, bestDistance);
+		}
+	}
+
+	/**
+	 * L1 distance of two signatures.
+	 */
+	public static float distance(float[] a, float[] b) {
+		float d = 0;
+		for (int bin = 0; bin < BINS; bin++) {
+			d += Math.abs(a[bin] - b[bin]);
+		}
+		return d;
+	}
+
+	/**
+	 * Writes a signature as text, to be kept in the preferences.
+	 */
+	public static String format(float[] signature) {
+		StringBuilder s = new StringBuilder();
+		for (int bin = 0; bin < BINS; bin++) {
+			if (bin > 0) {
+				s.append(',');
+			}
+			s.append(signature[bin]);
+		}
+		return s.toString();
+	}
+
+	/**
+	 * Reads a signature written by {@link #format(float[])}.
+	 *
+	 * @throws IllegalArgumentException if the text is not a signature
+	 */
+	public static float[] parse(String text) {
+		String[] values = text.split(",");
+		if (values.length != BINS) {
+			throw new IllegalArgumentException("Invalid signature: " + text);
+		}
+		float[] signature = new float[BINS];
+		for (int bin = 0; bin < BINS; bin++) {
+			signature[bin] = Float.parseFloat(values[bin]);
+		}
+		return signature;
+	}
+
+	/**
+	 * Computes the sample offsets for the frame size: every other column of the band, and evenly spaced
+	 * rows, on even coordinates so each sample has its own chroma pair.
+	 */
+	private void resolve(int width, int height) {
+
+		this.width = width;
+		this.height = height;
+		backgroundFrames = 0;
+		clearPass();
+
+		int columns = SAMPLE_BAND / 2;
+		int colStart = Math.max(0, Math.min(width - SAMPLE_BAND, (int) (width * x) - SAMPLE_BAND / 2)) & ~1;
+		int first = (int) (height * top) & ~1;
+		int last = Math.min(height, (int) (height * bottom));
+		int rows = Math.max(1, Math.min(MAX_SAMPLES / columns, (last - first) / 2));
+		int rowStep = Math.max(2, (last - first) / rows & ~1);
+
+		samples = 0;
+		for (int row = first; row < last && samples + columns <= MAX_SAMPLES; row += rowStep) {
+			for (int c = 0; c < columns; c++) {
+				int col = Math.min(width - 2, colStart + c * 2);
+				lumaOffsets[samples] = row * width + col;
+				chromaOffsets[samples] = width * height + row / 2 * width + col;
+				backgroundY[samples] = 0;
+				backgroundU[samples] = 0;
+				backgroundV[samples] = 0;
+				samples++;
+			}
+		}
+	}
+}
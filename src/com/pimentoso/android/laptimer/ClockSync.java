@@ -0,0 +1,184 @@
+package com.pimentoso.android.laptimer;
+
+/**
+ * Estimates the offset and drift of the local clock against the clock of another device, from NTP style
+ * exchanges: the local time a request is sent (t0), the remote time it is received (t1) and replied to
+ * (t2), and the local time the reply comes back (t3).
+ *
+ * Each exchange gives an offset, ((t1 - t0) + (t2 - t3)) / 2, which is off by at most half the round
+ * trip (t3 - t0) - (t2 - t1), when the two legs of the trip take different times. The last
+ * {@link #SAMPLES} exchanges are kept, and a line is fitted by least squares through the ones whose round
+ * trip is close to the shortest, the others having waited in a queue somewhere: its height is the offset,
+ * its slope the drift of the two crystals, a few tens of parts per million, about a millisecond over a
+ * race of a minute.
+ *
+ * Exchanges are added on the network thread, and times converted on any thread.
+ *
+ * @author Pimentoso
+ */
+public class ClockSync {
+
+	/**
+	 * A clock in nanoseconds, {@link #SYSTEM} on the phone; others are used to simulate skewed clocks.
+	 */
+	public interface Clock {
+		long nanoTime();
+	}
+
+	public static final Clock SYSTEM = new Clock() {
+		@Override
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+	};
+
+	// exchanges kept for the fit: with one every GateLink.SYNC_INTERVAL_NANOS, about 25 seconds. The error
+	// of the slope shrinks with both the span and the number of exchanges, and 32 exchanges over 16
+	// seconds were still off by 20 to 35 ppm over loopback
+	public static final int SAMPLES = 128;
+
+	// exchanges needed before the offset is trusted
+	public static final int MIN_SAMPLES = 4;
+
+	// exchanges with a round trip up to this much, or twice the shortest one, are used for the fit
+	private static final long DELAY_SLACK_NANOS = 1000000L;
+
+	// a drift beyond this is not a crystal, but a bad fit
+	private static final double MAX_DRIFT = 500e-6;
+
+	// the drift is only fitted over this span of time, below it the noise of the offsets dominates
+	private static final long MIN_DRIFT_SPAN_NANOS = 2000000000L;
+
+	private final long[] localTimes = new long[SAMPLES];
+	private final long[] offsets = new long[SAMPLES];
+	private final long[] delays = new long[SAMPLES];
+	private int count = 0;
+
+	// the fitted line: remote = local + offset + drift * (local - reference)
+	private long reference = 0;
+	private long offset = 0;
+	private double drift = 0;
+	private long minDelay = 0;
+
+	/**
+	 * Adds an exchange, and fits the line again. Exchanges with a negative round trip are ignored.
+	 *
+	 * @return false if the exchange was ignored
+	 */
+	public synchronized boolean addSample(long t0, long t1, long t2, long t3) {
+
+		long delay = (t3 - t0) - (t2 - t1);
+		if (delay < 0) {
+			return false;
+		}
+		int slot = count % SAMPLES;
+		localTimes[slot] = t0 + (t3 - t0) / 2;
+		offsets[slot] = ((t1 - t0) + (t2 - t3)) / 2;
+		delays[slot] = delay;
+		count++;
+		fit();
+		return true;
+	}
+
+	private void fit() {
+
+		int n = Math.min(count, SAMPLES);
+		minDelay = Long.MAX_VALUE;
+		for (int i = 0; i < n; i++) {
+			minDelay = Math.min(minDelay, delays[i]);
+		}
+		long limit = minDelay + Math.max(DELAY_SLACK_NANOS, minDelay);
+
+		// offsets and times relative to the first good exchange, so the sums stay small
+		int used = 0;
+		long base = 0;
+		long baseOffset = 0;
+		long first = Long.MAX_VALUE;
+		long last = Long.MIN_VALUE;
+		double sumT = 0;
+		double sumO = 0;
+		for (int i = 0; i < n; i++) {
+			if (delays[i] > limit) {
+				continue;
+			}
+			if (used == 0) {
+				base = localTimes[i];
+				baseOffset = offsets[i];
+			}
+			sumT += localTimes[i] - base;
+			sumO += offsets[i] - baseOffset;
+			first = Math.min(first, localTimes[i]);
+			last = Math.max(last, localTimes[i]);
+			used++;
+		}
+		double meanT = sumT / used;
+		double meanO = sumO / used;
+
+		double slope = 0;
+		if (used > 2 && last - first >= MIN_DRIFT_SPAN_NANOS) {
+			double covariance = 0;
+			double variance = 0;
+			for (int i = 0; i < n; i++) {
+				if (delays[i] > limit) {
+					continue;
+				}
+				double t = localTimes[i] - base - meanT;
+				covariance += t * (offsets[i] - baseOffset - meanO);
+				variance += t * t;
+			}
+			slope = variance > 0 ? covariance / variance : 0;
+			slope = Math.max(-MAX_DRIFT, Math.min(MAX_DRIFT, slope));
+		}
+
+		reference = base + Math.round(meanT);
+		offset = baseOffset + Math.round(meanO);
+		drift = slope;
+	}
+
+	/**
+	 * True when there have been enough exchanges to convert times.
+	 */
+	public synchronized boolean isSynced() {
+		return count >= MIN_SAMPLES;
+	}
+
+	/**
+	 * Converts a local time to the remote clock.
+	 */
+	public synchronized long toRemote(long localNanos) {
+		return localNanos + offset + Math.round(drift * (localNanos - reference));
+	}
+
+	/**
+	 * Offset of the remote clock at the given local time.
+	 */
+	public synchronized long getOffsetNanos(long localNanos) {
+		return toRemote(localNanos) - localNanos;
+	}
+
+	/**
+	 * Drift of the remote clock against the local one, e.g. 20e-6 if it runs 20 ppm faster.
+	 */
+	public synchronized double getDrift() {
+		return drift;
+	}
+
+	/**
+	 * Shortest round trip of the kept exchanges: half of it bounds the error of the offset.
+	 */
+	public synchronized long getRoundTripNanos() {
+		return count > 0 ? minDelay : 0;
+	}
+
+	public synchronized int getSampleCount() {
+		return count;
+	}
+
+	public synchronized void reset() {
+		count = 0;
+		reference = 0;
+		offset = 0;
+		drift = 0;
+		minDelay = 0;
+	}
+}
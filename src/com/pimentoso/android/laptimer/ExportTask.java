@@ -0,0 +1,222 @@
+package com.pimentoso.android.laptimer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Exports laps to a file, meant to be run on a background executor. The laps are streamed from the
+ * source to the file, so the size of the export makes no difference to memory use.
+ *
+ * Progress is reported to the listener a few times per second, on the handler given to the constructor.
+ * The task can be cancelled at any time: the partial file is deleted, as it is when the export fails.
+ *
+ * @author Pimentoso
+ */
+public class ExportTask implements Runnable {
+
+	/**
+	 * Where the laps come from.
+	 */
+	public interface Source {
+
+		/**
+		 * Number of laps to export, for the progress.
+		 */
+		int getLapCount();
+
+		/**
+		 * Writes all the laps, calling {@link ExportTask#onLap()} after each one.
+		 */
+		void write(ExportWriter writer, ExportTask task) throws IOException;
+	}
+
+	/**
+	 * Called on the handler of the task.
+	 */
+	public interface Listener {
+
+		void onExportProgress(int laps, int total);
+
+		void onExportFinished(File file);
+
+		void onExportFailed(IOException e);
+
+		void onExportCancelled();
+	}
+
+	// progress is checked every this many laps
+	private static final int CHECK_LAPS = 256;
+
+	// and reported at most this often, in milliseconds
+	private static final long PROGRESS_INTERVAL = 100;
+
+	private final Source source;
+	private final int format;
+	private final int precision;
+	private final boolean history;
+	private final boolean multiLane;
+	private final File file;
+	private final Handler handler;
+	private final Listener listener;
+
+	private volatile boolean cancelled = false;
+	private int laps = 0;
+	private int total = 0;
+	private long lastProgress = 0;
+
+	/**
+	 * @param format see {@link ExportWriter#create(int, OutputStream, int, boolean, boolean)}
+	 */
+	public ExportTask(Source source, int format, int precision, boolean history, boolean multiLane, File file, Handler handler,
+			Listener listener) {
+		this.source = source;
+		this.format = format;
+		this.precision = precision;
+		this.history = history;
+		this.multiLane = multiLane;
+		this.file = file;
+		this.handler = handler;
+		this.listener = listener;
+	}
+
+	/**
+	 * A source with the laps of a single race, copied so that it can be written while the lists change.
+	 *
+	 * @param lanes laps of each lane
+	 * @param cars car of each lane, can be null
+	 */
+	public static Source snapshot(List<LapStore> lanes, final String[] cars, final long startedMillis) {
+
+		final LapStore[] copy = new LapStore[lanes.size()];
+		int count = 0;
+		for (int i = 0; i < copy.length; i++) {
+			copy[i] = new LapStore();
+			copy[i].addAll(lanes.get(i));
+			count += copy[i].size();
+		}
+		final int lapCount = count;
+
+		return new Source() {
+
+			@Override
+			public int getLapCount() {
+				return lapCount;
+			}
+
+			@Override
+			public void write(ExportWriter writer, ExportTask task) throws IOException {
+				writer.startSession(startedMillis);
+				for (int lane = 0; lane < copy.length; lane++) {
+					writer.startLane(lane, cars != null ? cars[lane] : null);
+					for (int i = 0; i < copy[lane].size(); i++) {
+						writer.lap(i + 1, copy[lane].get(i), copy[lane].getTimestamp(i), copy[lane].getRaw(i), copy[lane].getFlags(i));
+						task.onLap();
+					}
+				}
+			}
+		};
+	}
+
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public void run() {
+
+		try {
+			total = source.getLapCount();
+			File directory = file.getParentFile();
+			if (directory != null) {
+				directory.mkdirs();
+			}
+
+			OutputStream out = new FileOutputStream(file);
+			try {
+				ExportWriter writer = ExportWriter.create(format, out, precision, history, multiLane);
+				source.write(writer, this);
+				writer.finish();
+			}
+			finally {
+				out.close();
+			}
+
+			if (cancelled) {
+				throw new InterruptedIOException();
+			}
+			post(new Runnable() {
+				public void run() {
+					listener.onExportFinished(file);
+				}
+			});
+		}
+		catch (IOException e) {
+			fail(e);
+		}
+		catch (RuntimeException e) {
+			// a database error while reading the history
+			fail(new IOException(e.getMessage(), e));
+		}
+	}
+
+	/**
+	 * Deletes the partial file, and reports the failure, or the cancellation that caused it.
+	 */
+	private void fail(final IOException e) {
+		file.delete();
+		post(new Runnable() {
+			public void run() {
+				if (cancelled) {
+					listener.onExportCancelled();
+				}
+				else {
+					listener.onExportFailed(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Counts a written lap. Every few laps, reports the progress, and stops the export if it has been
+	 * cancelled.
+	 *
+	 * @throws InterruptedIOException if cancelled
+	 */
+	public void onLap() throws InterruptedIOException {
+
+		laps++;
+		if (laps % CHECK_LAPS != 0) {
+			return;
+		}
+
+		if (cancelled) {
+			throw new InterruptedIOException();
+		}
+
+		long now = SystemClock.uptimeMillis();
+		if (now - lastProgress >= PROGRESS_INTERVAL) {
+			lastProgress = now;
+			final int done = laps;
+			post(new Runnable() {
+				public void run() {
+					listener.onExportProgress(done, Math.max(done, total));
+				}
+			});
+		}
+	}
+
+	private void post(Runnable runnable) {
+		handler.post(runnable);
+	}
+}
@@ -0,0 +1,312 @@
+package com.pimentoso.android.laptimer;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Writes laps to a stream as they come, in one of the export formats. Nothing is kept in memory, so a
+ * history of any size can be exported.
+ *
+ * Laps are given session by session and lane by lane: {@link #startSession(long)}, then for each lane
+ * {@link #startLane(int, String)} and its laps, then {@link #finish()} at the end. The same calls are
+ * made by {@link LapArchive#read(java.io.InputStream, ExportWriter)} while reading an archive, so a
+ * writer can also receive imported laps.
+ *
+ * @author Pimentoso
+ */
+public abstract class ExportWriter {
+
+	public static final int CSV = 0;
+	public static final int JSON = 1;
+	public static final int BINARY = 2;
+
+	private static final String[] EXTENSIONS = { ".csv", ".json", ".m4wl" };
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * @param format {@link #CSV}, {@link #JSON} or {@link #BINARY}
+	 * @param precision precision of the formatted lap times, see {@link TimeFormat}
+	 * @param history if true, every lap is written with its session, car and time of day, otherwise only
+	 *            the lane (when there are more than one) and the lap, as for a single race
+	 * @param multiLane if true, the lane is written even for a single race
+	 */
+	public static ExportWriter create(int format, OutputStream out, int precision, boolean history, boolean multiLane) {
+		switch (format) {
+			case CSV:
+				return new Csv(out, precision, history, multiLane);
+			case JSON:
+				return new Json(out, precision);
+			case BINARY:
+				return new LapArchive.Writer(out);
+			default:
+				throw new IllegalArgumentException("Invalid export format: " + format);
+		}
+	}
+
+	/**
+	 * File extension of a format, with the dot.
+	 */
+	public static String getExtension(int format) {
+		return EXTENSIONS[format];
+	}
+
+	/**
+	 * @param startedMillis wall clock time of the start
+	 */
+	public abstract void startSession(long startedMillis) throws IOException;
+
+	/**
+	 * @param lane lane number, from 0
+	 * @param car car name, can be null
+	 */
+	public abstract void startLane(int lane, String car) throws IOException;
+
+	/**
+	 * @param number lap number in the lane, from 1
+	 * @param rawMillis lap time measured by the detector, different from the lap time if the lap was
+	 *            corrected, see {@link LapFilter}
+	 * @param flags see {@link LapStore#getFlags(int)}
+	 */
+	public abstract void lap(int number, long lapMillis, long timestampMillis, long rawMillis, int flags) throws IOException;
+
+	/**
+	 * Ends the output, and flushes it. The stream is not closed.
+	 */
+	public abstract void finish() throws IOException;
+
+	private static Writer textWriter(OutputStream out) {
+		return new BufferedWriter(new OutputStreamWriter(out, UTF8), 16384);
+	}
+
+	/**
+	 * One line per lap, as saved from the menu.
+	 */
+	private static class Csv extends ExportWriter {
+
+		private final Writer out;
+		private final int precision;
+		private final boolean history;
+		private final boolean lanes;
+		private final char[] time = new char[TimeFormat.MAX_LENGTH];
+
+		private long session;
+		private int lane;
+		private String car;
+		private boolean header = false;
+
+		Csv(OutputStream stream, int precision, boolean history, boolean multiLane) {
+			this.out = textWriter(stream);
+			this.precision = precision;
+			this.history = history;
+			this.lanes = history || multiLane;
+		}
+
+		@Override
+		public void startSession(long startedMillis) throws IOException {
+			session = startedMillis;
+			writeHeader();
+		}
+
+		private void writeHeader() throws IOException {
+			if (!header) {
+				header = true;
+				out.write(history ? "session,car,lane,lap,time,milliseconds,timestamp,raw_milliseconds,possibly_missed,merged"
+						: (lanes ? "lane,lap,time,milliseconds,raw_milliseconds,possibly_missed,merged" : "lap,time,milliseconds,raw_milliseconds,possibly_missed,merged"));
+				out.write("\r\n");
+			}
+		}
+
+		@Override
+		public void startLane(int lane, String car) throws IOException {
+			this.lane = lane;
+			this.car = car;
+		}
+
+		@Override
+		public void lap(int number, long lapMillis, long timestampMillis, long rawMillis, int flags) throws IOException {
+			if (history) {
+				out.write(Long.toString(session));
+				out.write(',');
+				if (car != null) {
+					// no quoting: commas and quotes are blanked, so the name stays in its field
+					out.write(car.replace(',', ' ').replace('"', ' '));
+				}
+				out.write(',');
+			}
+			if (lanes) {
+				out.write(Integer.toString(lane + 1));
+				out.write(',');
+			}
+			out.write(Integer.toString(number));
+			out.write(',');
+			out.write(time, 0, TimeFormat.format(lapMillis, precision, time, 0));
+			out.write(',');
+			out.write(Long.toString(lapMillis));
+			if (history) {
+				out.write(',');
+				out.write(Long.toString(timestampMillis));
+			}
+			out.write(',');
+			out.write(Long.toString(rawMillis));
+			out.write((flags & LapStore.FLAG_POSSIBLY_MISSED) != 0 ? ",1" : ",0");
+			out.write(',');
+			out.write(Integer.toString(LapStore.mergedCount(flags)));
+			out.write("\r\n");
+		}
+
+		@Override
+		public void finish() throws IOException {
+			writeHeader();
+			out.flush();
+		}
+	}
+
+	/**
+	 * A sessions array, each with its lanes, each with its laps and their {@link LapStatistics}, gathered
+	 * while the laps are written.
+	 */
+	private static class Json extends ExportWriter {
+
+		private final Writer out;
+		private final int precision;
+		private final char[] time = new char[TimeFormat.MAX_LENGTH];
+		private final LapStatistics stats = new LapStatistics();
+
+		private boolean inSession = false;
+		private boolean inLane = false;
+		private boolean firstItem = true;
+
+		Json(OutputStream stream, int precision) {
+			this.out = textWriter(stream);
+			this.precision = precision;
+		}
+
+		@Override
+		public void startSession(long startedMillis) throws IOException {
+			endLane();
+			if (inSession) {
+				out.write("]},\n");
+			}
+			else {
+				out.write("{\"sessions\":[\n");
+			}
+			inSession = true;
+			firstItem = true;
+			out.write("{\"started\":");
+			out.write(Long.toString(startedMillis));
+			out.write(",\"lanes\":[");
+		}
+
+		@Override
+		public void startLane(int lane, String car) throws IOException {
+			endLane();
+			if (!firstItem) {
+				out.write(',');
+			}
+			inLane = true;
+			firstItem = true;
+			stats.clear();
+			out.write("\n{\"lane\":");
+			out.write(Integer.toString(lane + 1));
+			if (car != null && car.length() > 0) {
+				out.write(",\"car\":");
+				writeString(car);
+			}
+			out.write(",\"laps\":[");
+		}
+
+		private void endLane() throws IOException {
+			if (inLane) {
+				out.write(']');
+				if (stats.getCount() > 0) {
+					writeStatistics();
+				}
+				out.write('}');
+				inLane = false;
+				firstItem = false;
+			}
+		}
+
+		@Override
+		public void lap(int number, long lapMillis, long timestampMillis, long rawMillis, int flags) throws IOException {
+			if (!firstItem) {
+				out.write(',');
+			}
+			firstItem = false;
+			out.write("\n{\"lap\":");
+			out.write(Integer.toString(number));
+			out.write(",\"time\":\"");
+			out.write(time, 0, TimeFormat.format(lapMillis, precision, time, 0));
+			out.write("\",\"milliseconds\":");
+			out.write(Long.toString(lapMillis));
+			out.write(",\"timestamp\":");
+			out.write(Long.toString(timestampMillis));
+			if (rawMillis != lapMillis) {
+				out.write(",\"raw\":");
+				out.write(Long.toString(rawMillis));
+			}
+			if ((flags & LapStore.FLAG_POSSIBLY_MISSED) != 0) {
+				out.write(",\"possiblyMissed\":true");
+			}
+			if (LapStore.mergedCount(flags) > 0) {
+				out.write(",\"merged\":");
+				out.write(Integer.toString(LapStore.mergedCount(flags)));
+			}
+			out.write('}');
+			stats.add(lapMillis);
+		}
+
+		private void writeStatistics() throws IOException {
+			out.write(",\n\"stats\":{\"best\":");
+			out.write(Long.toString(stats.getBest()));
+			out.write(",\"mean\":");
+			out.write(Long.toString(Math.round(stats.getMean())));
+			out.write(",\"deviation\":");
+			out.write(Long.toString(Math.round(stats.getStandardDeviation())));
+			out.write(",\"median\":");
+			out.write(Long.toString(stats.getMedian()));
+			out.write(",\"p90\":");
+			out.write(Long.toString(stats.getP90()));
+			if (stats.getCount() >= stats.getWindow()) {
+				out.write(",\"bestRolling\":{\"laps\":");
+				out.write(Integer.toString(stats.getWindow()));
+				out.write(",\"mean\":");
+				out.write(Long.toString(Math.round(stats.getBestRollingMean())));
+				out.write('}');
+			}
+			out.write(",\"theoreticalBest\":");
+			out.write(Long.toString(stats.getTheoreticalBest()));
+			out.write('}');
+		}
+
+		private void writeString(String s) throws IOException {
+			out.write('"');
+			for (int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				if (c == '"' || c == '\\') {
+					out.write('\\');
+					out.write(c);
+				}
+				else if (c < 0x20) {
+					out.write(String.format("\\u%04x", (int) c));
+				}
+				else {
+					out.write(c);
+				}
+			}
+			out.write('"');
+		}
+
+		@Override
+		public void finish() throws IOException {
+			endLane();
+			out.write(inSession ? "]}\n]}\n" : "{\"sessions\":[]}\n");
+			out.flush();
+		}
+	}
+}
@@ -1,27 +1,68 @@
 package com.pimentoso.android.laptimer;
 
-import android.util.Log;
-
+/**
+ * Counts the frames of each second, on the camera thread. The last count can be formatted on any thread,
+ * into a buffer, so showing it allocates nothing.
+ */
 public class FPSCounter {
 
-    private int frames = 0;
-    private int fps = 0;
-    private long startTime = System.nanoTime();
-	private StringBuilder sb = new StringBuilder();
-    
-    public void update() {
-        frames++;
-        if(System.nanoTime() - startTime >= 1000000000) {
-        	fps = frames;
-            frames = 0;
-            startTime = System.nanoTime();
-        	Log.d("Mini4WD Lap Timer FPS", printFrames());
-        }
-    }
-
-	public String printFrames() {
-		sb.setLength(0);
-		sb.append("fps: ").append(fps);
-		return sb.toString();
+	private static final char[] PREFIX = "fps: ".toCharArray();
+
+	/**
+	 * Buffer size that fits any {@link #format(char[])} output.
+	 */
+	public static final int MAX_LENGTH = PREFIX.length + 23;
+
+	private int frames = 0;
+	private volatile int fps = 0;
+	private volatile int targetFps = 0;
+	private long startTime = System.nanoTime();
+
+	/**
+	 * Sets the frame rate requested to the camera, shown next to the measured one. 0 if not known.
+	 */
+	public void setTargetFps(int targetFps) {
+		this.targetFps = targetFps;
+	}
+
+	/**
+	 * Counts a frame. Returns true once per second, when a new fps value is available.
+	 */
+	public boolean update() {
+		frames++;
+		long now = System.nanoTime();
+		if (now - startTime >= 1000000000) {
+			fps = frames;
+			frames = 0;
+			startTime = now;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Writes "fps: measured/target" into the buffer, returns its length.
+	 */
+	public int format(char[] out) {
+		System.arraycopy(PREFIX, 0, out, 0, PREFIX.length);
+		int length = appendInt(fps, out, PREFIX.length);
+		int target = targetFps;
+		if (target > 0) {
+			out[length++] = '/';
+			length = appendInt(target, out, length);
+		}
+		return length;
+	}
+
+	private static int appendInt(int value, char[] out, int offset) {
+		int digits = 1;
+		for (int n = value / 10; n > 0; n /= 10) {
+			digits++;
+		}
+		for (int i = offset + digits - 1; i >= offset; i--) {
+			out[i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+		return offset + digits;
 	}
 }
@@ -0,0 +1,93 @@
+package com.pimentoso.android.laptimer;
+
+import java.util.Arrays;
+
+/**
+ * Estimates when each preview frame was captured, from the time its callback arrived.
+ *
+ * Frames are captured at a regular interval, but callbacks arrive late by a variable queueing delay.
+ * The clock keeps a per-session model of the frame interval and predicts the capture time of each frame
+ * from the previous one. Since the delay can only push an arrival later, the prediction follows the
+ * lower envelope of the arrival times: it snaps down to an arrival that comes early, and only creeps up
+ * slowly otherwise. The estimate keeps a constant offset from the real capture time (the minimum
+ * delay), which cancels out when subtracting two crossing times.
+ *
+ * All times are in nanoseconds on the {@link System#nanoTime()} clock.
+ *
+ * @author Pimentoso
+ */
+public class FrameClock {
+
+	// the frame interval is the median of this many recent callback intervals, so that jitter and drops average out
+	private static final int WINDOW = 31;
+
+	// how fast the prediction creeps up towards late arrivals
+	private static final double DRIFT_GAIN = 1.0 / 32;
+
+	// fraction of an interval an arrival can be early, and still count as the next frame
+	private static final double STEP_TOLERANCE = 0.25;
+
+	// last callback intervals, and scratch space to find their median
+	private final long[] deltas = new long[WINDOW];
+	private final long[] sorted = new long[WINDOW];
+
+	private long lastArrival = 0;
+	private long lastEstimate = 0;
+	private long interval = 0;
+	private int frames = 0;
+
+	public void reset() {
+		lastArrival = 0;
+		lastEstimate = 0;
+		interval = 0;
+		frames = 0;
+	}
+
+	/**
+	 * Registers a frame that arrived at the given time, and returns its estimated capture time.
+	 */
+	public long onFrame(long arrivalNanos) {
+
+		frames++;
+
+		if (frames == 1) {
+			lastArrival = arrivalNanos;
+			lastEstimate = arrivalNanos;
+			return arrivalNanos;
+		}
+
+		deltas[(frames - 2) % WINDOW] = arrivalNanos - lastArrival;
+		lastArrival = arrivalNanos;
+
+		int count = Math.min(frames - 1, WINDOW);
+		System.arraycopy(deltas, 0, sorted, 0, count);
+		Arrays.sort(sorted, 0, count);
+		interval = sorted[count / 2];
+
+		// number of frame intervals since the previous frame (more than 1 if frames were dropped).
+		// rounded down, since a late arrival is much more likely than a dropped frame
+		long steps = 1;
+		if (interval > 0) {
+			steps = Math.max(1, (long) ((double) (arrivalNanos - lastEstimate) / interval + STEP_TOLERANCE));
+		}
+
+		long estimate = lastEstimate + steps * interval;
+		if (arrivalNanos < estimate) {
+			// arrived earlier than predicted: the model was late
+			estimate = arrivalNanos;
+		}
+		else {
+			estimate += (long) ((arrivalNanos - estimate) * DRIFT_GAIN);
+		}
+
+		lastEstimate = estimate;
+		return estimate;
+	}
+
+	/**
+	 * Returns the current frame interval estimate, 0 if not known yet.
+	 */
+	public long getFrameInterval() {
+		return interval;
+	}
+}
@@ -0,0 +1,126 @@
+package com.pimentoso.android.laptimer;
+
+/**
+ * Finds the frames the camera did not deliver, from the gaps between frame timestamps.
+ *
+ * A gap is an interval longer than {@link #GAP_RATIO} times the expected frame interval: the one of the
+ * frame rate asked to the camera, or, when it is not known, a running average of the intervals that were
+ * not gaps. With a variable frame rate range the camera may slow down to its minimum at any time, e.g.
+ * in low light, so the interval of the minimum is expected. When the detection holds the callback buffers for too long, the camera runs out of them and
+ * skips frames; a car crossing the gate during a gap is seen late, or not at all.
+ *
+ * The last {@link #WINDOWS} gaps are kept as windows of time, so a lap can be checked against them with
+ * {@link #overlaps(long, long)}. Frames are counted and laps are checked on the camera thread; the
+ * counters can be read from any thread. Nothing is allocated per frame.
+ *
+ * @author Pimentoso
+ */
+public class FrameGaps {
+
+	public static final float GAP_RATIO = 1.5f;
+
+	// number of gaps kept, at least as many as can happen during a lap
+	private static final int WINDOWS = 64;
+
+	// weight of a new interval in the running average
+	private static final double AVERAGE_GAIN = 1.0 / 16;
+
+	// camera thread only
+	private final long[] gapStarts = new long[WINDOWS];
+	private final long[] gapEnds = new long[WINDOWS];
+	private long lastFrameNanos = 0;
+	private double averageNanos = 0;
+
+	private volatile long targetIntervalNanos = 0;
+	private volatile int frames = 0;
+	private volatile int gaps = 0;
+	private volatile int droppedFrames = 0;
+	private volatile boolean resetPending = false;
+
+	/**
+	 * Sets the frame rate range asked to the camera, 0 if not known.
+	 */
+	public void setFpsRange(int minFps, int maxFps) {
+		targetIntervalNanos = minFps > 0 && maxFps > 0 ? 1000000000L / minFps : 0;
+	}
+
+	/**
+	 * Counts a frame. Camera thread only.
+	 *
+	 * @param frameNanos capture time of the frame
+	 * @return true if frames were dropped just before this one
+	 */
+	public boolean onFrame(long frameNanos) {
+
+		if (resetPending) {
+			resetPending = false;
+			lastFrameNanos = 0;
+			averageNanos = 0;
+			frames = 0;
+			gaps = 0;
+			droppedFrames = 0;
+		}
+
+		long last = lastFrameNanos;
+		lastFrameNanos = frameNanos;
+		frames++;
+		if (last == 0) {
+			return false;
+		}
+
+		long interval = frameNanos - last;
+		long expected = targetIntervalNanos > 0 ? targetIntervalNanos : (long) averageNanos;
+		if (expected > 0 && interval > expected * GAP_RATIO) {
+			int slot = gaps % WINDOWS;
+			gapStarts[slot] = last;
+			gapEnds[slot] = frameNanos;
+			droppedFrames += (int) ((interval + expected / 2) / expected) - 1;
+			gaps++;
+			return true;
+		}
+
+		averageNanos = averageNanos == 0 ? interval : averageNanos + (interval - averageNanos) * AVERAGE_GAIN;
+		return false;
+	}
+
+	/**
+	 * Tells if frames were dropped between two times, e.g. the two crossings of a lap. A gap ending at
+	 * the start counts: the crossing was seen on the first frame after it, and may be late. Camera thread
+	 * only.
+	 */
+	public boolean overlaps(long startNanos, long endNanos) {
+		int count = gaps;
+		int kept = Math.min(count, WINDOWS);
+		for (int i = 1; i <= kept; i++) {
+			int slot = (count - i) % WINDOWS;
+			if (gapEnds[slot] < startNanos) {
+				// the older ones end earlier still
+				return false;
+			}
+			if (gapStarts[slot] < endNanos) {
+				return true;
+			}
+		}
+		// more gaps than are kept since the start: some of them are in the lap
+		return count > WINDOWS;
+	}
+
+	public int getFrames() {
+		return frames;
+	}
+
+	public int getGapCount() {
+		return gaps;
+	}
+
+	public int getDroppedFrames() {
+		return droppedFrames;
+	}
+
+	/**
+	 * Starts counting again, before the next frame.
+	 */
+	public void reset() {
+		resetPending = true;
+	}
+}
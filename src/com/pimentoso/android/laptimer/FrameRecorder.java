@@ -0,0 +1,240 @@
+package com.pimentoso.android.laptimer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Records the luma around the gate, with the capture time of each frame, so that a session can be
+ * replayed through the detector on a desktop JVM (see {@link FrameRecording}).
+ *
+ * Only a band of {@link #CROP_WIDTH} columns around each gate of the {@link GateLayout} is stored, over
+ * the full height: this covers every lane and line scan setting, in a few KB per frame and gate. The bytes are
+ * copied into a pooled buffer on the camera thread and written to the stream by a background thread. If
+ * the writer falls behind and the pool runs out, frames are dropped and counted; in the replay they look
+ * like frames dropped by the camera.
+ *
+ * File format, big endian: a header with magic, version, frame size, the detection settings of the
+ * session, the gate layout as text and the position of each crop, then for each frame the timestamp in
+ * nanoseconds as a long, followed by each crop, row by row. Version 1 had a single crop in the middle of
+ * the frame, and no layout.
+ *
+ * @author Pimentoso
+ */
+public class FrameRecorder {
+
+	static final int MAGIC = 0x4D345752; // "M4WR"
+	static final int VERSION = 2;
+
+	public static final int CROP_WIDTH = 32;
+
+	// frames that can wait for the writer thread
+	private static final int POOL_FRAMES = 32;
+
+	// tells the writer thread to stop
+	private static final byte[] END = new byte[0];
+
+	private final int width;
+	private final int height;
+	private final int[] cropX;
+	private final int cropWidth;
+
+	private final ArrayBlockingQueue<byte[]> free = new ArrayBlockingQueue<byte[]>(POOL_FRAMES);
+	private final ArrayBlockingQueue<byte[]> filled = new ArrayBlockingQueue<byte[]>(POOL_FRAMES + 1);
+	private final DataOutputStream out;
+	private final Thread writer;
+
+	private volatile boolean closed = false;
+	private volatile IOException error;
+	private volatile int frames = 0;
+	private volatile int dropped = 0;
+
+	/**
+	 * Writes the header and starts the writer thread. The settings are stored as the defaults of the replay.
+	 *
+	 * @param width frame width
+	 * @param height frame height
+	 * @param layout the gates, a crop is stored around each
+	 */
+	public FrameRecorder(OutputStream stream, int width, int height, int threshold, int lanes, GateLayout layout, boolean lineScan, int band,
+			int segments, boolean interpolate) throws IOException {
+
+		this.width = width;
+		this.height = height;
+		this.cropWidth = Math.min(CROP_WIDTH, width);
+		this.cropX = new int[layout.getGateCount()];
+		for (int gate = 0; gate < cropX.length; gate++) {
+			// centered on the gate column, as the line scan band is
+			int center = (int) (width * (layout.getPosition(gate) / 100f));
+			cropX[gate] = Math.max(0, Math.min(width - cropWidth, center - cropWidth / 2));
+		}
+
+		out = new DataOutputStream(new BufferedOutputStream(stream, 65536));
+		writeHeader(threshold, lanes, layout, lineScan, band, segments, interpolate);
+
+		for (int i = 0; i < POOL_FRAMES; i++) {
+			free.add(new byte[8 + cropX.length * cropWidth * height]);
+		}
+
+		writer = new Thread(new Runnable() {
+			public void run() {
+				write();
+			}
+		}, "FrameRecorder");
+		writer.start();
+	}
+
+	private void writeHeader(int threshold, int lanes, GateLayout layout, boolean lineScan, int band, int segments, boolean interpolate)
+			throws IOException {
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeInt(width);
+		out.writeInt(height);
+		out.writeInt(threshold);
+		out.writeByte(lanes);
+		out.writeBoolean(lineScan);
+		out.writeInt(band);
+		out.writeInt(segments);
+		out.writeBoolean(interpolate);
+		out.writeUTF(layout.toString());
+		out.writeInt(cropWidth);
+		out.writeByte(cropX.length);
+		for (int x : cropX) {
+			out.writeInt(x);
+		}
+	}
+
+	/**
+	 * Records a frame from a byte array (NV21 preview buffer). Frames of a different size are ignored.
+	 */
+	public void record(byte[] luma, int width, int height, long timestampNanos) {
+
+		byte[] buffer = obtain(width, height, timestampNanos);
+		if (buffer == null) {
+			return;
+		}
+
+		int offset = 8;
+		for (int x : cropX) {
+			for (int row = 0; row < height; row++, offset += cropWidth) {
+				System.arraycopy(luma, row * width + x, buffer, offset, cropWidth);
+			}
+		}
+		filled.offer(buffer);
+	}
+
+	/**
+	 * Records a frame from the Y plane of a camera2 image. Frames of a different size are ignored. The
+	 * buffer position is restored.
+	 */
+	public void record(ByteBuffer luma, int width, int height, int rowStride, long timestampNanos) {
+
+		byte[] buffer = obtain(width, height, timestampNanos);
+		if (buffer == null) {
+			return;
+		}
+
+		int position = luma.position();
+		int offset = 8;
+		for (int x : cropX) {
+			for (int row = 0; row < height; row++, offset += cropWidth) {
+				luma.position(row * rowStride + x);
+				luma.get(buffer, offset, cropWidth);
+			}
+		}
+		luma.position(position);
+		filled.offer(buffer);
+	}
+
+	/**
+	 * Returns a free buffer with the timestamp written in, or null if the frame cannot be recorded.
+	 */
+	private byte[] obtain(int width, int height, long timestampNanos) {
+
+		if (closed || error != null || width != this.width || height != this.height) {
+			return null;
+		}
+
+		byte[] buffer = free.poll();
+		if (buffer == null) {
+			dropped++;
+			return null;
+		}
+		frames++;
+
+		for (int i = 7; i >= 0; i--) {
+			buffer[i] = (byte) timestampNanos;
+			timestampNanos >>>= 8;
+		}
+		return buffer;
+	}
+
+	private void write() {
+		try {
+			while (true) {
+				byte[] buffer = filled.take();
+				if (buffer == END) {
+					break;
+				}
+				out.write(buffer);
+				free.offer(buffer);
+			}
+			out.close();
+		}
+		catch (IOException e) {
+			error = e;
+			try {
+				out.close();
+			}
+			catch (IOException ignored) {
+				// already failed
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Frames recorded so far.
+	 */
+	public int getFrameCount() {
+		return frames;
+	}
+
+	/**
+	 * Frames dropped because the writer was behind.
+	 */
+	public int getDroppedCount() {
+		return dropped;
+	}
+
+	/**
+	 * Stops recording, writes the pending frames and closes the stream. Frames recorded concurrently are
+	 * discarded.
+	 *
+	 * @throws IOException if a write has failed during the recording
+	 */
+	public void close() throws IOException {
+
+		if (closed) {
+			return;
+		}
+		closed = true;
+
+		filled.offer(END);
+		try {
+			writer.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		if (error != null) {
+			throw error;
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package com.pimentoso.android.laptimer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a file written by {@link FrameRecorder}, one frame at a time.
+ *
+ * Each frame is written into a full size luma buffer: only the recorded columns around each gate are
+ * filled, the rest of the buffer is left as it is. Any gate that lies within the recorded columns is read
+ * exactly as it was on the phone. Recordings of version 1 have a single crop in the middle of the frame,
+ * and are read with the single gate layout.
+ *
+ * @author Pimentoso
+ */
+public class FrameRecording {
+
+	public final int width;
+	public final int height;
+	// first column of each crop, and their width
+	public final int[] cropX;
+	public final int cropWidth;
+
+	// detection settings at recording time
+	public final int threshold;
+	public final int lanes;
+	public final boolean lineScan;
+	public final int band;
+	public final int segments;
+	public final boolean interpolate;
+	public final GateLayout layout;
+
+	private final DataInputStream in;
+	private final byte[] crop;
+	private long timestamp;
+
+	public FrameRecording(InputStream stream) throws IOException {
+
+		in = new DataInputStream(new BufferedInputStream(stream, 65536));
+
+		if (in.readInt() != FrameRecorder.MAGIC) {
+			throw new IOException("Not a frame recording");
+		}
+		int version = in.readShort();
+		if (version != 1 && version != FrameRecorder.VERSION) {
+			throw new IOException("Unsupported recording version: " + version);
+		}
+
+		width = in.readInt();
+		height = in.readInt();
+		int[] x = null;
+		int w = 0;
+		if (version == 1) {
+			x = new int[] { in.readInt() };
+			w = in.readInt();
+		}
+		threshold = in.readInt();
+		lanes = in.readByte();
+		lineScan = in.readBoolean();
+		band = in.readInt();
+		segments = in.readInt();
+		interpolate = in.readBoolean();
+
+		if (version == 1) {
+			layout = GateLayout.single();
+		}
+		else {
+			try {
+				layout = GateLayout.parse(in.readUTF());
+			}
+			catch (IllegalArgumentException e) {
+				throw new IOException("Corrupt frame recording");
+			}
+			w = in.readInt();
+			x = new int[in.readUnsignedByte()];
+			for (int i = 0; i < x.length; i++) {
+				x[i] = in.readInt();
+			}
+		}
+		for (int column : x) {
+			if (w < 1 || column < 0 || column + w > width) {
+				throw new IOException("Corrupt frame recording");
+			}
+		}
+		cropX = x;
+		cropWidth = w;
+
+		crop = new byte[cropX.length * cropWidth * height];
+	}
+
+	/**
+	 * Reads the next frame into the recorded columns of the given buffer.
+	 *
+	 * @param luma a buffer of at least width * height bytes
+	 * @return false at the end of the recording
+	 */
+	public boolean next(byte[] luma) throws IOException {
+
+		try {
+			timestamp = in.readLong();
+		}
+		catch (EOFException e) {
+			return false;
+		}
+
+		try {
+			in.readFully(crop);
+		}
+		catch (EOFException e) {
+			// the last frame was cut short, the app was probably killed while recording
+			return false;
+		}
+
+		int offset = 0;
+		for (int x : cropX) {
+			for (int row = 0; row < height; row++, offset += cropWidth) {
+				System.arraycopy(crop, offset, luma, row * width + x, cropWidth);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Capture time of the last frame read, in nanoseconds.
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+}
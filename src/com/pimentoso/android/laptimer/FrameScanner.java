@@ -0,0 +1,223 @@
+package com.pimentoso.android.laptimer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reads the average lightness of the segments of several gate regions, in a single pass over the luma
+ * plane.
+ *
+ * When the frame size is known, every region is broken down into runs: contiguous ranges of bytes on a
+ * row, each belonging to one segment. The runs of all regions are sorted by their position in the
+ * buffer, so each frame is read once from start to end, whatever the number and the placement of the
+ * regions. The per-frame loop only sums array ranges and allocates nothing.
+ *
+ * Frames can come as a byte array, as in the NV21 buffers of the camera preview callback, or as the Y
+ * plane of a YUV_420_888 image, which is a direct {@link ByteBuffer} with padding at the end of each row.
+ * Only the bytes of the runs are read from the buffer, the frame is never copied.
+ *
+ * @author Pimentoso
+ */
+public class FrameScanner {
+
+	private final GateRegion[] regions;
+
+	// average lightness of each segment of each region, in the last scanned frame
+	private final int[][] values;
+
+	// frame size and row stride the runs were computed for
+	private int width = 0;
+	private int height = 0;
+	private int rowStride = 0;
+
+	// runs, sorted by offset in the buffer
+	private int runCount = 0;
+	private int[] runOffset;
+	private int[] runLength;
+	private int[] runSlot;
+
+	// one slot per segment of each region
+	private final int[] slotRegion;
+	private final int[] slotSegment;
+	private final int[] slotPixels;
+	private final int[] slotSum;
+
+	public FrameScanner(GateRegion... regions) {
+
+		this.regions = regions;
+		this.values = new int[regions.length][];
+
+		int slots = 0;
+		for (int r = 0; r < regions.length; r++) {
+			values[r] = new int[regions[r].getSegmentCount()];
+			slots += regions[r].getSegmentCount();
+		}
+
+		slotRegion = new int[slots];
+		slotSegment = new int[slots];
+		slotPixels = new int[slots];
+		slotSum = new int[slots];
+
+		int slot = 0;
+		for (int r = 0; r < regions.length; r++) {
+			for (int s = 0; s < regions[r].getSegmentCount(); s++) {
+				slotRegion[slot] = r;
+				slotSegment[slot] = s;
+				slot++;
+			}
+		}
+	}
+
+	public int getRegionCount() {
+		return regions.length;
+	}
+
+	public GateRegion getRegion(int region) {
+		return regions[region];
+	}
+
+	/**
+	 * Average lightness of each segment of the given region, in the last scanned frame. The array is
+	 * reused for every frame.
+	 */
+	public int[] getValues(int region) {
+		return values[region];
+	}
+
+	/**
+	 * Number of luma pixels read for each frame.
+	 */
+	public int getPixelCount() {
+		int count = 0;
+		for (int r = 0; r < runCount; r++) {
+			count += runLength[r];
+		}
+		return count;
+	}
+
+	/**
+	 * Reads a frame.
+	 *
+	 * @param luma the luma plane, one byte per pixel, row by row (the first part of a NV21 buffer)
+	 * @param width frame width
+	 * @param height frame height
+	 */
+	public void scan(byte[] luma, int width, int height) {
+
+		if (width != this.width || height != this.height || width != rowStride) {
+			resolve(width, height, width);
+		}
+
+		int[] slotSum = this.slotSum;
+		Arrays.fill(slotSum, 0);
+
+		int[] runOffset = this.runOffset;
+		int[] runLength = this.runLength;
+		int[] runSlot = this.runSlot;
+		for (int r = 0; r < runCount; r++) {
+			int sum = 0;
+			for (int i = runOffset[r], end = i + runLength[r]; i < end; i++) {
+				sum += luma[i] & 0xFF;
+			}
+			slotSum[runSlot[r]] += sum;
+		}
+
+		average();
+	}
+
+	/**
+	 * Reads a frame from a buffer, with absolute reads (the buffer position is not changed).
+	 *
+	 * @param luma the luma plane, one byte per pixel, rows starting every rowStride bytes
+	 * @param width frame width
+	 * @param height frame height
+	 * @param rowStride distance in bytes between the start of two rows
+	 */
+	public void scan(ByteBuffer luma, int width, int height, int rowStride) {
+
+		if (width != this.width || height != this.height || rowStride != this.rowStride) {
+			resolve(width, height, rowStride);
+		}
+
+		int[] slotSum = this.slotSum;
+		Arrays.fill(slotSum, 0);
+
+		int[] runOffset = this.runOffset;
+		int[] runLength = this.runLength;
+		int[] runSlot = this.runSlot;
+		for (int r = 0; r < runCount; r++) {
+			int sum = 0;
+			for (int i = runOffset[r], end = i + runLength[r]; i < end; i++) {
+				sum += luma.get(i) & 0xFF;
+			}
+			slotSum[runSlot[r]] += sum;
+		}
+
+		average();
+	}
+
+	private void average() {
+		for (int slot = 0; slot < slotSum.length; slot++) {
+			values[slotRegion[slot]][slotSegment[slot]] = slotSum[slot] / slotPixels[slot];
+		}
+	}
+
+	/**
+	 * Breaks down the regions into runs for the given frame size.
+	 */
+	private void resolve(int width, int height, int rowStride) {
+
+		this.width = width;
+		this.height = height;
+		this.rowStride = rowStride;
+
+		// count the runs first
+		int count = 0;
+		for (GateRegion region : regions) {
+			region.resolve(width, height);
+			for (int s = 0; s < region.getSegmentCount(); s++) {
+				count += (region.getRowEnd(s) - region.getRowStart(s) + region.getRowStep() - 1) / region.getRowStep();
+			}
+		}
+
+		int[] offset = new int[count];
+		int[] length = new int[count];
+		int[] slotOf = new int[count];
+		Arrays.fill(slotPixels, 0);
+
+		int run = 0;
+		int slot = 0;
+		for (GateRegion region : regions) {
+			int colStart = region.getColStart();
+			int colEnd = region.getColEnd();
+			for (int s = 0; s < region.getSegmentCount(); s++) {
+				for (int row = region.getRowStart(s); row < region.getRowEnd(s); row += region.getRowStep()) {
+					offset[run] = row * rowStride + colStart;
+					length[run] = colEnd - colStart;
+					slotOf[run] = slot;
+					slotPixels[slot] += colEnd - colStart;
+					run++;
+				}
+				slot++;
+			}
+		}
+
+		// sort the runs by offset, so the buffer is read in order
+		long[] keys = new long[count];
+		for (int i = 0; i < count; i++) {
+			keys[i] = ((long) offset[i] << 32) | i;
+		}
+		Arrays.sort(keys);
+
+		runCount = count;
+		runOffset = new int[count];
+		runLength = new int[count];
+		runSlot = new int[count];
+		for (int i = 0; i < count; i++) {
+			int index = (int) keys[i];
+			runOffset[i] = offset[index];
+			runLength[i] = length[index];
+			runSlot[i] = slotOf[index];
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package com.pimentoso.android.laptimer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The gate lines watched in one camera frame, each with a name: the start/finish line first, then the
+ * sector gates in the direction of the race, when the camera sees more than one stretch of track.
+ *
+ * Each gate is a line across the track at a column of the frame, given in percent of the frame width;
+ * since the camera is rotated to portrait, that is the distance from the top of the screen. The layout is
+ * written as text, e.g. "Finish@50; Hairpin@20", and kept in the preferences in that form.
+ *
+ * @author Pimentoso
+ */
+public class GateLayout {
+
+	public static final int MAX_GATES = 4;
+
+	// gates closer than this (percent of the frame width) would watch the same pixels
+	private static final int MIN_DISTANCE = 5;
+
+	private static final String DEFAULT_NAME = "Finish";
+	private static final int DEFAULT_POSITION = 50;
+
+	private final String[] names;
+	private final int[] positions;
+
+	private GateLayout(String[] names, int[] positions) {
+		this.names = names;
+		this.positions = positions;
+	}
+
+	/**
+	 * The classic setup: the start/finish line in the middle of the frame, and no sector gates.
+	 */
+	public static GateLayout single() {
+		return new GateLayout(new String[] { DEFAULT_NAME }, new int[] { DEFAULT_POSITION });
+	}
+
+	/**
+	 * Reads a layout written as "name@position", separated by semicolons, the start/finish line first.
+	 *
+	 * @throws IllegalArgumentException if the text is not a valid layout
+	 */
+	public static GateLayout parse(String text) {
+
+		List<String> names = new ArrayList<String>();
+		List<Integer> positions = new ArrayList<Integer>();
+		for (String gate : text.split(";")) {
+			gate = gate.trim();
+			if (gate.length() == 0) {
+				continue;
+			}
+			int at = gate.lastIndexOf('@');
+			if (at <= 0) {
+				throw new IllegalArgumentException("Invalid gate: " + gate);
+			}
+			String name = gate.substring(0, at).trim();
+			int position;
+			try {
+				position = Integer.parseInt(gate.substring(at + 1).trim());
+			}
+			catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid gate position: " + gate);
+			}
+			if (name.length() == 0 || position < 0 || position > 100) {
+				throw new IllegalArgumentException("Invalid gate: " + gate);
+			}
+			for (int other : positions) {
+				if (Math.abs(other - position) < MIN_DISTANCE) {
+					throw new IllegalArgumentException("Gates too close: " + gate);
+				}
+			}
+			names.add(name);
+			positions.add(position);
+		}
+		if (names.isEmpty() || names.size() > MAX_GATES) {
+			throw new IllegalArgumentException("Invalid gate count: " + names.size());
+		}
+
+		int[] p = new int[positions.size()];
+		for (int i = 0; i < p.length; i++) {
+			p[i] = positions.get(i);
+		}
+		return new GateLayout(names.toArray(new String[names.size()]), p);
+	}
+
+	public int getGateCount() {
+		return names.length;
+	}
+
+	public String getName(int gate) {
+		return names[gate];
+	}
+
+	/**
+	 * Column of the gate line, in percent of the frame width.
+	 */
+	public int getPosition(int gate) {
+		return positions[gate];
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder s = new StringBuilder();
+		for (int i = 0; i < names.length; i++) {
+			if (i > 0) {
+				s.append("; ");
+			}
+			s.append(names[i]).append('@').append(positions[i]);
+		}
+		return s.toString();
+	}
+}
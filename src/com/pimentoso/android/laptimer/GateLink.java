@@ -0,0 +1,330 @@
+package com.pimentoso.android.laptimer;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * A sector gate phone, linked over UDP to the {@link GateMaster} phone at the start/finish line: keeps
+ * its clock in sync with the master, and sends it the crossings of its gate, on the master clock.
+ *
+ * The clock is synced with an NTP style exchange every {@link #SYNC_INTERVAL_NANOS}, see
+ * {@link ClockSync}. Crossings are queued on the camera thread with the local time, and converted with the
+ * latest estimate when they are sent; they are sent again until the master acknowledges them, so a lost
+ * datagram only delays them.
+ *
+ * All the datagrams start with a short magic, a version byte and a type byte, then the session of the
+ * gate (a random number, new each time the link is started, so the master can tell a restart) and the
+ * gate number. Big endian:
+ *
+ * <pre>
+ * sync request   long t0
+ * sync reply     long t0, long t1, long t2
+ * crossings      byte count, then count times: int sequence, byte lane, long crossing nanos on the master clock
+ * ack            int sequence of the last crossing received
+ * </pre>
+ *
+ * If no master address is given, sync requests are broadcast, and the first master that replies is used.
+ * Runs its own thread; nothing is allocated per datagram. Plain Java, so it can be tried on the JVM over
+ * loopback.
+ *
+ * @author Pimentoso
+ */
+public class GateLink implements Runnable {
+
+	public static final int PORT = 47652;
+
+	static final short MAGIC = 0x4D47; // "MG"
+	static final int VERSION = 1;
+
+	static final int TYPE_SYNC_REQUEST = 1;
+	static final int TYPE_SYNC_REPLY = 2;
+	static final int TYPE_CROSSINGS = 3;
+	static final int TYPE_ACK = 4;
+
+	static final int HEADER_SIZE = 9;
+	static final int CROSSING_SIZE = 13;
+	static final int MAX_BATCH = 32;
+	static final int MAX_PACKET = HEADER_SIZE + 1 + MAX_BATCH * CROSSING_SIZE;
+
+	// an exchange is two small datagrams: frequent ones give the clock fit many samples at little cost
+	public static final long SYNC_INTERVAL_NANOS = 200000000L;
+
+	// unacknowledged crossings are sent again after this
+	private static final long RESEND_NANOS = 100000000L;
+
+	// how long the thread waits for a datagram before looking at the queue again
+	private static final int RECEIVE_TIMEOUT_MILLIS = 20;
+
+	// crossings waiting for the master; the oldest are dropped if it stays out of reach
+	private static final int QUEUE_SIZE = 64;
+
+	private final int gate;
+	private final int session = new Random().nextInt();
+	private final ClockSync sync = new ClockSync();
+	private final ClockSync.Clock clock;
+	private final String masterHost;
+	private final int masterPort;
+
+	private final int[] queueLanes = new int[QUEUE_SIZE];
+	private final long[] queueNanos = new long[QUEUE_SIZE];
+	private int queueFirst = 0; // sequence of the oldest queued crossing
+	private int queueNext = 0; // sequence of the next crossing
+
+	private final byte[] sendBytes = new byte[MAX_PACKET];
+	private final byte[] receiveBytes = new byte[MAX_PACKET];
+	private final ByteBuffer sendBuffer = ByteBuffer.wrap(sendBytes);
+	private final ByteBuffer receiveBuffer = ByteBuffer.wrap(receiveBytes);
+	private final DatagramPacket sendPacket = new DatagramPacket(sendBytes, 0);
+	private InetSocketAddress broadcast;
+
+	private volatile boolean running = false;
+	private volatile InetSocketAddress master;
+	private volatile int droppedCrossings = 0;
+	private volatile IOException error;
+	private DatagramSocket socket;
+	private Thread thread;
+
+	/**
+	 * @param gate gate number, from 1: 0 is the master
+	 * @param masterHost address of the master, resolved on the thread of the link; null to look for it
+	 *            with a broadcast
+	 * @param masterPort usually {@link #PORT}
+	 */
+	public GateLink(int gate, String masterHost, int masterPort, ClockSync.Clock clock) {
+		if (gate < 1 || gate >= SectorSequencer.MAX_GATES) {
+			throw new IllegalArgumentException("Invalid gate: " + gate);
+		}
+		this.gate = gate;
+		this.masterHost = masterHost;
+		this.masterPort = masterPort;
+		this.clock = clock;
+	}
+
+	public int getGate() {
+		return gate;
+	}
+
+	public ClockSync getClockSync() {
+		return sync;
+	}
+
+	/**
+	 * The master the link is synced with, null while looking for it.
+	 */
+	public InetSocketAddress getMaster() {
+		return master;
+	}
+
+	public int getDroppedCrossings() {
+		return droppedCrossings;
+	}
+
+	/**
+	 * The error that stopped the link, null if none.
+	 */
+	public IOException getError() {
+		return error;
+	}
+
+	public synchronized void start() {
+		if (thread == null) {
+			running = true;
+			thread = new Thread(this, "GateLink");
+			thread.start();
+		}
+	}
+
+	/**
+	 * Stops the thread and closes the socket. Crossings not yet acknowledged are lost.
+	 */
+	public void stop() {
+		Thread stopping;
+		synchronized (this) {
+			stopping = thread;
+			thread = null;
+			running = false;
+		}
+		if (stopping != null) {
+			try {
+				stopping.join();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Queues a crossing of this gate, to be sent to the master. Called on the camera thread.
+	 *
+	 * @param crossingNanos crossing time on the local clock
+	 */
+	public synchronized void sendCrossing(int lane, long crossingNanos) {
+		if (queueNext - queueFirst == QUEUE_SIZE) {
+			queueFirst++;
+			droppedCrossings++;
+		}
+		queueLanes[queueNext % QUEUE_SIZE] = lane;
+		queueNanos[queueNext % QUEUE_SIZE] = crossingNanos;
+		queueNext++;
+	}
+
+	@Override
+	public void run() {
+
+		try {
+			socket = new DatagramSocket();
+			socket.setBroadcast(masterHost == null);
+			socket.setSoTimeout(RECEIVE_TIMEOUT_MILLIS);
+			broadcast = new InetSocketAddress(InetAddress.getByName("255.255.255.255"), masterPort);
+			if (masterHost != null) {
+				master = new InetSocketAddress(InetAddress.getByName(masterHost), masterPort);
+			}
+		}
+		catch (IOException e) {
+			error = e;
+			if (socket != null) {
+				socket.close();
+			}
+			return;
+		}
+
+		DatagramPacket received = new DatagramPacket(receiveBytes, receiveBytes.length);
+		long lastSync = 0;
+		long lastSend = 0;
+		int lastSent = -1;
+
+		try {
+			while (running) {
+				long now = clock.nanoTime();
+
+				if (lastSync == 0 || now - lastSync >= SYNC_INTERVAL_NANOS) {
+					sendSyncRequest(now);
+					lastSync = now;
+				}
+
+				if (sync.isSynced()) {
+					int newest = getNewestQueued();
+					if (newest != lastSent || (newest >= 0 && now - lastSend >= RESEND_NANOS)) {
+						lastSent = sendCrossings();
+						lastSend = now;
+					}
+				}
+
+				try {
+					received.setLength(receiveBytes.length);
+					socket.receive(received);
+				}
+				catch (SocketTimeoutException e) {
+					continue;
+				}
+				onReceive(received, clock.nanoTime());
+			}
+		}
+		catch (IOException e) {
+			error = e;
+		}
+		finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Sequence of the newest crossing waiting to be acknowledged, -1 if none.
+	 */
+	private synchronized int getNewestQueued() {
+		return queueNext > queueFirst ? queueNext - 1 : -1;
+	}
+
+	private void sendSyncRequest(long t0) throws IOException {
+		ByteBuffer out = header(TYPE_SYNC_REQUEST);
+		out.putLong(t0);
+		InetSocketAddress to = master;
+		send(out, to != null ? to : broadcast);
+	}
+
+	/**
+	 * Sends the oldest queued crossings, and returns the sequence of the last one sent, -1 if none.
+	 */
+	private int sendCrossings() throws IOException {
+
+		InetSocketAddress to = master;
+		if (to == null) {
+			return -1;
+		}
+		ByteBuffer out = header(TYPE_CROSSINGS);
+		int last;
+		synchronized (this) {
+			int count = Math.min(queueNext - queueFirst, MAX_BATCH);
+			if (count == 0) {
+				return -1;
+			}
+			out.put((byte) count);
+			for (int i = 0; i < count; i++) {
+				int sequence = queueFirst + i;
+				out.putInt(sequence);
+				out.put((byte) queueLanes[sequence % QUEUE_SIZE]);
+				out.putLong(sync.toRemote(queueNanos[sequence % QUEUE_SIZE]));
+			}
+			last = queueFirst + count - 1;
+		}
+		send(out, to);
+		return last;
+	}
+
+	private void onReceive(DatagramPacket packet, long t3) throws IOException {
+
+		ByteBuffer in = receiveBuffer;
+		in.clear();
+		in.limit(packet.getLength());
+		if (packet.getLength() < HEADER_SIZE || in.getShort() != MAGIC || in.get() != VERSION) {
+			return;
+		}
+		int type = in.get();
+		if (in.getInt() != session || in.get() != gate) {
+			// meant for another gate
+			return;
+		}
+
+		if (type == TYPE_SYNC_REPLY && in.remaining() >= 24) {
+			long t0 = in.getLong();
+			long t1 = in.getLong();
+			long t2 = in.getLong();
+			if (sync.addSample(t0, t1, t2, t3) && master == null) {
+				master = new InetSocketAddress(packet.getAddress(), packet.getPort());
+				socket.setBroadcast(false);
+			}
+		}
+		else if (type == TYPE_ACK && in.remaining() >= 4) {
+			int sequence = in.getInt();
+			synchronized (this) {
+				if (sequence >= queueFirst && sequence < queueNext) {
+					queueFirst = sequence + 1;
+				}
+			}
+		}
+	}
+
+	private ByteBuffer header(int type) {
+		ByteBuffer out = sendBuffer;
+		out.clear();
+		out.putShort(MAGIC);
+		out.put((byte) VERSION);
+		out.put((byte) type);
+		out.putInt(session);
+		out.put((byte) gate);
+		return out;
+	}
+
+	private void send(ByteBuffer out, InetSocketAddress to) throws IOException {
+		sendPacket.setData(sendBytes, 0, out.position());
+		sendPacket.setSocketAddress(to);
+		socket.send(sendPacket);
+	}
+}
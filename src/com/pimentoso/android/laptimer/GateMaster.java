@@ -0,0 +1,328 @@
+package com.pimentoso.android.laptimer;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The start/finish phone of a multi-phone setup: answers the clock sync requests of the {@link GateLink}
+ * sector gates, collects their crossings, and merges them with its own into sector and lap times with a
+ * {@link SectorSequencer}.
+ *
+ * Crossings reach the master late, by the network and by the sync of the gate, and not in time order
+ * across gates. They wait in a buffer sorted by time, and go to the sequencer once they are older than
+ * {@link #REORDER_NANOS}; a crossing that comes later than that is counted and dropped, and the lap it
+ * belongs to has no sectors.
+ *
+ * Crossings of each gate are acknowledged by sequence number; those already received are ignored, so a
+ * gate can send them again until the acknowledgement reaches it.
+ *
+ * Runs its own thread, on which the sequencer listener is called. Nothing is allocated per datagram.
+ * Plain Java, so it can be tried on the JVM over loopback.
+ *
+ * @author Pimentoso
+ */
+public class GateMaster implements Runnable {
+
+	// crossings are held this long for the late ones to catch up
+	public static final long REORDER_NANOS = 300000000L;
+
+	private static final int RECEIVE_TIMEOUT_MILLIS = 20;
+
+	// crossings waiting to be put in order
+	private static final int BUFFER_SIZE = 64;
+
+	private final SectorSequencer sequencer;
+	private final ClockSync.Clock clock;
+	private final int port;
+
+	// sorted by time
+	private final long[] bufferNanos = new long[BUFFER_SIZE];
+	private final int[] bufferLanes = new int[BUFFER_SIZE];
+	private final int[] bufferGates = new int[BUFFER_SIZE];
+	private int buffered = 0;
+	private final long[] releasedNanos;
+
+	// by gate, network thread only
+	private final int[] sessions = new int[SectorSequencer.MAX_GATES];
+	private final int[] nextSequence = new int[SectorSequencer.MAX_GATES];
+	private final boolean[] known = new boolean[SectorSequencer.MAX_GATES];
+	private final long[] lastSeen = new long[SectorSequencer.MAX_GATES];
+
+	private final byte[] receiveBytes = new byte[GateLink.MAX_PACKET];
+	private final byte[] sendBytes = new byte[GateLink.MAX_PACKET];
+	private final ByteBuffer receiveBuffer = ByteBuffer.wrap(receiveBytes);
+	private final ByteBuffer sendBuffer = ByteBuffer.wrap(sendBytes);
+	private final DatagramPacket sendPacket = new DatagramPacket(sendBytes, 0);
+
+	private volatile boolean running = false;
+	private volatile boolean resetPending = false;
+	private volatile int lateCrossings = 0;
+	private volatile int gateCount = 0;
+	private volatile IOException error;
+	private DatagramSocket socket;
+	private Thread thread;
+
+	/**
+	 * @param sequencer merges the crossings; its listener is called on the thread of the master
+	 * @param port usually {@link GateLink#PORT}
+	 */
+	public GateMaster(SectorSequencer sequencer, int port, ClockSync.Clock clock) {
+		this.sequencer = sequencer;
+		this.port = port;
+		this.clock = clock;
+		this.releasedNanos = new long[sequencer.getLaneCount()];
+		Arrays.fill(releasedNanos, Long.MIN_VALUE);
+	}
+
+	public SectorSequencer getSequencer() {
+		return sequencer;
+	}
+
+	/**
+	 * Number of crossings that came too late to be put in order, or found the buffer full.
+	 */
+	public int getLateCrossings() {
+		return lateCrossings;
+	}
+
+	/**
+	 * Number of sector gates heard from in the last few seconds, as last counted by the thread of the
+	 * master.
+	 */
+	public int getGateCount() {
+		return gateCount;
+	}
+
+	/**
+	 * Counts the gates heard from recently. Network thread, which owns the arrays.
+	 */
+	private int countGates(long now) {
+		int count = 0;
+		for (int gate = 1; gate < lastSeen.length; gate++) {
+			if (known[gate] && now - lastSeen[gate] < 10 * GateLink.SYNC_INTERVAL_NANOS) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public IOException getError() {
+		return error;
+	}
+
+	public synchronized void start() {
+		if (thread == null) {
+			running = true;
+			thread = new Thread(this, "GateMaster");
+			thread.start();
+		}
+	}
+
+	/**
+	 * Stops the thread and closes the socket. Crossings still in the buffer are lost.
+	 */
+	public void stop() {
+		Thread stopping;
+		synchronized (this) {
+			stopping = thread;
+			thread = null;
+			running = false;
+		}
+		if (stopping != null) {
+			try {
+				stopping.join();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Forgets the crossings, for a new race. Takes effect on the thread of the master.
+	 */
+	public void reset() {
+		resetPending = true;
+	}
+
+	/**
+	 * Adds a crossing seen by this phone: the start/finish line, or one of the sector gates in the same
+	 * frame, see {@link GateLayout}. Called on the camera thread.
+	 */
+	public void addCrossing(int lane, int gate, long crossingNanos) {
+		if (gate < sequencer.getGateCount()) {
+			buffer(lane, gate, crossingNanos);
+		}
+	}
+
+	private synchronized void buffer(int lane, int gate, long nanos) {
+
+		// the buffer can't fill up at racing speeds
+		if (lane < 0 || lane >= releasedNanos.length || nanos <= releasedNanos[lane] || buffered == BUFFER_SIZE) {
+			lateCrossings++;
+			return;
+		}
+		int i = buffered;
+		while (i > 0 && bufferNanos[i - 1] > nanos) {
+			bufferNanos[i] = bufferNanos[i - 1];
+			bufferLanes[i] = bufferLanes[i - 1];
+			bufferGates[i] = bufferGates[i - 1];
+			i--;
+		}
+		bufferNanos[i] = nanos;
+		bufferLanes[i] = lane;
+		bufferGates[i] = gate;
+		buffered++;
+	}
+
+	/**
+	 * Sends the crossings older than the given time to the sequencer.
+	 */
+	private synchronized void release(long beforeNanos) {
+		int count = 0;
+		while (count < buffered && bufferNanos[count] < beforeNanos) {
+			int lane = bufferLanes[count];
+			releasedNanos[lane] = bufferNanos[count];
+			sequencer.crossing(lane, bufferGates[count], bufferNanos[count]);
+			count++;
+		}
+		if (count > 0) {
+			buffered -= count;
+			System.arraycopy(bufferNanos, count, bufferNanos, 0, buffered);
+			System.arraycopy(bufferLanes, count, bufferLanes, 0, buffered);
+			System.arraycopy(bufferGates, count, bufferGates, 0, buffered);
+		}
+	}
+
+	@Override
+	public void run() {
+
+		try {
+			socket = new DatagramSocket(null);
+			socket.setReuseAddress(true);
+			socket.setBroadcast(true);
+			socket.bind(new InetSocketAddress(port));
+			socket.setSoTimeout(RECEIVE_TIMEOUT_MILLIS);
+		}
+		catch (IOException e) {
+			error = e;
+			if (socket != null) {
+				socket.close();
+			}
+			return;
+		}
+
+		DatagramPacket received = new DatagramPacket(receiveBytes, receiveBytes.length);
+
+		try {
+			while (running) {
+
+				if (resetPending) {
+					resetPending = false;
+					synchronized (this) {
+						buffered = 0;
+						Arrays.fill(releasedNanos, Long.MIN_VALUE);
+						sequencer.reset();
+					}
+				}
+
+				long now = clock.nanoTime();
+				release(now - REORDER_NANOS);
+				gateCount = countGates(now);
+
+				try {
+					received.setLength(receiveBytes.length);
+					socket.receive(received);
+				}
+				catch (SocketTimeoutException e) {
+					continue;
+				}
+				onReceive(received, clock.nanoTime());
+			}
+		}
+		catch (IOException e) {
+			error = e;
+		}
+		finally {
+			socket.close();
+		}
+	}
+
+	private void onReceive(DatagramPacket packet, long receivedNanos) throws IOException {
+
+		ByteBuffer in = receiveBuffer;
+		in.clear();
+		in.limit(packet.getLength());
+		if (packet.getLength() < GateLink.HEADER_SIZE || in.getShort() != GateLink.MAGIC || in.get() != GateLink.VERSION) {
+			return;
+		}
+		int type = in.get();
+		int session = in.getInt();
+		int gate = in.get();
+		if (gate < 1 || gate >= SectorSequencer.MAX_GATES) {
+			return;
+		}
+
+		if (!known[gate] || sessions[gate] != session) {
+			// a new gate, or the same one started again
+			known[gate] = true;
+			sessions[gate] = session;
+			nextSequence[gate] = 0;
+		}
+		lastSeen[gate] = receivedNanos;
+
+		if (type == GateLink.TYPE_SYNC_REQUEST && in.remaining() >= 8) {
+			long t0 = in.getLong();
+			ByteBuffer out = header(GateLink.TYPE_SYNC_REPLY, session, gate);
+			out.putLong(t0);
+			out.putLong(receivedNanos);
+			out.putLong(clock.nanoTime());
+			send(out, packet);
+		}
+		else if (type == GateLink.TYPE_CROSSINGS && in.remaining() >= 1) {
+			int count = in.get() & 0xFF;
+			int last = -1;
+			for (int i = 0; i < count && in.remaining() >= GateLink.CROSSING_SIZE; i++) {
+				int sequence = in.getInt();
+				int lane = in.get();
+				long nanos = in.getLong();
+				// in order from the oldest not acknowledged: older ones were already taken, a jump means the gate dropped some
+				if (sequence >= nextSequence[gate]) {
+					if (gate < sequencer.getGateCount()) {
+						buffer(lane, gate, nanos);
+					}
+					nextSequence[gate] = sequence + 1;
+				}
+				last = sequence;
+			}
+			if (last >= 0) {
+				ByteBuffer out = header(GateLink.TYPE_ACK, session, gate);
+				out.putInt(nextSequence[gate] - 1);
+				send(out, packet);
+			}
+		}
+	}
+
+	private ByteBuffer header(int type, int session, int gate) {
+		ByteBuffer out = sendBuffer;
+		out.clear();
+		out.putShort(GateLink.MAGIC);
+		out.put((byte) GateLink.VERSION);
+		out.put((byte) type);
+		out.putInt(session);
+		out.put((byte) gate);
+		return out;
+	}
+
+	private void send(ByteBuffer out, DatagramPacket to) throws IOException {
+		sendPacket.setData(sendBytes, 0, out.position());
+		sendPacket.setAddress(to.getAddress());
+		sendPacket.setPort(to.getPort());
+		socket.send(sendPacket);
+	}
+}
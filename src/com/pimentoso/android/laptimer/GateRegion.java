@@ -0,0 +1,202 @@
+package com.pimentoso.android.laptimer;
+
+/**
+ * The part of the frame that is watched for crossing cars, divided in segments. Each segment is a
+ * rectangle of luma pixels, whose average lightness is compared on its own.
+ *
+ * The region is defined in fractions of the frame size, and is resolved to pixels with
+ * {@link #resolve(int, int)} when the frame size is known. The pixels are read by a {@link FrameScanner}.
+ *
+ * A line region is a vertical band of columns, centered on a column of the frame and spanning a range of
+ * rows, cut in equal segments along its length. Since the camera is rotated to portrait, this is a
+ * horizontal line across the track on screen. Every row of a segment is a contiguous run of bytes in the
+ * luma plane. On large frames only every n-th row is read, so that no more than {@link #MAX_SCAN_ROWS}
+ * rows are scanned and the cost per frame stays bounded; a region sharing the frame with other gates,
+ * see {@link #line(float, int, float, float, int, int)}, reads a share of that, but never fewer than
+ * {@link #MIN_SHARED_ROWS} rows.
+ *
+ * @author Pimentoso
+ */
+public class GateRegion {
+
+	public static final int DEFAULT_BAND = 4;
+	public static final int DEFAULT_SEGMENTS = 16;
+	public static final int MAX_SCAN_ROWS = 240;
+
+	/**
+	 * Rows read at least by a region sharing the frame with other gates, so that the rows read stay close
+	 * together against the size of a car, however many gates there are.
+	 */
+	public static final int MIN_SHARED_ROWS = 48;
+
+	// rows of the 3 pixels checked by the classic detection, as fractions of the region length
+	private static final float[] PIXEL_ROWS = { 0f, 0.5f, 1f };
+
+	private final boolean pixels;
+	private final float x;
+	private final int band;
+	private final float top;
+	private final float bottom;
+	private final int segments;
+	private final int shares;
+
+	// resolved pixel coordinates
+	private int colStart;
+	private int colEnd;
+	private int rowStep = 1;
+	private final int[] rowStart;
+	private final int[] rowEnd;
+
+	private GateRegion(boolean pixels, float x, int band, float top, float bottom, int segments, int shares) {
+		this.pixels = pixels;
+		this.x = x;
+		this.band = band;
+		this.top = top;
+		this.bottom = bottom;
+		this.segments = segments;
+		this.shares = shares;
+		this.rowStart = new int[segments];
+		this.rowEnd = new int[segments];
+	}
+
+	/**
+	 * The classic gate: 3 pixels in the middle column of the frame, at 10%, 50% and 90% of height.
+	 */
+	public static GateRegion pixels() {
+		return pixels(0.1f, 0.9f);
+	}
+
+	/**
+	 * 3 pixels in the middle column of the frame, at the ends and in the middle of the given rows.
+	 *
+	 * @param top first row, as a fraction of frame height
+	 * @param bottom last row, as a fraction of frame height
+	 */
+	public static GateRegion pixels(float top, float bottom) {
+		return pixels(0.5f, top, bottom);
+	}
+
+	/**
+	 * 3 pixels in the given column of the frame, at the ends and in the middle of the given rows.
+	 *
+	 * @param x column, as a fraction of frame width
+	 * @param top first row, as a fraction of frame height
+	 * @param bottom last row, as a fraction of frame height
+	 */
+	public static GateRegion pixels(float x, float top, float bottom) {
+		if (top >= bottom) {
+			throw new IllegalArgumentException("Invalid gate region");
+		}
+		return new GateRegion(true, x, 1, top, bottom, PIXEL_ROWS.length, 1);
+	}
+
+	/**
+	 * A line scan gate.
+	 *
+	 * @param x center column, as a fraction of frame width
+	 * @param band band width in pixels (1 for a single column)
+	 * @param top first row, as a fraction of frame height
+	 * @param bottom last row, as a fraction of frame height
+	 * @param segments number of segments the line is cut in
+	 */
+	public static GateRegion line(float x, int band, float top, float bottom, int segments) {
+		return line(x, band, top, bottom, segments, 1);
+	}
+
+	/**
+	 * A line scan gate that reads only a share of the rows it would read alone, so that several gates in
+	 * the same frame cost about as much as one.
+	 *
+	 * @param shares the row budget is split among this many gates
+	 */
+	public static GateRegion line(float x, int band, float top, float bottom, int segments, int shares) {
+		if (band < 1 || segments < 1 || top >= bottom || shares < 1) {
+			throw new IllegalArgumentException("Invalid gate region");
+		}
+		return new GateRegion(false, x, band, top, bottom, segments, shares);
+	}
+
+	/**
+	 * The default line scan gate: the same line as the classic gate, scanned along its whole length.
+	 */
+	public static GateRegion line() {
+		return line(0.5f, DEFAULT_BAND, 0.1f, 0.9f, DEFAULT_SEGMENTS);
+	}
+
+	public int getSegmentCount() {
+		return segments;
+	}
+
+	public float getTop() {
+		return top;
+	}
+
+	public float getBottom() {
+		return bottom;
+	}
+
+	int getColStart() {
+		return colStart;
+	}
+
+	int getColEnd() {
+		return colEnd;
+	}
+
+	int getRowStep() {
+		return rowStep;
+	}
+
+	int getRowStart(int segment) {
+		return rowStart[segment];
+	}
+
+	int getRowEnd(int segment) {
+		return rowEnd[segment];
+	}
+
+	/**
+	 * Number of luma pixels read for each frame.
+	 */
+	public int getPixelCount() {
+		int count = 0;
+		for (int s = 0; s < segments; s++) {
+			count += (rowEnd[s] - rowStart[s] + rowStep - 1) / rowStep;
+		}
+		return count * (colEnd - colStart);
+	}
+
+	/**
+	 * Computes the pixel coordinates of the segments for the given frame size.
+	 */
+	public void resolve(int width, int height) {
+
+		colStart = clamp((int) (width * x) - band / 2, 0, width - 1);
+		colEnd = Math.min(colStart + band, width);
+
+		if (pixels) {
+			rowStep = 1;
+			for (int s = 0; s < segments; s++) {
+				rowStart[s] = clamp((int) (height * (top + (bottom - top) * PIXEL_ROWS[s])), 0, height - 1);
+				rowEnd[s] = rowStart[s] + 1;
+			}
+			return;
+		}
+
+		int first = clamp((int) (height * top), 0, height - 1);
+		int last = clamp((int) (height * bottom), first + 1, height);
+		int rows = Math.min(MAX_SCAN_ROWS, last - first) / shares;
+		if (shares > 1) {
+			rows = Math.max(rows, Math.max(MIN_SHARED_ROWS, segments));
+		}
+		rowStep = Math.max(1, (last - first + rows - 1) / rows);
+		for (int s = 0; s < segments; s++) {
+			rowStart[s] = first + (last - first) * s / segments;
+			rowEnd[s] = Math.max(first + (last - first) * (s + 1) / segments, rowStart[s] + 1);
+		}
+	}
+
+	private static int clamp(int value, int min, int max) {
+		return value < min ? min : (value > max ? max : value);
+	}
+}
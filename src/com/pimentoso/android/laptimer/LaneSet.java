@@ -0,0 +1,227 @@
+package com.pimentoso.android.laptimer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The lanes timed by one camera. The gate line is split in one region per lane, and each lane has its
+ * own {@link LapDetector}, with its own calibration, debounce and laps. All the regions are read with a
+ * single pass over the frame by a {@link FrameScanner}.
+ *
+ * Lanes are numbered from the left of the screen. Since the camera is rotated to portrait, the leftmost
+ * lane on screen is at the bottom rows of the camera frame.
+ *
+ * When the camera sees more than one stretch of track, the frame can hold several gate lines, see
+ * {@link GateLayout}: each lane then has a detector on every gate, read in the same pass. Line scan
+ * gates split the rows of a single gate among them, each keeping enough rows to see a small car, so
+ * the cost per frame stays about the same as gates are added. The detectors of the sector gates report
+ * their crossings as laps and timer starts like the start/finish line, with
+ * {@link LapDetector#getGate()} telling them apart; a {@link SectorSequencer} turns them into sector
+ * times.
+ *
+ * @author Pimentoso
+ */
+public class LaneSet {
+
+	public static final int MAX_LANES = 3;
+
+	// the gate line spans these rows of the frame, as fractions of height
+	private static final float GATE_TOP = 0.1f;
+	private static final float GATE_BOTTOM = 0.9f;
+
+	// minimum number of line scan segments per lane
+	private static final int MIN_LANE_SEGMENTS = 4;
+
+	private final GateLayout layout;
+	private final int laneCount;
+
+	// by gate, then by lane
+	private final LapDetector[] detectors;
+	private final FrameScanner scanner;
+
+	/**
+	 * Lanes with the start/finish line only, in the middle of the frame.
+	 *
+	 * @param lanes number of lanes, 1 to {@link #MAX_LANES}
+	 * @param lineScan if true, lanes are scanned along the line, otherwise 3 pixels are checked per lane
+	 * @param band line scan band width in pixels
+	 * @param segments number of line scan segments, shared by all lanes
+	 */
+	public LaneSet(int lanes, boolean lineScan, int band, int segments) {
+		this(lanes, GateLayout.single(), lineScan, band, segments);
+	}
+
+	/**
+	 * @param lanes number of lanes, 1 to {@link #MAX_LANES}
+	 * @param layout the gate lines in the frame
+	 * @param lineScan if true, lanes are scanned along the line, otherwise 3 pixels are checked per lane
+	 * @param band line scan band width in pixels
+	 * @param segments number of line scan segments, shared by all lanes
+	 */
+	public LaneSet(int lanes, GateLayout layout, boolean lineScan, int band, int segments) {
+
+		if (lanes < 1 || lanes > MAX_LANES) {
+			throw new IllegalArgumentException("Invalid lane count: " + lanes);
+		}
+
+		this.layout = layout;
+		this.laneCount = lanes;
+		int gates = layout.getGateCount();
+		detectors = new LapDetector[gates * lanes];
+		GateRegion[] regions = new GateRegion[gates * lanes];
+		float laneSize = (GATE_BOTTOM - GATE_TOP) / lanes;
+		int laneSegments = Math.max(MIN_LANE_SEGMENTS, segments / lanes);
+
+		for (int gate = 0; gate < gates; gate++) {
+			float x = layout.getPosition(gate) / 100f;
+			for (int i = 0; i < lanes; i++) {
+				float bottom = GATE_BOTTOM - laneSize * i;
+				float top = bottom - laneSize;
+				int index = gate * lanes + i;
+				if (lineScan) {
+					regions[index] = GateRegion.line(x, band, top, bottom, laneSegments, gates);
+				}
+				else {
+					regions[index] = GateRegion.pixels(x, top, bottom);
+				}
+				detectors[index] = new LapDetector(regions[index], i, gate);
+			}
+		}
+
+		scanner = new FrameScanner(regions);
+	}
+
+	public int getLaneCount() {
+		return laneCount;
+	}
+
+	public GateLayout getLayout() {
+		return layout;
+	}
+
+	public int getGateCount() {
+		return layout.getGateCount();
+	}
+
+	/**
+	 * The detector of the start/finish line of a lane.
+	 */
+	public LapDetector getDetector(int lane) {
+		return detectors[lane];
+	}
+
+	public LapDetector getDetector(int lane, int gate) {
+		return detectors[gate * laneCount + lane];
+	}
+
+	public void setListener(LapDetector.Listener listener) {
+		for (LapDetector detector : detectors) {
+			detector.setListener(listener);
+		}
+	}
+
+	public void setThreshold(int threshold) {
+		for (LapDetector detector : detectors) {
+			detector.setThreshold(threshold);
+		}
+	}
+
+	public void setInterpolate(boolean interpolate) {
+		for (LapDetector detector : detectors) {
+			detector.setInterpolate(interpolate);
+		}
+	}
+
+	public void setCatchDelay(long catchDelayNanos) {
+		for (LapDetector detector : detectors) {
+			detector.setCatchDelay(catchDelayNanos);
+		}
+	}
+
+	public void calibrate() {
+		for (LapDetector detector : detectors) {
+			detector.calibrate();
+		}
+	}
+
+	public void start() {
+		for (LapDetector detector : detectors) {
+			detector.start();
+		}
+	}
+
+	public void stop() {
+		for (LapDetector detector : detectors) {
+			detector.stop();
+		}
+	}
+
+	/**
+	 * True when all the lanes are calibrated.
+	 */
+	public boolean isCalibrated() {
+		for (LapDetector detector : detectors) {
+			if (!detector.isCalibrated()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * True while any lane is calibrating.
+	 */
+	public boolean isCalibrating() {
+		for (LapDetector detector : detectors) {
+			if (detector.isCalibrating()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public boolean isStarted() {
+		return detectors[0].isStarted();
+	}
+
+	/**
+	 * True when a car has crossed the start/finish line in any lane since start.
+	 */
+	public boolean isTimerRunning() {
+		for (int lane = 0; lane < laneCount; lane++) {
+			if (detectors[lane].isTimerRunning()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Processes a frame in all lanes, on all gates.
+	 *
+	 * @return true if the frame was caught in any lane, on any gate
+	 */
+	public boolean process(byte[] luma, int width, int height, long timestampNanos) {
+		scanner.scan(luma, width, height);
+		return processValues(timestampNanos);
+	}
+
+	/**
+	 * Processes a frame in all lanes on all gates, from the Y plane of a YUV_420_888 image.
+	 *
+	 * @return true if the frame was caught in any lane, on any gate
+	 */
+	public boolean process(ByteBuffer luma, int width, int height, int rowStride, long timestampNanos) {
+		scanner.scan(luma, width, height, rowStride);
+		return processValues(timestampNanos);
+	}
+
+	private boolean processValues(long timestampNanos) {
+		boolean caught = false;
+		for (int i = 0; i < detectors.length; i++) {
+			if (detectors[i].processValues(scanner.getValues(i), timestampNanos)) {
+				caught = true;
+			}
+		}
+		return caught;
+	}
+}
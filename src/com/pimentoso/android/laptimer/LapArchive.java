@@ -0,0 +1,344 @@
+package com.pimentoso.android.laptimer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Binary archive of sessions, the {@link ExportWriter#BINARY} export format, meant to move a whole
+ * history between phones.
+ *
+ * Version 4 stores every number as a variable length integer (7 bits per byte, low bits first; signed
+ * values zigzag encoded), and most of them as deltas, so a lap takes about 4 bytes:
+ *
+ * <pre>
+ * header  "M4WL" magic, short version
+ * session 1, start delta from the previous session
+ * lane    2, lane, car name length (at most 255), car name UTF-8 bytes, then its laps, then 0
+ * lap     lap number delta (at least 1) shifted left by 1, plus 1 if the lap was corrected or flagged,
+ *         lap time delta from the previous lap of the lane,
+ *         timestamp delta from the previous lap (or the start) minus the lap time,
+ *         if corrected or flagged, the flags shifted left by 1, plus 1 if the lap was corrected,
+ *         if corrected, raw time minus the lap time
+ * end     0
+ * </pre>
+ *
+ * The timestamp of a lap is the timestamp of the previous one plus the lap time, give or take the
+ * rounding, so its residual is usually 0 and fits in one byte.
+ *
+ * Version 3 archives, where the low bit of the number delta only means corrected and no flags follow,
+ * version 2 archives, the same without corrections, and version 1 archives, with fixed size big endian
+ * fields, can still be read.
+ *
+ * Plain Java, so archives can be written and read on the JVM too.
+ *
+ * @author Pimentoso
+ */
+public class LapArchive {
+
+	static final int MAGIC = 0x4D34574C; // "M4WL"
+	static final int VERSION = 4;
+
+	static final int TAG_END = 0;
+	static final int TAG_SESSION = 1;
+	static final int TAG_LANE = 2;
+
+	// version 1 only
+	private static final int TAG_LAP_V1 = 3;
+
+	// longest car name, in UTF-8 bytes; longer names are cut when written
+	static final int MAX_NAME_BYTES = 255;
+
+	// lanes of the timer, or cars when they are told apart by color
+	private static final int MAX_LANES = Math.max(LaneSet.MAX_LANES, CarClassifier.MAX_CARS);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private LapArchive() {
+	}
+
+	/**
+	 * Writes an archive.
+	 */
+	public static class Writer extends ExportWriter {
+
+		private final OutputStream out;
+		private boolean header = false;
+		private boolean inLane = false;
+
+		private long lastStarted = 0;
+		private long lastTimestamp;
+		private long lastLap;
+		private int lastNumber;
+
+		public Writer(OutputStream stream) {
+			this.out = new BufferedOutputStream(stream, 16384);
+		}
+
+		private void writeHeader() throws IOException {
+			if (!header) {
+				header = true;
+				writeInt(MAGIC);
+				out.write(VERSION >>> 8);
+				out.write(VERSION);
+			}
+		}
+
+		private void writeInt(int value) throws IOException {
+			out.write(value >>> 24);
+			out.write(value >>> 16);
+			out.write(value >>> 8);
+			out.write(value);
+		}
+
+		private void endLane() throws IOException {
+			if (inLane) {
+				out.write(0);
+				inLane = false;
+			}
+		}
+
+		@Override
+		public void startSession(long startedMillis) throws IOException {
+			writeHeader();
+			endLane();
+			out.write(TAG_SESSION);
+			writeSigned(startedMillis - lastStarted);
+			lastStarted = startedMillis;
+		}
+
+		@Override
+		public void startLane(int lane, String car) throws IOException {
+			endLane();
+			out.write(TAG_LANE);
+			writeUnsigned(lane);
+			byte[] name = car != null ? nameBytes(car) : new byte[0];
+			writeUnsigned(name.length);
+			out.write(name);
+			inLane = true;
+			lastTimestamp = lastStarted;
+			lastLap = 0;
+			lastNumber = 0;
+		}
+
+		@Override
+		public void lap(int number, long lapMillis, long timestampMillis, long rawMillis, int flags) throws IOException {
+			if (number <= lastNumber) {
+				throw new IOException("Lap numbers must increase: " + number + " after " + lastNumber);
+			}
+			boolean corrected = rawMillis != lapMillis;
+			boolean extras = corrected || flags != 0;
+			writeUnsigned(((long) (number - lastNumber) << 1) | (extras ? 1 : 0));
+			writeSigned(lapMillis - lastLap);
+			writeSigned(timestampMillis - lastTimestamp - lapMillis);
+			if (extras) {
+				writeUnsigned(((long) flags << 1) | (corrected ? 1 : 0));
+			}
+			if (corrected) {
+				writeSigned(rawMillis - lapMillis);
+			}
+			lastNumber = number;
+			lastLap = lapMillis;
+			lastTimestamp = timestampMillis;
+		}
+
+		@Override
+		public void finish() throws IOException {
+			writeHeader();
+			endLane();
+			out.write(TAG_END);
+			out.flush();
+		}
+
+		private void writeSigned(long value) throws IOException {
+			writeUnsigned((value << 1) ^ (value >> 63));
+		}
+
+		private void writeUnsigned(long value) throws IOException {
+			while ((value & ~0x7FL) != 0) {
+				out.write((int) (value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			out.write((int) value);
+		}
+	}
+
+	/**
+	 * Reads an archive, and hands its sessions, lanes and laps to the given writer, in the order they were
+	 * written. The writer is finished at the end.
+	 *
+	 * @throws IOException if the stream is not an archive, or is corrupt or cut short
+	 */
+	public static void read(InputStream stream, ExportWriter writer) throws IOException {
+
+		InputStream in = new BufferedInputStream(stream, 16384);
+
+		if (readInt(in) != MAGIC) {
+			throw new IOException("Not a lap archive");
+		}
+		int version = (read(in) << 8) | read(in);
+		if (version == 1) {
+			readVersion1(in, writer);
+		}
+		else if (version >= 2 && version <= VERSION) {
+			readVersion2(in, writer, version);
+		}
+		else {
+			throw new IOException("Unsupported archive version: " + version);
+		}
+		writer.finish();
+	}
+
+	/**
+	 * Reads versions 2 to 4, which only differ in what follows the lap number delta.
+	 */
+	private static void readVersion2(InputStream in, ExportWriter writer, int version) throws IOException {
+
+		long started = 0;
+		boolean inSession = false;
+
+		while (true) {
+			int tag = read(in);
+			if (tag == TAG_END) {
+				return;
+			}
+			else if (tag == TAG_SESSION) {
+				started += readSigned(in);
+				inSession = true;
+				writer.startSession(started);
+			}
+			else if (tag == TAG_LANE && inSession) {
+				long lane = readUnsigned(in);
+				long length = readUnsigned(in);
+				if (lane < 0 || lane >= MAX_LANES || length < 0 || length > MAX_NAME_BYTES) {
+					throw new IOException("Corrupt lap archive");
+				}
+				byte[] name = new byte[(int) length];
+				readFully(in, name);
+				writer.startLane((int) lane, name.length > 0 ? new String(name, UTF8) : null);
+
+				long timestamp = started;
+				long lap = 0;
+				int number = 0;
+				while (true) {
+					long delta = readUnsigned(in);
+					if (delta == 0) {
+						break;
+					}
+					boolean extras = false;
+					if (version >= 3) {
+						extras = (delta & 1) != 0;
+						delta >>>= 1;
+					}
+					number += (int) delta;
+					lap += readSigned(in);
+					timestamp += readSigned(in) + lap;
+					boolean corrected = extras;
+					int flags = 0;
+					if (extras && version >= 4) {
+						long value = readUnsigned(in);
+						corrected = (value & 1) != 0;
+						flags = (int) (value >>> 1);
+					}
+					writer.lap(number, lap, timestamp, corrected ? lap + readSigned(in) : lap, flags);
+				}
+			}
+			else {
+				throw new IOException("Corrupt lap archive");
+			}
+		}
+	}
+
+	private static void readVersion1(InputStream in, ExportWriter writer) throws IOException {
+		while (true) {
+			int tag = read(in);
+			if (tag == TAG_END) {
+				return;
+			}
+			else if (tag == TAG_SESSION) {
+				writer.startSession(readLong(in));
+			}
+			else if (tag == TAG_LANE) {
+				int lane = read(in);
+				int length = (read(in) << 8) | read(in);
+				if (lane >= MAX_LANES || length > MAX_NAME_BYTES) {
+					throw new IOException("Corrupt lap archive");
+				}
+				byte[] name = new byte[length];
+				readFully(in, name);
+				writer.startLane(lane, name.length > 0 ? new String(name, UTF8) : null);
+			}
+			else if (tag == TAG_LAP_V1) {
+				int number = readInt(in);
+				int lap = readInt(in);
+				writer.lap(number, lap, readLong(in), lap, 0);
+			}
+			else {
+				throw new IOException("Corrupt lap archive");
+			}
+		}
+	}
+
+	/**
+	 * UTF-8 bytes of a car name, cut to {@link #MAX_NAME_BYTES} on a character boundary.
+	 */
+	private static byte[] nameBytes(String car) {
+		byte[] name = car.getBytes(UTF8);
+		int length = car.length();
+		while (name.length > MAX_NAME_BYTES) {
+			length--;
+			if (length > 0 && Character.isHighSurrogate(car.charAt(length - 1))) {
+				length--;
+			}
+			name = car.substring(0, length).getBytes(UTF8);
+		}
+		return name;
+	}
+
+	private static int read(InputStream in) throws IOException {
+		int b = in.read();
+		if (b < 0) {
+			throw new EOFException("Lap archive cut short");
+		}
+		return b;
+	}
+
+	private static void readFully(InputStream in, byte[] bytes) throws IOException {
+		for (int offset = 0; offset < bytes.length;) {
+			int n = in.read(bytes, offset, bytes.length - offset);
+			if (n < 0) {
+				throw new EOFException("Lap archive cut short");
+			}
+			offset += n;
+		}
+	}
+
+	private static int readInt(InputStream in) throws IOException {
+		return (read(in) << 24) | (read(in) << 16) | (read(in) << 8) | read(in);
+	}
+
+	private static long readLong(InputStream in) throws IOException {
+		return ((long) readInt(in) << 32) | (readInt(in) & 0xFFFFFFFFL);
+	}
+
+	private static long readUnsigned(InputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = read(in);
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Corrupt lap archive");
+	}
+
+	private static long readSigned(InputStream in) throws IOException {
+		long value = readUnsigned(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
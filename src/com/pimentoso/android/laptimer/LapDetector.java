@@ -0,0 +1,351 @@
+package com.pimentoso.android.laptimer;
+
+/**
+ * Lap detection engine. Receives the luma plane of each camera frame, and tells its listener when a car
+ * crosses the gate. It has no Android dependencies, so it can be tested and benchmarked on a plain JVM.
+ *
+ * The gate is a {@link GateRegion}, made of segments whose average lightness is checked separately.
+ * Calibration seeds a {@link BackgroundModel} with {@link #CALIBRATION_FRAMES} frames; after that a frame
+ * is caught when any segment differs from the model by more than its threshold, and frames where nothing
+ * is caught keep the model up to date with the lighting. The differences of the last frame are available
+ * from {@link #getSegmentDeltas()}.
+ *
+ * A detector reads its own region with {@link #process(byte[], int, int, long)}. When several detectors
+ * watch the same frame (see {@link LaneSet}), the regions are read together by a {@link FrameScanner} and
+ * each detector gets its values with {@link #processValues(int[], long)}.
+ *
+ * Frames must always be processed from the same thread, and the listener is called on that thread. The
+ * control methods ({@link #calibrate()}, {@link #start()}, {@link #stop()}) can be called from any thread.
+ *
+ * @author Pimentoso
+ */
+public class LapDetector {
+
+	public interface Listener {
+
+		/**
+		 * Calibration has finished, the detector is ready to be started.
+		 */
+		void onCalibrated(LapDetector detector);
+
+		/**
+		 * Too many consecutive frames have been caught, because the lighting changed suddenly: the current
+		 * frame has been taken as the new background.
+		 */
+		void onBackgroundReset(LapDetector detector);
+
+		/**
+		 * The gate has been caught for too long, but not by a change of lighting: something stands on it,
+		 * like a stalled car or a hand. The background is kept, so nothing is timed when it leaves; if it
+		 * stays, the lane must be calibrated again.
+		 */
+		void onGateBlocked(LapDetector detector);
+
+		/**
+		 * The car has crossed the gate for the first time after {@link LapDetector#start()}.
+		 */
+		void onTimerStarted(LapDetector detector, long crossingNanos);
+
+		/**
+		 * The car has completed a lap.
+		 */
+		void onLap(LapDetector detector, long lapNanos, long crossingNanos);
+	}
+
+	public static final int CALIBRATION_FRAMES = 20; // how many frames are averaged during calibration
+	public static final long DEFAULT_CATCH_DELAY = 500000000L; // ignore laps shorter than this (nanoseconds)
+	public static final int CALIBRATION_ERROR_FRAMES = 50; // how many consecutive frames caught before the background is reset (about 2 sec)
+
+	private Listener listener;
+
+	// lane and gate index, when several detectors share a frame
+	private final int lane;
+	private final int gate;
+
+	// flags
+	private volatile boolean isCalibrating = false;
+	private volatile boolean isCalibrated = false;
+	private volatile boolean isStarted = false;
+	private volatile boolean isTimerRunning = false;
+
+	// lightness difference threshold, over which the frame is caught (= a new lap is started)
+	private volatile int threshold = 10;
+
+	// if true, crossings are placed halfway between the last clear frame and the first caught frame
+	private volatile boolean interpolate = true;
+
+	private volatile long catchDelay = DEFAULT_CATCH_DELAY;
+
+	// watched part of the frame, and its reader when the detector processes frames by itself
+	private GateRegion region;
+	private FrameScanner scanner;
+
+	// lightness difference of the segments from the background, in the current frame
+	private int[] deltas;
+
+	// lightness of the empty track
+	private BackgroundModel background;
+
+	// frame counter during calibration
+	private int frame = 0;
+
+	// number of frames caught subsequentially (for debounce and calibration warning purposes)
+	private int subsequentFramesCaught = 0;
+
+	// the gate has been caught too long by something standing on it
+	private boolean isBlocked = false;
+
+	// timestamp of the last frame where nothing was caught
+	private long lastClearNanos = 0;
+
+	// time of the last crossing
+	private long lastCatchNanos = 0;
+
+	public LapDetector() {
+		this(GateRegion.pixels());
+	}
+
+	public LapDetector(GateRegion region) {
+		this(region, 0);
+	}
+
+	public LapDetector(GateRegion region, int lane) {
+		this(region, lane, 0);
+	}
+
+	public LapDetector(GateRegion region, int lane, int gate) {
+		this.lane = lane;
+		this.gate = gate;
+		setRegion(region);
+	}
+
+	public int getLane() {
+		return lane;
+	}
+
+	/**
+	 * Gate of the {@link GateLayout} watched by this detector, 0 for the start/finish line.
+	 */
+	public int getGate() {
+		return gate;
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Changes the watched region. Must be called on the processing thread; calibration is lost.
+	 */
+	public void setRegion(GateRegion region) {
+		int segments = region.getSegmentCount();
+		this.region = region;
+		scanner = null;
+		deltas = new int[segments];
+		background = new BackgroundModel(segments);
+		isCalibrated = false;
+		isStarted = false;
+		isTimerRunning = false;
+	}
+
+	public GateRegion getRegion() {
+		return region;
+	}
+
+	/**
+	 * Lightness differences of each segment from its calibrated value, in the last processed frame.
+	 * The array is reused for every frame.
+	 */
+	public int[] getSegmentDeltas() {
+		return deltas;
+	}
+
+	public void setThreshold(int threshold) {
+		this.threshold = threshold;
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+	public void setInterpolate(boolean interpolate) {
+		this.interpolate = interpolate;
+	}
+
+	public void setCatchDelay(long catchDelayNanos) {
+		this.catchDelay = catchDelayNanos;
+	}
+
+	public boolean isCalibrating() {
+		return isCalibrating;
+	}
+
+	public boolean isCalibrated() {
+		return isCalibrated;
+	}
+
+	public boolean isStarted() {
+		return isStarted;
+	}
+
+	public boolean isTimerRunning() {
+		return isTimerRunning;
+	}
+
+	/**
+	 * True if something was crossing the gate in the last frame processed.
+	 */
+	public boolean isCaught() {
+		return subsequentFramesCaught > 0;
+	}
+
+	/**
+	 * Starts a new calibration. The detector stops, and must be started again after calibration.
+	 */
+	public void calibrate() {
+		isStarted = false;
+		isTimerRunning = false;
+		isCalibrated = false;
+		frame = 0;
+		isCalibrating = true;
+	}
+
+	/**
+	 * Starts listening for car passes. The timer starts at the first crossing.
+	 */
+	public void start() {
+		if (!isCalibrated) {
+			return;
+		}
+		isTimerRunning = false;
+		isStarted = true;
+	}
+
+	public void stop() {
+		isStarted = false;
+		isTimerRunning = false;
+	}
+
+	/**
+	 * Processes a frame.
+	 *
+	 * @param luma the luma plane, one byte per pixel, row by row (the first part of a NV21 buffer)
+	 * @param width frame width
+	 * @param height frame height
+	 * @param timestampNanos capture time of the frame
+	 * @return true if the frame was caught (something is crossing the gate)
+	 */
+	public boolean process(byte[] luma, int width, int height, long timestampNanos) {
+
+		if (scanner == null) {
+			scanner = new FrameScanner(region);
+		}
+
+		// get the lightness value of the segments
+		scanner.scan(luma, width, height);
+		return processValues(scanner.getValues(0), timestampNanos);
+	}
+
+	/**
+	 * Processes a frame already read by a {@link FrameScanner}.
+	 *
+	 * @param values average lightness of each segment of the region
+	 * @param timestampNanos capture time of the frame
+	 * @return true if the frame was caught (something is crossing the gate)
+	 */
+	public boolean processValues(int[] values, long timestampNanos) {
+
+		boolean frameCaught = false;
+
+		// calibrating...
+		if (isCalibrating) {
+
+			if (frame == 0) {
+				background.reset();
+			}
+			background.addCalibrationSample(values);
+			frame++;
+
+			if (frame >= CALIBRATION_FRAMES) {
+				// got values from all the frames, seed the background and finish calibration
+				background.finishCalibration();
+
+				subsequentFramesCaught = 0;
+				isBlocked = false;
+				isCalibrating = false;
+				isCalibrated = true;
+				if (listener != null) {
+					listener.onCalibrated(this);
+				}
+			}
+		}
+
+		// calibrated, listening for lightness variations
+		else if (isCalibrated) {
+
+			frameCaught = background.compare(values, threshold, deltas);
+
+			if (frameCaught) {
+				subsequentFramesCaught++;
+			}
+			else {
+				// nothing on the gate: follow the lighting
+				subsequentFramesCaught = 0;
+				isBlocked = false;
+				background.update(values);
+			}
+
+			// check if car has passed. ignore lap if previous frame was caught, and time is below threshold
+			if (isStarted && subsequentFramesCaught == 1) {
+
+				long catchNanos = timestampNanos;
+				if (interpolate && lastClearNanos > 0) {
+					// the car crossed somewhere between the last clear frame and this one: take the midpoint
+					catchNanos = lastClearNanos + (timestampNanos - lastClearNanos) / 2;
+				}
+
+				if (!isTimerRunning) {
+					// car has passed for the first time: start timer
+					isTimerRunning = true;
+					lastCatchNanos = catchNanos;
+					if (listener != null) {
+						listener.onTimerStarted(this, catchNanos);
+					}
+				}
+				else if (catchNanos - lastCatchNanos >= catchDelay) {
+					// car has passed: start a new lap
+					long lapNanos = catchNanos - lastCatchNanos;
+					lastCatchNanos = catchNanos;
+					if (listener != null) {
+						listener.onLap(this, lapNanos, catchNanos);
+					}
+				}
+			}
+
+			if (subsequentFramesCaught > CALIBRATION_ERROR_FRAMES) {
+				if (background.isLightingChange(deltas, threshold)) {
+					// the lighting has changed: take it as the new background
+					background.reseed(values);
+					subsequentFramesCaught = 0;
+					if (listener != null) {
+						listener.onBackgroundReset(this);
+					}
+				}
+				else if (!isBlocked) {
+					// something stands on the gate: taking it as the background would time a phantom lap
+					// when it leaves, so wait for the gate to clear
+					isBlocked = true;
+					if (listener != null) {
+						listener.onGateBlocked(this);
+					}
+				}
+			}
+		}
+
+		if (!frameCaught) {
+			lastClearNanos = timestampNanos;
+		}
+
+		return frameCaught;
+	}
+}
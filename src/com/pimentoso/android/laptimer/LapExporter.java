@@ -0,0 +1,83 @@
+package com.pimentoso.android.laptimer;
+
+import java.util.List;
+
+/**
+ * Formats lap lists for sharing. Files are written by {@link ExportWriter}.
+ *
+ * @author Pimentoso
+ */
+public class LapExporter {
+
+	/**
+	 * Plain text, as sent with the share menu. With more than one lane, laps are listed lane by lane.
+	 *
+	 * @param lanes the laps of each lane
+	 * @param stats the statistics of each lane, written after its laps
+	 * @param precision precision of the lap times, see {@link TimeFormat}
+	 */
+	public static String lapsToString(List<LapStore> lanes, List<LapStatistics> stats, int precision) {
+
+		StringBuilder s = new StringBuilder();
+
+		s.append("Mini 4WD Android Lap Timer data");
+		s.append("\n");
+
+		for (int lane = 0; lane < lanes.size(); lane++) {
+			LapStore laps = lanes.get(lane);
+
+			s.append("\n");
+			if (lanes.size() > 1) {
+				s.append("Lane ").append(lane + 1).append("\n");
+			}
+
+			int bestIndex = laps.getBestIndex();
+
+			for (int i = 0; i < laps.size(); i++) {
+				long lap = laps.get(i);
+				s.append("Lap ").append(i + 1).append(": ");
+				TimeFormat.append(lap, precision, s);
+				
+				if (i == bestIndex)
+					s.append(" (best)");
+
+				long raw = laps.getRaw(i);
+				if (raw != lap) {
+					int merged = laps.getMergedCount(i);
+					s.append(raw > lap ? " (split from " : merged > 0 ? " (merged " + merged + " false triggers, measured " : " (merged, measured ");
+					TimeFormat.append(raw, precision, s);
+					s.append(")");
+				}
+
+				if ((laps.getFlags(i) & LapStore.FLAG_POSSIBLY_MISSED) != 0) {
+					s.append(" (possibly missed)");
+				}
+				
+				s.append("\n");
+			}
+
+			LapStatistics laneStats = stats.get(lane);
+			if (laneStats.getCount() > 1) {
+				s.append("Average: ");
+				TimeFormat.append(Math.round(laneStats.getMean()), precision, s);
+				s.append(", deviation ");
+				TimeFormat.append(Math.round(laneStats.getStandardDeviation()), precision, s);
+				s.append("\nMedian: ");
+				TimeFormat.append(laneStats.getMedian(), precision, s);
+				s.append(", 90%: ");
+				TimeFormat.append(laneStats.getP90(), precision, s);
+				s.append("\n");
+				if (laneStats.getCount() >= laneStats.getWindow()) {
+					s.append("Best ").append(laneStats.getWindow()).append(" laps average: ");
+					TimeFormat.append(Math.round(laneStats.getBestRollingMean()), precision, s);
+					s.append("\n");
+				}
+				s.append("Theoretical best: ");
+				TimeFormat.append(laneStats.getTheoreticalBest(), precision, s);
+				s.append("\n");
+			}
+		}
+
+		return s.toString();
+	}
+}
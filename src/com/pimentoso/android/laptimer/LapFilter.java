@@ -0,0 +1,194 @@
+package com.pimentoso.android.laptimer;
+
+import java.util.Arrays;
+
+/**
+ * Checks the laps coming out of the detectors against the recent laps of their lane, and corrects the
+ * ones that can't be right:
+ *
+ * <ul>
+ * <li>a lap shorter than {@link #SHORT_RATIO} of the median is a false trigger: a hand, a shadow, or the
+ * car bouncing back through the gate. It is dropped, and its time carried over to the next lap, so the
+ * corrected lap spans from the last real crossing to the next one.</li>
+ * <li>a lap within {@link #SPLIT_TOLERANCE} of 2 or 3 times the median has missed crossings: it is split
+ * in that many equal laps.</li>
+ * </ul>
+ *
+ * Nothing is judged before {@link #MIN_LAPS} laps. Only laps taken as they are, or merged, make up the
+ * median; if {@link #RESET_AFTER} laps are dropped or split with no good lap in between, the pace of the
+ * lane has changed (a new car, a new battery), and the median starts over.
+ *
+ * Corrected laps are added to the output store with the time measured by the detector as their raw
+ * time, see {@link LapStore#getRaw(int)}: a raw time longer than the lap means a split, a shorter one a
+ * merge. A merged lap also records how many false triggers it absorbed, see
+ * {@link LapStore#getMergedCount(int)}, so the carried crossings are not lost: their total time is the
+ * lap time minus the raw time. False triggers still carried when the race stops never make it into a
+ * lap, and are reported by {@link #getCarryCount(int)} until the next {@link #reset()}.
+ *
+ * Plain Java, allocates nothing per lap. Not thread safe: laps are filtered on the camera thread.
+ *
+ * @author Pimentoso
+ */
+public class LapFilter {
+
+	public static final int ACCEPTED = 0;
+	public static final int REJECTED = 1;
+	public static final int MERGED = 2;
+	public static final int SPLIT = 3;
+
+	public static final int MIN_LAPS = 5;
+	public static final float SHORT_RATIO = 0.6f;
+	public static final float SPLIT_TOLERANCE = 0.15f;
+	public static final int MAX_SPLIT = 3;
+	public static final int RESET_AFTER = 3;
+
+	// number of recent laps the median is taken from
+	private static final int HISTORY = 9;
+
+	private final long[][] recent;
+	private final int[] recentCount;
+	private final long[] carry;
+	private final int[] carryFlags;
+	private final int[] carryCount;
+	private final int[] corrections;
+	private final long[] sorted = new long[HISTORY];
+
+	private volatile boolean enabled = true;
+
+	/**
+	 * @param lanes number of lanes
+	 */
+	public LapFilter(int lanes) {
+		recent = new long[lanes][HISTORY];
+		recentCount = new int[lanes];
+		carry = new long[lanes];
+		carryFlags = new int[lanes];
+		carryCount = new int[lanes];
+		corrections = new int[lanes];
+	}
+
+	/**
+	 * When disabled, laps are passed through unchanged.
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Checks a lap, and adds the resulting laps to the output.
+	 *
+	 * @param lapMillis lap time measured by the detector
+	 * @param timestampMillis wall clock time of the crossing that ended it
+	 * @param flags flags of the lap, see {@link LapStore#FLAG_POSSIBLY_MISSED}; a merged lap gets the flags
+	 *            of the laps it is made of, and the number of false triggers in it
+	 * @return {@link #ACCEPTED}, {@link #REJECTED} (nothing added), {@link #MERGED} or {@link #SPLIT}
+	 */
+	public int process(int lane, long lapMillis, long timestampMillis, int flags, LapStore out) {
+
+		if (!enabled) {
+			out.add(lapMillis, timestampMillis, lapMillis, flags);
+			return ACCEPTED;
+		}
+
+		long median = getMedian(lane);
+
+		if (median > 0 && lapMillis < median * SHORT_RATIO && carry[lane] + lapMillis < median * SHORT_RATIO) {
+			carry[lane] += lapMillis;
+			carryFlags[lane] |= flags;
+			carryCount[lane]++;
+			countCorrection(lane);
+			return REJECTED;
+		}
+
+		if (carry[lane] > 0) {
+			long merged = carry[lane] + lapMillis;
+			carry[lane] = 0;
+			out.add(merged, timestampMillis, lapMillis, flags | carryFlags[lane] | LapStore.mergedFlags(carryCount[lane]));
+			carryFlags[lane] = 0;
+			carryCount[lane] = 0;
+			remember(lane, merged);
+			return MERGED;
+		}
+
+		int parts = median > 0 ? getSplitCount(lapMillis, median) : 1;
+		if (parts > 1) {
+			// equal parts, the rounding left over goes to the last one
+			long part = lapMillis / parts;
+			for (int i = 1; i <= parts; i++) {
+				long millis = i < parts ? part : lapMillis - part * (parts - 1);
+				out.add(millis, timestampMillis - (parts - i) * part, lapMillis, flags);
+			}
+			countCorrection(lane);
+			return SPLIT;
+		}
+
+		out.add(lapMillis, timestampMillis, lapMillis, flags);
+		remember(lane, lapMillis);
+		corrections[lane] = 0;
+		return ACCEPTED;
+	}
+
+	private static int getSplitCount(long lapMillis, long median) {
+		for (int parts = 2; parts <= MAX_SPLIT; parts++) {
+			if (Math.abs(lapMillis - parts * median) <= parts * median * SPLIT_TOLERANCE) {
+				return parts;
+			}
+		}
+		return 1;
+	}
+
+	private void remember(int lane, long lapMillis) {
+		recent[lane][recentCount[lane] % HISTORY] = lapMillis;
+		recentCount[lane]++;
+	}
+
+	private void countCorrection(int lane) {
+		if (++corrections[lane] >= RESET_AFTER) {
+			// this many corrections in a row: the median is the one that is wrong
+			recentCount[lane] = 0;
+			corrections[lane] = 0;
+		}
+	}
+
+	/**
+	 * Median of the recent laps of a lane, 0 while there are fewer than {@link #MIN_LAPS}.
+	 */
+	public long getMedian(int lane) {
+		int count = Math.min(recentCount[lane], HISTORY);
+		if (count < MIN_LAPS) {
+			return 0;
+		}
+		System.arraycopy(recent[lane], 0, sorted, 0, count);
+		Arrays.sort(sorted, 0, count);
+		return sorted[count / 2];
+	}
+
+	/**
+	 * Number of false triggers carried over to the next lap of a lane, which has not come yet.
+	 */
+	public int getCarryCount(int lane) {
+		return carryCount[lane];
+	}
+
+	/**
+	 * Total time of the false triggers carried over to the next lap of a lane.
+	 */
+	public long getCarry(int lane) {
+		return carry[lane];
+	}
+
+	/**
+	 * Forgets the laps of all the lanes, for a new race.
+	 */
+	public void reset() {
+		Arrays.fill(recentCount, 0);
+		Arrays.fill(carry, 0);
+		Arrays.fill(carryFlags, 0);
+		Arrays.fill(carryCount, 0);
+		Arrays.fill(corrections, 0);
+	}
+}
@@ -0,0 +1,284 @@
+package com.pimentoso.android.laptimer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Append-only journal of the laps of the session in progress, so that they survive the process being
+ * killed.
+ *
+ * The file is pre-allocated and memory mapped: adding a lap is a 22 byte write into the mapping, with no
+ * system call and no sync. Once written, the bytes belong to the kernel page cache, and reach the file
+ * even if the process dies right after. Only a power loss before the kernel writes the page back can
+ * lose the last laps. A lap is written here when the UI thread hands it to
+ * {@link SessionWriter#addLaps(int, LapStore, int)}, not when the detector sees it: laps still waiting to be
+ * drained from the camera thread are lost with the process.
+ *
+ * Layout: a fixed header with magic, version, session start (0 when no session is open), threshold,
+ * lane count and car names, followed by fixed size records:
+ *
+ * <pre>
+ * long timestamp millis | int lap millis | int raw millis | byte lane | byte flags | int check
+ * </pre>
+ *
+ * The check mixes the record fields with the record index and the session start, and is written last:
+ * recovery stops at the first record that does not match, which is either the unused space after the
+ * last lap, a record torn by the kill, or a record left over from an older session. Records with no lap
+ * time, or timed before the session start, are refused as well, so that a stray match cannot turn junk
+ * into a lap.
+ *
+ * A journal of another version is discarded when opened.
+ *
+ * Once the session is saved to the database, the journal is cleared for the next one. Methods are
+ * synchronized, since laps are added on the UI thread and the journal is cleared by the
+ * {@link SessionWriter} thread.
+ *
+ * @author Pimentoso
+ */
+public class LapJournal {
+
+	static final int MAGIC = 0x4D344A4C; // "M4JL"
+	static final short VERSION = 3;
+
+	private static final int HEADER_SIZE = 256;
+	private static final int RECORD_SIZE = 22;
+
+	// room for the car names in the header
+	private static final int MAX_NAME_BYTES = 64;
+
+	// initial file size, grown by doubling
+	private static final int INITIAL_RECORDS = 4096;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * A session read back from the journal.
+	 */
+	public static class Session {
+
+		public final long startedMillis;
+		public final int threshold;
+		public final String[] cars;
+		public final LapStore[] laps;
+
+		Session(long startedMillis, int threshold, String[] cars, LapStore[] laps) {
+			this.startedMillis = startedMillis;
+			this.threshold = threshold;
+			this.cars = cars;
+			this.laps = laps;
+		}
+
+		public int getLapCount() {
+			int count = 0;
+			for (LapStore lane : laps) {
+				count += lane.size();
+			}
+			return count;
+		}
+
+		/**
+		 * Time of the last lap, or the start if there are none.
+		 */
+		public long getLastTimestamp() {
+			long last = startedMillis;
+			for (LapStore lane : laps) {
+				if (lane.size() > 0) {
+					last = Math.max(last, lane.getTimestamp(lane.size() - 1));
+				}
+			}
+			return last;
+		}
+	}
+
+	private final RandomAccessFile file;
+	private MappedByteBuffer map;
+	private int capacity;
+	private int count = 0;
+	private long startedMillis = 0;
+	private int laneCount = 0;
+
+	/**
+	 * Opens the journal, creating it if needed. An open session is kept, see {@link #recover()}.
+	 */
+	public LapJournal(File path) throws IOException {
+
+		file = new RandomAccessFile(path, "rw");
+		long length = file.length();
+		capacity = Math.max(INITIAL_RECORDS, (int) ((length - HEADER_SIZE) / RECORD_SIZE));
+		map(capacity);
+
+		if (length < HEADER_SIZE || map.getInt(0) != MAGIC || map.getShort(4) != VERSION) {
+			writeHeader(0, 0, new String[0]);
+		}
+		else {
+			startedMillis = map.getLong(6);
+			laneCount = map.get(18);
+			count = scan(null);
+		}
+	}
+
+	private void map(int records) throws IOException {
+		long size = HEADER_SIZE + (long) records * RECORD_SIZE;
+		file.setLength(size);
+		map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+	}
+
+	private void writeHeader(long started, int threshold, String[] cars) {
+
+		map.putInt(0, MAGIC);
+		map.putShort(4, VERSION);
+		map.putLong(6, 0);
+		map.putInt(14, threshold);
+		map.put(18, (byte) cars.length);
+
+		int offset = 19;
+		for (String car : cars) {
+			byte[] name = car != null ? car.getBytes(UTF8) : new byte[0];
+			int length = Math.min(name.length, MAX_NAME_BYTES);
+			map.put(offset, (byte) length);
+			for (int i = 0; i < length; i++) {
+				map.put(offset + 1 + i, name[i]);
+			}
+			offset += 1 + MAX_NAME_BYTES;
+		}
+
+		// the start time marks the session as open, so it goes last
+		map.putLong(6, started);
+		startedMillis = started;
+		laneCount = cars.length;
+	}
+
+	/**
+	 * Reads back the open session, if any. Its laps are appended to by {@link #append(int, long, long, long, int)}
+	 * until it is cleared, or a new one is begun.
+	 *
+	 * @return the session, or null if there is none
+	 */
+	public synchronized Session recover() {
+
+		if (startedMillis == 0) {
+			return null;
+		}
+
+		int threshold = map.getInt(14);
+		String[] cars = new String[laneCount];
+		LapStore[] laps = new LapStore[laneCount];
+		for (int lane = 0, offset = 19; lane < laneCount; lane++, offset += 1 + MAX_NAME_BYTES) {
+			byte[] name = new byte[map.get(offset)];
+			for (int i = 0; i < name.length; i++) {
+				name[i] = map.get(offset + 1 + i);
+			}
+			cars[lane] = new String(name, UTF8);
+			laps[lane] = new LapStore();
+		}
+
+		scan(laps);
+		return new Session(startedMillis, threshold, cars, laps);
+	}
+
+	/**
+	 * Reads the valid records of the open session.
+	 *
+	 * @param laps if not null, the laps are added to these stores, by lane
+	 * @return the number of records
+	 */
+	private int scan(LapStore[] laps) {
+		int records = 0;
+		while (records < capacity) {
+			int offset = HEADER_SIZE + records * RECORD_SIZE;
+			long timestamp = map.getLong(offset);
+			int lap = map.getInt(offset + 8);
+			int raw = map.getInt(offset + 12);
+			short laneFlags = map.getShort(offset + 16);
+			int lane = laneFlags & 0xFF;
+			if (map.getInt(offset + 18) != check(records, timestamp, lap, raw, laneFlags)
+					|| lane >= laneCount || lap <= 0 || timestamp < startedMillis) {
+				break;
+			}
+			if (laps != null) {
+				laps[lane].add(lap, timestamp, raw, laneFlags >>> 8 & 0xFF);
+			}
+			records++;
+		}
+		return records;
+	}
+
+	/**
+	 * Opens a new session, discarding the laps of the previous one.
+	 *
+	 * @param cars car name of each lane, can be null
+	 */
+	public synchronized void begin(long startedMillis, int threshold, String[] cars) {
+		erase();
+		writeHeader(startedMillis, threshold, cars);
+	}
+
+	/**
+	 * Adds a lap to the open session. Laps added with no open session are ignored, and so are laps that
+	 * recovery would refuse, since it stops at the first of them.
+	 *
+	 * @param rawMillis lap time measured by the detector, see {@link LapStore#getRaw(int)}
+	 * @param flags see {@link LapStore#getFlags(int)}
+	 */
+	public synchronized void append(int lane, long lapMillis, long timestampMillis, long rawMillis, int flags) throws IOException {
+
+		if (startedMillis == 0 || lane >= laneCount || lapMillis <= 0 || timestampMillis < startedMillis) {
+			return;
+		}
+
+		if (count == capacity) {
+			capacity *= 2;
+			map(capacity);
+		}
+
+		int offset = HEADER_SIZE + count * RECORD_SIZE;
+		map.putLong(offset, timestampMillis);
+		map.putInt(offset + 8, (int) lapMillis);
+		map.putInt(offset + 12, (int) rawMillis);
+		short laneFlags = (short) ((flags & 0xFF) << 8 | lane);
+		map.putShort(offset + 16, laneFlags);
+		map.putInt(offset + 18, check(count, timestampMillis, (int) lapMillis, (int) rawMillis, laneFlags));
+		count++;
+	}
+
+	/**
+	 * Closes the session, once its laps are safe somewhere else. Nothing happens if another session has
+	 * been begun meanwhile.
+	 */
+	public synchronized void clear(long startedMillis) {
+		if (startedMillis == this.startedMillis) {
+			map.putLong(6, 0);
+			this.startedMillis = 0;
+			erase();
+		}
+	}
+
+	/**
+	 * Zeroes the records written so far, so that none of them can be read back as part of the next session.
+	 */
+	private void erase() {
+		for (int offset = HEADER_SIZE, end = HEADER_SIZE + count * RECORD_SIZE; offset < end; offset += 2) {
+			map.putShort(offset, (short) 0);
+		}
+		count = 0;
+	}
+
+	private int check(int index, long timestamp, int lap, int raw, short laneFlags) {
+		// the session start is mixed in too, so records left over from another session never match
+		int h = index * 0x9E3779B9 + (int) startedMillis;
+		h = (h ^ (int) timestamp) * 0x01000193;
+		h = (h ^ (int) (timestamp >>> 32)) * 0x01000193;
+		h = (h ^ lap) * 0x01000193;
+		h = (h ^ raw) * 0x01000193;
+		h = (h ^ laneFlags) * 0x01000193;
+		return h ^ (h >>> 16);
+	}
+
+	public synchronized void close() throws IOException {
+		file.close();
+	}
+}
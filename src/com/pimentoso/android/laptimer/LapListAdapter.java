@@ -1,11 +1,5 @@
 package com.pimentoso.android.laptimer;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
 import android.content.Context;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -13,83 +7,128 @@ import android.view.ViewGroup;
 import android.widget.BaseAdapter;
 import android.widget.TextView;
 
+/**
+ * Shows the laps of a {@link LapStore}, the last one on top.
+ *
+ * The adapter reads the store directly and formats only the rows that are on screen, reusing their
+ * views. When laps are added, {@link #notifyDataSetChanged()} rebinds the visible rows only; the adapter
+ * is never rebuilt.
+ */
 public class LapListAdapter extends BaseAdapter {
 
-	private final Context context;
-	private final List<Map<String, String>> values;
+	private final LayoutInflater inflater;
+	private final LapStore laps;
+	private final int precision;
+
+	private static final char[] LAP_PREFIX = "Lap ".toCharArray();
+
+	// each row formats its texts into its own buffers, which its text views keep showing
+	private static class ViewHolder {
+		TextView num;
+		TextView time;
+		TextView notice;
+		final char[] numChars = new char[LAP_PREFIX.length + 10];
+		final char[] timeChars = new char[TimeFormat.MAX_LENGTH];
+	}
 
-	public LapListAdapter(Context context, ArrayList<Long> laps) {
+	/**
+	 * @param precision see {@link TimeFormat}
+	 */
+	public LapListAdapter(Context context, LapStore laps, int precision) {
 		super();
-		this.context = context;
-		
-		this.values = new ArrayList<Map<String,String>>();
-		Map<String, String> currentItemMap = null;
-		
-		long bestTime = Long.MAX_VALUE;
-		int bestIndex = 0;
-		long worstTime = Long.MIN_VALUE;
-		int worstIndex = 0;
-		
-		if (laps.size() > 0) {
-			for (int i = 0; i < laps.size(); i++) {
-				currentItemMap = new HashMap<String, String>();
-				this.values.add(currentItemMap);
-				long lap = laps.get(i);
-				
-				if (lap > worstTime) {
-					worstTime = lap;
-					worstIndex = i;
-				}
-				
-				if (lap < bestTime) {
-					bestTime = lap;
-					bestIndex = i;
-				}
-	
-				currentItemMap.put("num", "Lap " + (i+1));
-				currentItemMap.put("time", Utils.convertTime(lap));
-			}
-			
-			values.get(worstIndex).put("notice", "(worst)");
-			values.get(bestIndex).put("notice", "(best)");
-			
-			Collections.reverse(values);
-		}
+		this.inflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+		this.laps = laps;
+		this.precision = precision;
 	}
 
 	@Override
 	public View getView(int position, View convertView, ViewGroup parent) {
-		
-		LayoutInflater inflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-		View rowView = inflater.inflate(R.layout.list_item_lap, parent, false);
 
-		TextView numView = (TextView) rowView.findViewById(R.id.lap_num);
-		TextView timeView = (TextView) rowView.findViewById(R.id.lap_time);
-		TextView noticeView = (TextView) rowView.findViewById(R.id.lap_notice);
+		View rowView = convertView;
+		ViewHolder holder;
+		if (rowView == null) {
+			rowView = inflater.inflate(R.layout.list_item_lap, parent, false);
+			holder = new ViewHolder();
+			holder.num = (TextView) rowView.findViewById(R.id.lap_num);
+			holder.time = (TextView) rowView.findViewById(R.id.lap_time);
+			holder.notice = (TextView) rowView.findViewById(R.id.lap_notice);
+			rowView.setTag(holder);
+		}
+		else {
+			holder = (ViewHolder) rowView.getTag();
+		}
 
-		String num = values.get(position).get("num");
-		String time = values.get(position).get("time");
-		String notice = values.get(position).get("notice");
+		int index = lapIndex(position);
+		long lap = laps.get(index);
 
-		numView.setText(num);
-		timeView.setText(time);
-		noticeView.setText(notice);
+		holder.num.setText(holder.numChars, 0, formatLapNumber(index + 1, holder.numChars));
+		holder.time.setText(holder.timeChars, 0, TimeFormat.format(lap, precision, holder.timeChars, 0));
+
+		// a doubtful or corrected lap says so first, even if it is the best one
+		long raw = laps.getRaw(index);
+		if ((laps.getFlags(index) & LapStore.FLAG_POSSIBLY_MISSED) != 0) {
+			holder.notice.setText("(possibly missed)");
+		}
+		else if (raw > lap) {
+			holder.notice.setText("(split)");
+		}
+		else if (raw < lap) {
+			holder.notice.setText("(merged)");
+		}
+		else if (index == laps.getBestIndex()) {
+			holder.notice.setText("(best)");
+		}
+		else if (index == laps.getWorstIndex()) {
+			holder.notice.setText("(worst)");
+		}
+		else {
+			holder.notice.setText(null);
+		}
 
 		return rowView;
 	}
 
+	/**
+	 * Writes "Lap n" into the buffer, returns its length.
+	 */
+	private static int formatLapNumber(int number, char[] out) {
+		System.arraycopy(LAP_PREFIX, 0, out, 0, LAP_PREFIX.length);
+		int digits = 1;
+		for (int n = number / 10; n > 0; n /= 10) {
+			digits++;
+		}
+		for (int i = LAP_PREFIX.length + digits - 1; i >= LAP_PREFIX.length; i--) {
+			out[i] = (char) ('0' + number % 10);
+			number /= 10;
+		}
+		return LAP_PREFIX.length + digits;
+	}
+
+	/**
+	 * The list shows the last lap first.
+	 */
+	private int lapIndex(int position) {
+		return laps.size() - 1 - position;
+	}
+
 	@Override
 	public int getCount() {
-		return values.size();
+		return laps.size();
 	}
 
 	@Override
 	public Object getItem(int pos) {
-		return pos;
+		return laps.get(lapIndex(pos));
 	}
 
 	@Override
 	public long getItemId(int pos) {
-		return pos;
+		return lapIndex(pos);
+	}
+
+	@Override
+	public boolean hasStableIds() {
+		// ids are lap indexes, which never change when laps are added
+		return true;
 	}
 }
@@ -0,0 +1,166 @@
+package com.pimentoso.android.laptimer;
+
+/**
+ * Statistics of the laps of a lane, updated as each lap comes in, so they can be shown after every lap
+ * and written at the end of an export without going through the laps again.
+ *
+ * <ul>
+ * <li>mean and standard deviation, and their ratio as a consistency figure</li>
+ * <li>median, 90th percentile, or any quantile, from a {@link QuantileSketch}: fixed memory, within
+ * 0.05% of the exact value</li>
+ * <li>average of the last {@link #getWindow()} laps, and the best such average of the session</li>
+ * <li>theoretical best: the sum of the best time of each sector, which is the best lap as long as a lap
+ * is a single sector</li>
+ * </ul>
+ *
+ * The mean, deviation and rolling averages are the same {@link RunningStats} a {@link LapStore} keeps,
+ * without the laps themselves, so that the memory used does not grow with the session. Adding a lap
+ * takes O(1), apart from the O(log buckets) of the sketch. Not thread safe.
+ *
+ * @author Pimentoso
+ */
+public class LapStatistics {
+
+	private final QuantileSketch sketch = new QuantileSketch();
+
+	private final RunningStats aggregates;
+	private long best = 0;
+
+	// best time of each sector
+	private long[] bestSectors = new long[1];
+	private int sectorCount = 1;
+
+	public LapStatistics() {
+		this(LapStore.DEFAULT_WINDOW);
+	}
+
+	/**
+	 * @param window number of laps in the rolling average
+	 */
+	public LapStatistics(int window) {
+		aggregates = new RunningStats(window);
+	}
+
+	/**
+	 * Adds a lap made of a single sector.
+	 */
+	public void add(long lapMillis) {
+
+		if (aggregates.getCount() == 0 || lapMillis < best) {
+			best = lapMillis;
+		}
+
+		aggregates.add(lapMillis);
+		sketch.add(lapMillis);
+
+		if (sectorCount == 1) {
+			bestSectors[0] = best;
+		}
+	}
+
+	/**
+	 * Adds the sector times of the last lap, for the theoretical best. The lap itself is added with
+	 * {@link #add(long)}.
+	 */
+	public void addSectors(long[] sectorMillis, int sectors) {
+		if (sectors != sectorCount) {
+			// new layout of the track: start over
+			if (bestSectors.length < sectors) {
+				bestSectors = new long[sectors];
+			}
+			sectorCount = sectors;
+			for (int i = 0; i < sectors; i++) {
+				bestSectors[i] = sectorMillis[i];
+			}
+			return;
+		}
+		for (int i = 0; i < sectors; i++) {
+			if (sectorMillis[i] < bestSectors[i]) {
+				bestSectors[i] = sectorMillis[i];
+			}
+		}
+	}
+
+	public int getCount() {
+		return aggregates.getCount();
+	}
+
+	/**
+	 * Fastest lap, 0 if there are no laps.
+	 */
+	public long getBest() {
+		return best;
+	}
+
+	public double getMean() {
+		return aggregates.getMean();
+	}
+
+	/**
+	 * Sample standard deviation, 0 with less than 2 laps.
+	 */
+	public double getStandardDeviation() {
+		return aggregates.getStandardDeviation();
+	}
+
+	/**
+	 * Standard deviation as a fraction of the mean: the lower, the more consistent the laps.
+	 */
+	public double getVariation() {
+		double mean = aggregates.getMean();
+		return mean > 0 ? getStandardDeviation() / mean : 0;
+	}
+
+	public long getMedian() {
+		return sketch.getQuantile(0.5);
+	}
+
+	public long getP90() {
+		return sketch.getQuantile(0.9);
+	}
+
+	/**
+	 * @param q between 0 and 1
+	 */
+	public long getQuantile(double q) {
+		return sketch.getQuantile(q);
+	}
+
+	public int getWindow() {
+		return aggregates.getWindow();
+	}
+
+	/**
+	 * Average of the last {@link #getWindow()} laps, or of all the laps if there are fewer. 0 if there are
+	 * no laps.
+	 */
+	public double getRollingMean() {
+		return aggregates.getWindowMean();
+	}
+
+	/**
+	 * Best average of {@link #getWindow()} laps in a row, 0 until there are that many laps.
+	 */
+	public double getBestRollingMean() {
+		return aggregates.getBestWindowMean();
+	}
+
+	/**
+	 * Sum of the best time of each sector, 0 if there are no laps.
+	 */
+	public long getTheoreticalBest() {
+		long sum = 0;
+		for (int i = 0; i < sectorCount; i++) {
+			sum += bestSectors[i];
+		}
+		return sum;
+	}
+
+	public void clear() {
+		sketch.clear();
+		aggregates.clear();
+		best = 0;
+		sectorCount = 1;
+		bestSectors[0] = 0;
+	}
+}
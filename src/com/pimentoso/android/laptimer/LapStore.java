@@ -0,0 +1,265 @@
+package com.pimentoso.android.laptimer;
+
+/**
+ * The laps of a lane, stored as primitive milliseconds in growable arrays: the lap times, the time each
+ * lap was completed, the raw time measured by the detector, which differs from the lap time when the
+ * lap was corrected by a {@link LapFilter}, and flags such as {@link #FLAG_POSSIBLY_MISSED}. Adding a
+ * lap takes constant time and boxes nothing.
+ *
+ * Aggregates are kept up to date as laps are added, so the lap list, the exporters and the statistics
+ * never need to rescan the session: count, sum, best and worst lap, and the {@link RunningStats} mean,
+ * variance and sum of the last {@link #getWindow()} laps, for a rolling average.
+ *
+ * A store is meant to be cleared and reused from one session to the next: {@link #clear()} keeps the
+ * allocated arrays.
+ *
+ * Not thread safe: laps are added and read on the UI thread.
+ *
+ * @author Pimentoso
+ */
+public class LapStore {
+
+	public static final int DEFAULT_WINDOW = 5;
+
+	/**
+	 * The camera dropped frames during the lap: a crossing may have been missed, or timed late.
+	 */
+	public static final int FLAG_POSSIBLY_MISSED = 1;
+
+	/**
+	 * The number of false triggers merged into a lap by a {@link LapFilter} is kept in the flags, this many
+	 * bits up, see {@link #getMergedCount(int)}. Their total time is the lap time minus the raw time.
+	 */
+	public static final int MERGED_SHIFT = 4;
+	public static final int MAX_MERGED = 15;
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private long[] laps = new long[INITIAL_CAPACITY];
+	private long[] timestamps = new long[INITIAL_CAPACITY];
+	private long[] raws = new long[INITIAL_CAPACITY];
+	private byte[] flags = new byte[INITIAL_CAPACITY];
+	private int size = 0;
+
+	private int bestIndex = -1;
+	private int worstIndex = -1;
+	private long sum = 0;
+
+	// mean, variance and rolling window
+	private final RunningStats aggregates = new RunningStats(DEFAULT_WINDOW);
+
+	/**
+	 * Adds a lap.
+	 *
+	 * @param lapMillis lap time
+	 * @param timestampMillis wall clock time the lap was completed
+	 */
+	public void add(long lapMillis, long timestampMillis) {
+		add(lapMillis, timestampMillis, lapMillis, 0);
+	}
+
+	/**
+	 * Adds a corrected or flagged lap.
+	 *
+	 * @param lapMillis lap time
+	 * @param timestampMillis wall clock time the lap was completed
+	 * @param rawMillis lap time measured by the detector
+	 * @param lapFlags {@link #FLAG_POSSIBLY_MISSED} or 0, and the {@link #mergedFlags(int)}
+	 */
+	public void add(long lapMillis, long timestampMillis, long rawMillis, int lapFlags) {
+
+		if (size == laps.length) {
+			laps = grow(laps);
+			timestamps = grow(timestamps);
+			raws = grow(raws);
+			byte[] grown = new byte[flags.length * 2];
+			System.arraycopy(flags, 0, grown, 0, flags.length);
+			flags = grown;
+		}
+
+		// the first of equal laps stays the best or worst one
+		if (bestIndex < 0 || lapMillis < laps[bestIndex]) {
+			bestIndex = size;
+		}
+		if (worstIndex < 0 || lapMillis > laps[worstIndex]) {
+			worstIndex = size;
+		}
+
+		laps[size] = lapMillis;
+		timestamps[size] = timestampMillis;
+		raws[size] = rawMillis;
+		flags[size] = (byte) lapFlags;
+		size++;
+
+		sum += lapMillis;
+		aggregates.add(lapMillis);
+	}
+
+	/**
+	 * Adds all the laps of another store.
+	 */
+	public void addAll(LapStore other) {
+		for (int i = 0; i < other.size; i++) {
+			add(other.laps[i], other.timestamps[i], other.raws[i], other.flags[i] & 0xFF);
+		}
+	}
+
+	private static long[] grow(long[] array) {
+		long[] grown = new long[array.length * 2];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Lap time in milliseconds, index 0 is the first lap.
+	 */
+	public long get(int index) {
+		checkIndex(index);
+		return laps[index];
+	}
+
+	/**
+	 * Wall clock time in milliseconds when the lap was completed.
+	 */
+	public long getTimestamp(int index) {
+		checkIndex(index);
+		return timestamps[index];
+	}
+
+	/**
+	 * Lap time measured by the detector: longer than the lap time if a missed lap was split, shorter if a
+	 * false trigger was merged into it, the same otherwise.
+	 */
+	public long getRaw(int index) {
+		checkIndex(index);
+		return raws[index];
+	}
+
+	public int getFlags(int index) {
+		checkIndex(index);
+		return flags[index] & 0xFF;
+	}
+
+	/**
+	 * Number of false triggers merged into the lap, up to {@link #MAX_MERGED}.
+	 */
+	public int getMergedCount(int index) {
+		return mergedCount(getFlags(index));
+	}
+
+	/**
+	 * Number of false triggers merged into a lap with the given flags.
+	 */
+	public static int mergedCount(int lapFlags) {
+		return lapFlags >>> MERGED_SHIFT & MAX_MERGED;
+	}
+
+	/**
+	 * Flags that record the given number of false triggers merged into a lap.
+	 */
+	public static int mergedFlags(int count) {
+		return Math.min(count, MAX_MERGED) << MERGED_SHIFT;
+	}
+
+	public boolean isCorrected(int index) {
+		checkIndex(index);
+		return raws[index] != laps[index];
+	}
+
+	private void checkIndex(int index) {
+		if (index >= size) {
+			throw new IndexOutOfBoundsException("Lap " + index + " of " + size);
+		}
+	}
+
+	/**
+	 * Index of the fastest lap, -1 if there are no laps.
+	 */
+	public int getBestIndex() {
+		return bestIndex;
+	}
+
+	/**
+	 * Index of the slowest lap, -1 if there are no laps.
+	 */
+	public int getWorstIndex() {
+		return worstIndex;
+	}
+
+	/**
+	 * Fastest lap time, 0 if there are no laps.
+	 */
+	public long getMin() {
+		return size > 0 ? laps[bestIndex] : 0;
+	}
+
+	/**
+	 * Slowest lap time, 0 if there are no laps.
+	 */
+	public long getMax() {
+		return size > 0 ? laps[worstIndex] : 0;
+	}
+
+	/**
+	 * Total time of all the laps.
+	 */
+	public long getSum() {
+		return sum;
+	}
+
+	public double getMean() {
+		return aggregates.getMean();
+	}
+
+	/**
+	 * Sample variance of the lap times, 0 with less than 2 laps.
+	 */
+	public double getVariance() {
+		return aggregates.getVariance();
+	}
+
+	public double getStandardDeviation() {
+		return aggregates.getStandardDeviation();
+	}
+
+	/**
+	 * Changes the number of laps in the rolling window. The window sum is computed again.
+	 */
+	public void setWindow(int window) {
+		aggregates.setWindow(window, laps, size);
+	}
+
+	public int getWindow() {
+		return aggregates.getWindow();
+	}
+
+	/**
+	 * Sum of the last {@link #getWindow()} laps, or of all the laps if there are fewer.
+	 */
+	public long getWindowSum() {
+		return aggregates.getWindowSum();
+	}
+
+	/**
+	 * Average of the last {@link #getWindow()} laps, or of all the laps if there are fewer. 0 if there are
+	 * no laps.
+	 */
+	public double getWindowMean() {
+		return aggregates.getWindowMean();
+	}
+
+	/**
+	 * Removes all the laps, keeping the allocated space.
+	 */
+	public void clear() {
+		size = 0;
+		bestIndex = -1;
+		worstIndex = -1;
+		sum = 0;
+		aggregates.clear();
+	}
+}
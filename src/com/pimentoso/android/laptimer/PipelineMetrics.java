@@ -0,0 +1,158 @@
+package com.pimentoso.android.laptimer;
+
+/**
+ * Timing of each stage of the capture, detect, lap, screen pipeline, in {@link LatencyHistogram}s:
+ *
+ * <ul>
+ * <li>{@link #INTERVAL}: time between two frame callbacks</li>
+ * <li>{@link #DETECTION}: time spent in the detectors for a frame</li>
+ * <li>{@link #BUFFER}: time a frame buffer is held, from the callback to its return to the camera</li>
+ * <li>{@link #LAP_TO_SCREEN}: time from the crossing of a lap to the lap list showing it</li>
+ * </ul>
+ *
+ * Frames the camera did not deliver are counted from the gaps between frame timestamps, by a
+ * {@link FrameGaps}.
+ *
+ * The frame stages are recorded on the camera thread and the screen stage on the UI thread; the report
+ * can be read from any thread. Nothing is allocated while recording.
+ *
+ * @author Pimentoso
+ */
+public class PipelineMetrics {
+
+	public static final int INTERVAL = 0;
+	public static final int DETECTION = 1;
+	public static final int BUFFER = 2;
+	public static final int LAP_TO_SCREEN = 3;
+
+	private static final String[] NAMES = { "frame interval", "detection", "buffer held", "lap to screen" };
+
+	private final LatencyHistogram[] histograms = new LatencyHistogram[NAMES.length];
+	private final FrameGaps gaps = new FrameGaps();
+
+	// camera thread only
+	private long lastCallbackNanos = 0;
+
+	private volatile boolean resetPending = false;
+
+	public PipelineMetrics() {
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Sets the frame rate range asked to the camera, to count dropped frames. 0 if not known.
+	 */
+	public void setFpsRange(int minFps, int maxFps) {
+		gaps.setFpsRange(minFps, maxFps);
+	}
+
+	/**
+	 * Counts a frame callback. Camera thread only.
+	 *
+	 * @param callbackNanos System.nanoTime() at the start of the callback
+	 * @param frameNanos capture time of the frame
+	 * @return true if frames were dropped just before this one
+	 */
+	public boolean onFrame(long callbackNanos, long frameNanos) {
+
+		if (resetPending) {
+			resetPending = false;
+			lastCallbackNanos = 0;
+		}
+
+		if (lastCallbackNanos > 0) {
+			histograms[INTERVAL].record(callbackNanos - lastCallbackNanos);
+		}
+		lastCallbackNanos = callbackNanos;
+
+		return gaps.onFrame(frameNanos);
+	}
+
+	/**
+	 * Records the duration of a stage, on the thread of the stage.
+	 */
+	public void record(int stage, long nanos) {
+		histograms[stage].record(nanos);
+	}
+
+	public LatencyHistogram getHistogram(int stage) {
+		return histograms[stage];
+	}
+
+	/**
+	 * The frame gaps, to check laps against them on the camera thread.
+	 */
+	public FrameGaps getGaps() {
+		return gaps;
+	}
+
+	public int getFrames() {
+		return gaps.getFrames();
+	}
+
+	public int getDroppedFrames() {
+		return gaps.getDroppedFrames();
+	}
+
+	/**
+	 * Starts counting again, e.g. when the camera is reopened with other settings.
+	 */
+	public void reset() {
+		resetPending = true;
+		gaps.reset();
+		for (LatencyHistogram histogram : histograms) {
+			histogram.reset();
+		}
+	}
+
+	/**
+	 * Writes one line per stage with its p50, p99 and max in milliseconds, then the dropped frames.
+	 */
+	public void appendSummary(StringBuilder s) {
+		for (int i = 0; i < histograms.length; i++) {
+			LatencyHistogram histogram = histograms[i];
+			s.append(NAMES[i]).append(": ");
+			appendMillis(s, histogram.getPercentileMicros(0.5));
+			s.append(" / ");
+			appendMillis(s, histogram.getPercentileMicros(0.99));
+			s.append(" / ");
+			appendMillis(s, histogram.getMaxMicros());
+			s.append('\n');
+		}
+		int dropped = gaps.getDroppedFrames();
+		s.append("dropped: ").append(dropped).append(" of ").append(gaps.getFrames() + dropped);
+	}
+
+	/**
+	 * Full report of all the stages, for sharing.
+	 */
+	public void appendReport(StringBuilder s) {
+		s.append("stage, samples, mean, p50, p90, p99, max (ms)\n");
+		for (int i = 0; i < histograms.length; i++) {
+			LatencyHistogram histogram = histograms[i];
+			s.append(NAMES[i]).append(", ").append(histogram.getCount()).append(", ");
+			appendMillis(s, histogram.getMeanMicros());
+			s.append(", ");
+			appendMillis(s, histogram.getPercentileMicros(0.5));
+			s.append(", ");
+			appendMillis(s, histogram.getPercentileMicros(0.9));
+			s.append(", ");
+			appendMillis(s, histogram.getPercentileMicros(0.99));
+			s.append(", ");
+			appendMillis(s, histogram.getMaxMicros());
+			s.append('\n');
+		}
+		s.append("frames: ").append(gaps.getFrames()).append(", dropped: ").append(gaps.getDroppedFrames());
+		s.append(", gaps: ").append(gaps.getGapCount()).append('\n');
+	}
+
+	/**
+	 * Microseconds as milliseconds with one decimal.
+	 */
+	private static void appendMillis(StringBuilder s, long micros) {
+		long tenths = (micros + 50) / 100;
+		s.append(tenths / 10).append('.').append((char) ('0' + tenths % 10));
+	}
+}
@@ -0,0 +1,92 @@
+package com.pimentoso.android.laptimer;
+
+/**
+ * Approximate quantiles of a stream of non-negative values, in fixed memory.
+ *
+ * Values are counted in log-linear buckets: exact below 2^{@link #SUB_BITS}, then each power of two is
+ * split in 2^({@link #SUB_BITS} - 1) buckets, so a quantile is off by at most 1/2^{@link #SUB_BITS} of
+ * its value (about 1 ms on a 2 second lap, 4 ms on an 8 second one). Values above {@link #MAX_VALUE}
+ * are counted as {@link #MAX_VALUE}.
+ *
+ * The bucket counts are kept in a Fenwick tree, so both adding a value and finding a quantile take
+ * O(log buckets), whatever the number of values added.
+ *
+ * @author Pimentoso
+ */
+public class QuantileSketch {
+
+	static final int SUB_BITS = 11;
+	static final int MAX_BITS = 22;
+
+	public static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int HALF_COUNT = SUB_COUNT / 2;
+	private static final int BUCKETS = SUB_COUNT + (MAX_BITS - SUB_BITS) * HALF_COUNT;
+
+	// Fenwick tree over the bucket counts, 1-based
+	private final int[] tree = new int[BUCKETS + 1];
+	private final int topStep = Integer.highestOneBit(BUCKETS);
+	private int count = 0;
+
+	public void add(long value) {
+		count++;
+		for (int i = bucket(value) + 1; i <= BUCKETS; i += i & -i) {
+			tree[i]++;
+		}
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the value at the given quantile, the middle of its bucket, or 0 if nothing has been added.
+	 *
+	 * @param q between 0 and 1, e.g. 0.5 for the median
+	 */
+	public long getQuantile(double q) {
+
+		if (count == 0) {
+			return 0;
+		}
+
+		// rank of the value, from 1
+		long rank = (long) Math.ceil(q * count);
+		rank = Math.max(1, Math.min(count, rank));
+
+		// the highest index whose prefix count is below the rank is the bucket before the one we want
+		int index = 0;
+		for (int step = topStep; step > 0; step >>= 1) {
+			int next = index + step;
+			if (next <= BUCKETS && tree[next] < rank) {
+				index = next;
+				rank -= tree[next];
+			}
+		}
+		return middle(index);
+	}
+
+	public void clear() {
+		java.util.Arrays.fill(tree, 0);
+		count = 0;
+	}
+
+	static int bucket(long value) {
+		if (value < SUB_COUNT) {
+			return (int) Math.max(0, value);
+		}
+		value = Math.min(value, MAX_VALUE);
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS + 1;
+		return shift * HALF_COUNT + (int) (value >>> shift);
+	}
+
+	static long middle(int bucket) {
+		if (bucket < SUB_COUNT) {
+			return bucket;
+		}
+		int shift = (bucket - HALF_COUNT) / HALF_COUNT;
+		long low = (long) (bucket - shift * HALF_COUNT) << shift;
+		return low + ((1L << shift) - 1) / 2;
+	}
+}
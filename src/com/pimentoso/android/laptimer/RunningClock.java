@@ -0,0 +1,163 @@
+package com.pimentoso.android.laptimer;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.view.Choreographer;
+import android.widget.TextView;
+
+/**
+ * Shows the time elapsed since the start of the race on a label.
+ *
+ * The label is updated from display frame callbacks on API 16 and later, so the clock moves in step with
+ * the screen, and from a handler loop at the same rate on older devices. The text is only set when the
+ * shown digits change, and the time is taken from the frame time, on the same {@link System#nanoTime()}
+ * clock as the crossings, so the clock and the laps agree.
+ *
+ * Callbacks stop while the clock is paused, in the background, and come back on resume. All the methods
+ * must be called on the UI thread.
+ *
+ * @author Pimentoso
+ */
+public class RunningClock {
+
+	// update interval of the handler loop, about one display frame
+	private static final long FALLBACK_INTERVAL = 16;
+
+	private final TextView label;
+	private final int precision;
+	private final char[] chars = new char[TimeFormat.MAX_LENGTH];
+	private final FrameSource source;
+
+	private long startNanos = 0;
+	private long shownUnits = -1;
+	private boolean running = false;
+	private boolean paused = false;
+
+	/**
+	 * @param precision digits shown, see {@link TimeFormat}
+	 */
+	public RunningClock(TextView label, int precision) {
+		this.label = label;
+		this.precision = precision;
+		this.source = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN ? new ChoreographerSource() : new HandlerSource();
+	}
+
+	/**
+	 * Starts counting from the given time.
+	 *
+	 * @param startNanos start time, on the {@link System#nanoTime()} clock
+	 */
+	public void start(long startNanos) {
+		this.startNanos = startNanos;
+		this.shownUnits = -1;
+		this.running = true;
+		if (!paused) {
+			source.post();
+		}
+	}
+
+	/**
+	 * Stops counting, the last time shown stays on the label.
+	 */
+	public void stop() {
+		running = false;
+		source.remove();
+	}
+
+	/**
+	 * Stops and shows zero.
+	 */
+	public void reset() {
+		stop();
+		shownUnits = -1;
+		show(0);
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Stops the callbacks until {@link #resume()}, without stopping the count.
+	 */
+	public void pause() {
+		paused = true;
+		source.remove();
+	}
+
+	public void resume() {
+		paused = false;
+		if (running) {
+			source.post();
+		}
+	}
+
+	private void onFrame(long frameNanos) {
+		if (!running || paused) {
+			return;
+		}
+		show(Math.max(0, frameNanos - startNanos) / 1000000L);
+		source.post();
+	}
+
+	private void show(long millis) {
+		// the digits only change when the last shown unit does
+		long units = millis / TimeFormat.unitMillis(precision);
+		if (units != shownUnits) {
+			shownUnits = units;
+			label.setText(chars, 0, TimeFormat.format(millis, precision, chars, 0));
+		}
+	}
+
+	private interface FrameSource {
+
+		void post();
+
+		void remove();
+	}
+
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+	private class ChoreographerSource implements FrameSource, Choreographer.FrameCallback {
+
+		private final Choreographer choreographer = Choreographer.getInstance();
+
+		@Override
+		public void post() {
+			// a callback can only be posted once per frame
+			choreographer.removeFrameCallback(this);
+			choreographer.postFrameCallback(this);
+		}
+
+		@Override
+		public void remove() {
+			choreographer.removeFrameCallback(this);
+		}
+
+		@Override
+		public void doFrame(long frameTimeNanos) {
+			onFrame(frameTimeNanos);
+		}
+	}
+
+	private class HandlerSource implements FrameSource, Runnable {
+
+		private final Handler handler = new Handler();
+
+		@Override
+		public void post() {
+			handler.removeCallbacks(this);
+			handler.postDelayed(this, FALLBACK_INTERVAL);
+		}
+
+		@Override
+		public void remove() {
+			handler.removeCallbacks(this);
+		}
+
+		@Override
+		public void run() {
+			onFrame(System.nanoTime());
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package com.pimentoso.android.laptimer;
+
+import java.util.Arrays;
+
+/**
+ * Running aggregates of a series of lap times, shared by {@link LapStore} and {@link LapStatistics}:
+ * count, mean and variance with Welford's method, which stays accurate over thousands of laps, and the
+ * sum of the last laps in a rolling window, with the best such sum seen so far.
+ *
+ * Adding a lap takes O(1), and the memory used does not grow with the laps. Not thread safe.
+ *
+ * @author Pimentoso
+ */
+class RunningStats {
+
+	private int count = 0;
+
+	// running mean and sum of squared differences from the mean (Welford)
+	private double mean = 0;
+	private double squares = 0;
+
+	// last laps, in a ring
+	private long[] recent;
+	private long recentSum = 0;
+	private long bestRecentSum = 0;
+
+	/**
+	 * @param window number of laps in the rolling window
+	 */
+	RunningStats(int window) {
+		if (window < 1) {
+			throw new IllegalArgumentException("Invalid window: " + window);
+		}
+		recent = new long[window];
+	}
+
+	void add(long lapMillis) {
+		slide(lapMillis, count);
+		count++;
+		double delta = lapMillis - mean;
+		mean += delta / count;
+		squares += delta * (lapMillis - mean);
+	}
+
+	/**
+	 * Moves the rolling window over the lap with the given index.
+	 */
+	private void slide(long lapMillis, int index) {
+		int slot = index % recent.length;
+		recentSum += lapMillis - recent[slot];
+		recent[slot] = lapMillis;
+		if (index + 1 >= recent.length && (index + 1 == recent.length || recentSum < bestRecentSum)) {
+			bestRecentSum = recentSum;
+		}
+	}
+
+	/**
+	 * Changes the number of laps in the rolling window, and computes the window sums again over the
+	 * given laps, which must be the ones added so far.
+	 */
+	void setWindow(int window, long[] laps, int size) {
+		if (window < 1) {
+			throw new IllegalArgumentException("Invalid window: " + window);
+		}
+		recent = new long[window];
+		recentSum = 0;
+		bestRecentSum = 0;
+		for (int i = 0; i < size; i++) {
+			slide(laps[i], i);
+		}
+	}
+
+	int getCount() {
+		return count;
+	}
+
+	double getMean() {
+		return mean;
+	}
+
+	/**
+	 * Sample variance, 0 with less than 2 laps.
+	 */
+	double getVariance() {
+		return count > 1 ? squares / (count - 1) : 0;
+	}
+
+	double getStandardDeviation() {
+		return Math.sqrt(getVariance());
+	}
+
+	int getWindow() {
+		return recent.length;
+	}
+
+	/**
+	 * Sum of the last {@link #getWindow()} laps, or of all the laps if there are fewer.
+	 */
+	long getWindowSum() {
+		return recentSum;
+	}
+
+	/**
+	 * Average of the last {@link #getWindow()} laps, or of all the laps if there are fewer. 0 if there are
+	 * no laps.
+	 */
+	double getWindowMean() {
+		return count > 0 ? (double) recentSum / Math.min(count, recent.length) : 0;
+	}
+
+	/**
+	 * Best average of {@link #getWindow()} laps in a row, 0 until there are that many laps.
+	 */
+	double getBestWindowMean() {
+		return count >= recent.length ? (double) bestRecentSum / recent.length : 0;
+	}
+
+	void clear() {
+		count = 0;
+		mean = 0;
+		squares = 0;
+		recentSum = 0;
+		bestRecentSum = 0;
+		Arrays.fill(recent, 0);
+	}
+}
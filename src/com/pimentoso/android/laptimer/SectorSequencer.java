@@ -0,0 +1,126 @@
+package com.pimentoso.android.laptimer;
+
+import java.util.Arrays;
+
+/**
+ * Turns the crossings of the gates around the track, in time order, into sector splits and laps.
+ *
+ * Gate 0 is the start/finish line, and the others follow in the direction of the race: sector i runs from
+ * gate i to gate i + 1, and the last one back to gate 0. A lap is the time between two crossings of gate
+ * 0; it has its sector times only if every gate was crossed, once and in order, in between. A gate seen
+ * out of turn (a missed crossing, a double trigger) breaks the chain, and the lap is reported without
+ * sectors.
+ *
+ * Plain Java, allocates nothing per crossing. Not thread safe: crossings are fed from one thread, and the
+ * listener is called on it.
+ *
+ * @author Pimentoso
+ */
+public class SectorSequencer {
+
+	public interface Listener {
+
+		/**
+		 * A sector has been completed.
+		 *
+		 * @param sector from 0, the one starting at the start/finish line
+		 */
+		void onSector(int lane, int sector, long sectorNanos);
+
+		/**
+		 * A lap has been completed.
+		 *
+		 * @param sectorNanos the sector times, only valid during the call
+		 * @param sectors number of sectors, the number of gates; 0 if a gate was missed
+		 */
+		void onLap(int lane, long lapNanos, long[] sectorNanos, int sectors);
+	}
+
+	public static final int MAX_GATES = 8;
+
+	private final int gates;
+	private final long[][] sectors;
+	private final int[] lastGate;
+	private final long[] lastNanos;
+	private final long[] lapStart;
+	// a nanoTime can be any value, negative too: whether the lap has started is kept apart
+	private final boolean[] started;
+	private final boolean[] complete;
+	private Listener listener;
+
+	/**
+	 * @param lanes number of lanes
+	 * @param gates number of gates, the start/finish line included, 1 to {@link #MAX_GATES}
+	 */
+	public SectorSequencer(int lanes, int gates) {
+		if (gates < 1 || gates > MAX_GATES) {
+			throw new IllegalArgumentException("Invalid gate count: " + gates);
+		}
+		this.gates = gates;
+		sectors = new long[lanes][gates];
+		lastGate = new int[lanes];
+		lastNanos = new long[lanes];
+		lapStart = new long[lanes];
+		started = new boolean[lanes];
+		complete = new boolean[lanes];
+		reset();
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	public int getGateCount() {
+		return gates;
+	}
+
+	public int getLaneCount() {
+		return lastGate.length;
+	}
+
+	/**
+	 * Adds a crossing. Crossings of a lane must come in time order.
+	 *
+	 * @param gate from 0, the start/finish line
+	 * @param nanos crossing time
+	 */
+	public void crossing(int lane, int gate, long nanos) {
+
+		if (gate < 0 || gate >= gates || lane < 0 || lane >= lastGate.length) {
+			return;
+		}
+
+		int previous = lastGate[lane];
+		if (previous >= 0 && (previous + 1) % gates == gate) {
+			long sectorNanos = nanos - lastNanos[lane];
+			sectors[lane][previous] = sectorNanos;
+			if (gates > 1 && listener != null) {
+				listener.onSector(lane, previous, sectorNanos);
+			}
+		}
+		else {
+			complete[lane] = false;
+		}
+
+		if (gate == 0) {
+			if (started[lane] && listener != null) {
+				listener.onLap(lane, nanos - lapStart[lane], sectors[lane], complete[lane] ? gates : 0);
+			}
+			lapStart[lane] = nanos;
+			started[lane] = true;
+			complete[lane] = true;
+		}
+
+		lastGate[lane] = gate;
+		lastNanos[lane] = nanos;
+	}
+
+	/**
+	 * Forgets the crossings of all the lanes, for a new race.
+	 */
+	public void reset() {
+		Arrays.fill(lastGate, -1);
+		Arrays.fill(started, false);
+		Arrays.fill(complete, false);
+	}
+}
@@ -0,0 +1,537 @@
+package com.pimentoso.android.laptimer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TimeZone;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * On-device store of the timed sessions: each session has its lanes, each lane can have a car, and
+ * every lap is kept.
+ *
+ * The car and the day of each lap are copied into the lap row, so that the history queries are answered
+ * from an index alone, without reading the lap table, even with tens of thousands of laps:
+ *
+ * <ul>
+ * <li>personal bests: one lookup per car on (car_id, millis)</li>
+ * <li>history of a car: a range of (car_id, session_id, millis)</li>
+ * <li>day summaries: a scan of the (day, millis) index only</li>
+ * </ul>
+ *
+ * Laps corrected by the {@link LapFilter} keep the time measured by the detector in the raw column, which
+ * is null for the others; the history queries use the corrected times. Laps timed while the camera was
+ * dropping frames have {@link LapStore#FLAG_POSSIBLY_MISSED} in the flags column.
+ *
+ * A session is identified by its start time, and a lap by its session, lane and number: archives from
+ * other phones, or the same archive twice, can be imported with {@link #getImporter()} without
+ * duplicating anything.
+ *
+ * Database access is blocking, and must be done off the UI thread, see {@link SessionWriter}.
+ *
+ * @author Pimentoso
+ */
+public class SessionDatabase extends SQLiteOpenHelper {
+
+	private static final String NAME = "sessions.db";
+	private static final int VERSION = 4;
+
+	private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+	/**
+	 * A group of laps: a car, a session or a day.
+	 */
+	public static class Summary {
+
+		/** car name, null for a day */
+		public final String name;
+		/** session start, or local midnight of the day, 0 for a car */
+		public final long time;
+		public final int laps;
+		public final long best;
+		public final long mean;
+
+		Summary(String name, long time, int laps, long best, long mean) {
+			this.name = name;
+			this.time = time;
+			this.laps = laps;
+			this.best = best;
+			this.mean = mean;
+		}
+	}
+
+	private SQLiteStatement insertLap;
+
+	public SessionDatabase(Context context) {
+		super(context, NAME, null, VERSION);
+	}
+
+	@Override
+	public void onCreate(SQLiteDatabase db) {
+
+		db.execSQL("CREATE TABLE cars (_id INTEGER PRIMARY KEY, name TEXT NOT NULL UNIQUE)");
+		db.execSQL("CREATE TABLE sessions (_id INTEGER PRIMARY KEY, started INTEGER NOT NULL, ended INTEGER, lane_count INTEGER NOT NULL, "
+				+ "threshold INTEGER NOT NULL)");
+		db.execSQL("CREATE TABLE lanes (session_id INTEGER NOT NULL REFERENCES sessions(_id), lane INTEGER NOT NULL, "
+				+ "car_id INTEGER REFERENCES cars(_id), PRIMARY KEY (session_id, lane))");
+		db.execSQL("CREATE TABLE laps (_id INTEGER PRIMARY KEY, session_id INTEGER NOT NULL REFERENCES sessions(_id), lane INTEGER NOT NULL, "
+				+ "number INTEGER NOT NULL, millis INTEGER NOT NULL, timestamp INTEGER NOT NULL, car_id INTEGER REFERENCES cars(_id), "
+				+ "day INTEGER NOT NULL, raw INTEGER, flags INTEGER NOT NULL DEFAULT 0)");
+
+		db.execSQL("CREATE UNIQUE INDEX sessions_started ON sessions (started)");
+		db.execSQL("CREATE UNIQUE INDEX laps_session ON laps (session_id, lane, number)");
+		db.execSQL("CREATE INDEX laps_car_best ON laps (car_id, millis)");
+		db.execSQL("CREATE INDEX laps_car_session ON laps (car_id, session_id, millis)");
+		db.execSQL("CREATE INDEX laps_day ON laps (day, millis)");
+	}
+
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		if (oldVersion < 2) {
+			// sessions and laps are unique, so that imports can skip the ones already there
+			db.execSQL("CREATE UNIQUE INDEX sessions_started ON sessions (started)");
+			db.execSQL("DROP INDEX laps_session");
+			db.execSQL("CREATE UNIQUE INDEX laps_session ON laps (session_id, lane, number)");
+		}
+		if (oldVersion < 3) {
+			db.execSQL("ALTER TABLE laps ADD COLUMN raw INTEGER");
+		}
+		if (oldVersion < 4) {
+			db.execSQL("ALTER TABLE laps ADD COLUMN flags INTEGER NOT NULL DEFAULT 0");
+		}
+	}
+
+	/**
+	 * Day number of a wall clock time, counted in local time.
+	 */
+	public static long getDay(long timestampMillis) {
+		return (timestampMillis + TimeZone.getDefault().getOffset(timestampMillis)) / DAY_MILLIS;
+	}
+
+	/**
+	 * Returns the id of the car with the given name, adding it if needed.
+	 */
+	public long getCarId(String name) {
+
+		SQLiteDatabase db = getWritableDatabase();
+		Cursor cursor = db.rawQuery("SELECT _id FROM cars WHERE name = ?", new String[] { name });
+		try {
+			if (cursor.moveToFirst()) {
+				return cursor.getLong(0);
+			}
+		}
+		finally {
+			cursor.close();
+		}
+
+		SQLiteStatement insert = db.compileStatement("INSERT INTO cars (name) VALUES (?)");
+		try {
+			insert.bindString(1, name);
+			return insert.executeInsert();
+		}
+		finally {
+			insert.close();
+		}
+	}
+
+	/**
+	 * Adds a session with its lanes.
+	 *
+	 * @param carIds car of each lane, 0 for none
+	 * @return the session id
+	 */
+	public long insertSession(long startedMillis, int threshold, long[] carIds) {
+
+		SQLiteDatabase db = getWritableDatabase();
+		db.beginTransaction();
+		try {
+			SQLiteStatement session = db.compileStatement("INSERT INTO sessions (started, lane_count, threshold) VALUES (?, ?, ?)");
+			session.bindLong(1, startedMillis);
+			session.bindLong(2, carIds.length);
+			session.bindLong(3, threshold);
+			long sessionId = session.executeInsert();
+			session.close();
+
+			SQLiteStatement lane = db.compileStatement("INSERT INTO lanes (session_id, lane, car_id) VALUES (?, ?, ?)");
+			for (int i = 0; i < carIds.length; i++) {
+				lane.bindLong(1, sessionId);
+				lane.bindLong(2, i);
+				bindCar(lane, 3, carIds[i]);
+				lane.executeInsert();
+			}
+			lane.close();
+
+			db.setTransactionSuccessful();
+			return sessionId;
+		}
+		finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Saves a whole session at once, replacing the laps already saved for a session with the same start
+	 * time, if any.
+	 *
+	 * @param carIds car of each lane, 0 for none
+	 * @param laps laps of each lane
+	 */
+	public void saveSession(long startedMillis, int threshold, long[] carIds, LapStore[] laps, long endedMillis) {
+
+		SQLiteDatabase db = getWritableDatabase();
+		db.beginTransaction();
+		try {
+			long sessionId = 0;
+			Cursor cursor = db.rawQuery("SELECT _id FROM sessions WHERE started = ?", new String[] { String.valueOf(startedMillis) });
+			try {
+				if (cursor.moveToFirst()) {
+					sessionId = cursor.getLong(0);
+				}
+			}
+			finally {
+				cursor.close();
+			}
+
+			if (sessionId != 0) {
+				db.execSQL("DELETE FROM laps WHERE session_id = ?", new Object[] { sessionId });
+			}
+			else {
+				sessionId = insertSession(startedMillis, threshold, carIds);
+			}
+
+			for (int lane = 0; lane < laps.length; lane++) {
+				insertLaps(sessionId, lane, carIds[lane], laps[lane], 0, laps[lane].size(), 1);
+			}
+			endSession(sessionId, endedMillis);
+
+			db.setTransactionSuccessful();
+		}
+		finally {
+			db.endTransaction();
+		}
+	}
+
+	public void endSession(long sessionId, long endedMillis) {
+		getWritableDatabase().execSQL("UPDATE sessions SET ended = ? WHERE _id = ?", new Object[] { endedMillis, sessionId });
+	}
+
+	/**
+	 * Adds laps of a lane. The caller is expected to wrap a batch of calls in a transaction.
+	 *
+	 * @param laps the laps, from which the range [from, to) is added
+	 * @param firstNumber lap number of laps.get(from), counted from 1
+	 * @param carId car of the lane, 0 for none
+	 */
+	public void insertLaps(long sessionId, int lane, long carId, LapStore laps, int from, int to, int firstNumber) {
+
+		if (insertLap == null) {
+			insertLap = getWritableDatabase().compileStatement(
+					"INSERT INTO laps (session_id, lane, number, millis, timestamp, car_id, day, raw, flags) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+		}
+
+		for (int i = from; i < to; i++) {
+			long timestamp = laps.getTimestamp(i);
+			insertLap.bindLong(1, sessionId);
+			insertLap.bindLong(2, lane);
+			insertLap.bindLong(3, firstNumber + i - from);
+			insertLap.bindLong(4, laps.get(i));
+			insertLap.bindLong(5, timestamp);
+			bindCar(insertLap, 6, carId);
+			insertLap.bindLong(7, getDay(timestamp));
+			bindRaw(insertLap, 8, laps.get(i), laps.getRaw(i));
+			insertLap.bindLong(9, laps.getFlags(i));
+			insertLap.executeInsert();
+		}
+	}
+
+	private static void bindCar(SQLiteStatement statement, int index, long carId) {
+		if (carId > 0) {
+			statement.bindLong(index, carId);
+		}
+		else {
+			statement.bindNull(index);
+		}
+	}
+
+	private static void bindRaw(SQLiteStatement statement, int index, long lapMillis, long rawMillis) {
+		if (rawMillis != lapMillis) {
+			statement.bindLong(index, rawMillis);
+		}
+		else {
+			statement.bindNull(index);
+		}
+	}
+
+	/**
+	 * Best lap of each car, fastest car first.
+	 */
+	public List<Summary> getPersonalBests() {
+
+		SQLiteDatabase db = getReadableDatabase();
+		List<Summary> bests = new ArrayList<Summary>();
+
+		// one index range per car, instead of grouping all the laps
+		Cursor cars = db.rawQuery("SELECT _id, name FROM cars", null);
+		try {
+			while (cars.moveToNext()) {
+				Cursor best = db.rawQuery("SELECT MIN(millis), COUNT(*) FROM laps WHERE car_id = ?", new String[] { String.valueOf(cars.getLong(0)) });
+				try {
+					if (best.moveToFirst() && !best.isNull(0)) {
+						bests.add(new Summary(cars.getString(1), 0, best.getInt(1), best.getLong(0), 0));
+					}
+				}
+				finally {
+					best.close();
+				}
+			}
+		}
+		finally {
+			cars.close();
+		}
+
+		Collections.sort(bests, new Comparator<Summary>() {
+			@Override
+			public int compare(Summary a, Summary b) {
+				return a.best < b.best ? -1 : (a.best == b.best ? 0 : 1);
+			}
+		});
+		return bests;
+	}
+
+	/**
+	 * The last sessions of a car, most recent first, with the laps, best and mean of the car in each.
+	 */
+	public List<Summary> getCarHistory(String car, int maxSessions) {
+
+		Cursor cursor = getReadableDatabase().rawQuery(
+				"SELECT s.started, COUNT(*), MIN(l.millis), AVG(l.millis) FROM laps l JOIN sessions s ON s._id = l.session_id "
+						+ "WHERE l.car_id = (SELECT _id FROM cars WHERE name = ?) GROUP BY l.session_id ORDER BY l.session_id DESC LIMIT "
+						+ maxSessions, new String[] { car });
+		List<Summary> sessions = new ArrayList<Summary>();
+		try {
+			while (cursor.moveToNext()) {
+				sessions.add(new Summary(car, cursor.getLong(0), cursor.getInt(1), cursor.getLong(2), Math.round(cursor.getDouble(3))));
+			}
+		}
+		finally {
+			cursor.close();
+		}
+		return sessions;
+	}
+
+	/**
+	 * Laps, best and mean of the last days with laps, most recent first.
+	 */
+	public List<Summary> getDaySummaries(int maxDays) {
+
+		Cursor cursor = getReadableDatabase().rawQuery(
+				"SELECT day, COUNT(*), MIN(millis), AVG(millis) FROM laps GROUP BY day ORDER BY day DESC LIMIT " + maxDays, null);
+		List<Summary> days = new ArrayList<Summary>();
+		try {
+			while (cursor.moveToNext()) {
+				// back from the day number to local midnight
+				long midnight = cursor.getLong(0) * DAY_MILLIS;
+				midnight -= TimeZone.getDefault().getOffset(midnight);
+				days.add(new Summary(null, midnight, cursor.getInt(1), cursor.getLong(2), Math.round(cursor.getDouble(3))));
+			}
+		}
+		finally {
+			cursor.close();
+		}
+		return days;
+	}
+
+	/**
+	 * A source with all the saved laps, session by session and lane by lane, read from the database as
+	 * they are written.
+	 */
+	public ExportTask.Source getExportSource() {
+
+		return new ExportTask.Source() {
+
+			@Override
+			public int getLapCount() {
+				Cursor cursor = getReadableDatabase().rawQuery("SELECT COUNT(*) FROM laps", null);
+				try {
+					return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+				}
+				finally {
+					cursor.close();
+				}
+			}
+
+			@Override
+			public void write(ExportWriter writer, ExportTask task) throws IOException {
+
+				// in the order of the (session_id, lane, number) index
+				Cursor cursor = getReadableDatabase().rawQuery(
+						"SELECT l.session_id, s.started, l.lane, c.name, l.number, l.millis, l.timestamp, IFNULL(l.raw, l.millis), l.flags FROM laps l "
+								+ "JOIN sessions s ON s._id = l.session_id LEFT JOIN cars c ON c._id = l.car_id "
+								+ "ORDER BY l.session_id, l.lane, l.number", null);
+				try {
+					long session = -1;
+					int lane = -1;
+					while (cursor.moveToNext()) {
+						if (cursor.getLong(0) != session) {
+							session = cursor.getLong(0);
+							lane = -1;
+							writer.startSession(cursor.getLong(1));
+						}
+						if (cursor.getInt(2) != lane) {
+							lane = cursor.getInt(2);
+							writer.startLane(lane, cursor.isNull(3) ? null : cursor.getString(3));
+						}
+						writer.lap(cursor.getInt(4), cursor.getLong(5), cursor.getLong(6), cursor.getLong(7), cursor.getInt(8));
+						task.onLap();
+					}
+				}
+				finally {
+					cursor.close();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Counts of an import.
+	 */
+	public static class ImportResult {
+
+		public int sessions;
+		public int laps;
+		public int duplicates;
+	}
+
+	/**
+	 * Returns a writer that merges the sessions given to it into the database: sessions that are not
+	 * there yet are added, and the laps of known sessions are added only if missing. Each session is
+	 * written in one transaction. Meant to be given to
+	 * {@link LapArchive#read(java.io.InputStream, ExportWriter)}.
+	 */
+	public Importer getImporter() {
+		return new Importer();
+	}
+
+	public class Importer extends ExportWriter {
+
+		private final ImportResult result = new ImportResult();
+		private final SQLiteDatabase db = getWritableDatabase();
+		private final SQLiteStatement insertLap = db.compileStatement(
+				"INSERT OR IGNORE INTO laps (session_id, lane, number, millis, timestamp, car_id, day, raw, flags) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+
+		private long sessionId = 0;
+		private long lastTimestamp;
+		private int laneCount;
+		private int lane;
+		private long carId;
+
+		public ImportResult getResult() {
+			return result;
+		}
+
+		@Override
+		public void startSession(long startedMillis) throws IOException {
+
+			endSession();
+			db.beginTransaction();
+
+			Cursor cursor = db.rawQuery("SELECT _id, lane_count FROM sessions WHERE started = ?", new String[] { String.valueOf(startedMillis) });
+			try {
+				if (cursor.moveToFirst()) {
+					sessionId = cursor.getLong(0);
+					laneCount = cursor.getInt(1);
+				}
+				else {
+					// the archive has no detection settings, the threshold is left at 0
+					SQLiteStatement session = db.compileStatement("INSERT INTO sessions (started, lane_count, threshold) VALUES (?, 0, 0)");
+					session.bindLong(1, startedMillis);
+					sessionId = session.executeInsert();
+					session.close();
+					laneCount = 0;
+					result.sessions++;
+				}
+			}
+			finally {
+				cursor.close();
+			}
+			lastTimestamp = startedMillis;
+		}
+
+		@Override
+		public void startLane(int lane, String car) throws IOException {
+			this.lane = lane;
+			this.carId = car != null && car.length() > 0 ? getCarId(car) : 0;
+			laneCount = Math.max(laneCount, lane + 1);
+
+			SQLiteStatement insert = db.compileStatement("INSERT OR IGNORE INTO lanes (session_id, lane, car_id) VALUES (?, ?, ?)");
+			insert.bindLong(1, sessionId);
+			insert.bindLong(2, lane);
+			bindCar(insert, 3, carId);
+			insert.executeInsert();
+			insert.close();
+		}
+
+		@Override
+		public void lap(int number, long lapMillis, long timestampMillis, long rawMillis, int flags) throws IOException {
+			insertLap.bindLong(1, sessionId);
+			insertLap.bindLong(2, lane);
+			insertLap.bindLong(3, number);
+			insertLap.bindLong(4, lapMillis);
+			insertLap.bindLong(5, timestampMillis);
+			bindCar(insertLap, 6, carId);
+			insertLap.bindLong(7, getDay(timestampMillis));
+			bindRaw(insertLap, 8, lapMillis, rawMillis);
+			insertLap.bindLong(9, flags);
+			if (insertLap.executeInsert() != -1) {
+				result.laps++;
+			}
+			else {
+				result.duplicates++;
+			}
+			lastTimestamp = Math.max(lastTimestamp, timestampMillis);
+		}
+
+		private void endSession() {
+			if (sessionId != 0) {
+				db.execSQL("UPDATE sessions SET lane_count = ?, ended = MAX(IFNULL(ended, 0), ?) WHERE _id = ?", new Object[] { laneCount,
+						lastTimestamp, sessionId });
+				db.setTransactionSuccessful();
+				db.endTransaction();
+				sessionId = 0;
+			}
+		}
+
+		@Override
+		public void finish() throws IOException {
+			endSession();
+			insertLap.close();
+		}
+
+		/**
+		 * Rolls back the session being imported, after a read error. The sessions before it stay.
+		 */
+		public void abort() {
+			if (sessionId != 0) {
+				db.endTransaction();
+				sessionId = 0;
+			}
+			insertLap.close();
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		if (insertLap != null) {
+			insertLap.close();
+			insertLap = null;
+		}
+		super.close();
+	}
+}
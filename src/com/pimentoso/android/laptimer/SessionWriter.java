@@ -0,0 +1,352 @@
+package com.pimentoso.android.laptimer;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Saves the sessions to the {@link SessionDatabase} on a background thread.
+ *
+ * Laps are queued from the UI thread, and written in batches: one transaction at most every
+ * {@link #FLUSH_DELAY} milliseconds, or as soon as {@link #BATCH_LAPS} laps are waiting. The database
+ * queries are run on the same thread with {@link #post(Runnable)}, so they see all the laps queued
+ * before them.
+ *
+ * Until they are written, laps are safe in a {@link LapJournal}, which gets each lap as soon as it is
+ * queued. The journal is cleared when the session ends and is in the database; if the process dies
+ * before that, {@link #recover()} restores the session from it on the next start. The journal is opened
+ * by {@link #recover()} too, which reads a file and must not run on the UI thread: sessions started
+ * before it returns are not journaled.
+ *
+ * @author Pimentoso
+ */
+public class SessionWriter {
+
+	private static final long FLUSH_DELAY = 2000;
+	private static final int BATCH_LAPS = 64;
+
+	private final SessionDatabase database;
+	private final HandlerThread thread;
+	private final Handler handler;
+
+	private final File journalFile;
+
+	// null until recover() opens it, or if the journal file could not be opened
+	private volatile LapJournal journal;
+
+	// laps queued by lane, swapped with the written ones on each flush
+	private LapStore[] pending = new LapStore[LaneSet.MAX_LANES];
+	private LapStore[] writing = new LapStore[LaneSet.MAX_LANES];
+	private int pendingCount = 0;
+	private boolean flushPosted = false;
+
+	// current session, only used on the writer thread
+	private long sessionId = 0;
+	private long sessionStarted = 0;
+	private long[] carIds;
+	private int[] lapNumbers;
+
+	// false if a batch of the session could not be written
+	private boolean saved = true;
+
+	// set by close(), so that a journal opened late is not left open, and by recover(), which only runs
+	// once per writer. Guarded by this
+	private boolean closed = false;
+	private boolean recovered = false;
+
+	public SessionWriter(Context context) {
+
+		database = new SessionDatabase(context.getApplicationContext());
+		journalFile = new File(context.getFilesDir(), "laps.journal");
+
+		for (int i = 0; i < LaneSet.MAX_LANES; i++) {
+			pending[i] = new LapStore();
+			writing[i] = new LapStore();
+		}
+
+		thread = new HandlerThread("SessionWriter", Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+		handler = new Handler(thread.getLooper());
+	}
+
+	/**
+	 * The database, for queries, exports and imports on a background thread. Laps must only be added
+	 * through this writer.
+	 */
+	public SessionDatabase getDatabase() {
+		return database;
+	}
+
+	/**
+	 * Runs a task on the writer thread, after the laps queued so far have been written.
+	 */
+	public void post(final Runnable task) {
+		handler.post(new Runnable() {
+			public void run() {
+				flush();
+				task.run();
+			}
+		});
+	}
+
+	/**
+	 * Opens the journal and reads back the session that was in progress when the process was last killed,
+	 * if any, and saves it to the database on the writer thread. Call once, on a background thread, before
+	 * starting a new session. Later calls do nothing.
+	 *
+	 * @return the session, or null if the last one ended normally, or if already called
+	 */
+	public LapJournal.Session recover() {
+
+		synchronized (this) {
+			if (recovered || closed) {
+				return null;
+			}
+			recovered = true;
+		}
+
+		LapJournal opened;
+		try {
+			opened = new LapJournal(journalFile);
+		}
+		catch (IOException e) {
+			Log.e("Mini4WD Lap Timer", "Could not open the lap journal: " + e.getMessage());
+			return null;
+		}
+
+		final LapJournal.Session session = opened.recover();
+		synchronized (this) {
+			if (closed) {
+				try {
+					opened.close();
+				}
+				catch (IOException e) {
+					// nothing was written
+				}
+				return null;
+			}
+			journal = opened;
+		}
+		if (session == null) {
+			return null;
+		}
+
+		handler.post(new Runnable() {
+			public void run() {
+				if (session.startedMillis == sessionStarted) {
+					// the session in progress, not an interrupted one: it is being written already
+					return;
+				}
+				try {
+					long[] ids = getCarIds(session.cars);
+					database.saveSession(session.startedMillis, session.threshold, ids, session.laps, session.getLastTimestamp());
+					LapJournal current = journal;
+					if (current != null) {
+						current.clear(session.startedMillis);
+					}
+				}
+				catch (RuntimeException e) {
+					Log.e("Mini4WD Lap Timer", "Could not save the recovered session: " + e.getMessage());
+				}
+			}
+		});
+		return session;
+	}
+
+	/**
+	 * Starts a new session, ending the current one if any.
+	 *
+	 * @param cars car name of each lane, null or empty for none
+	 */
+	public void startSession(final long startedMillis, final int threshold, final String[] cars) {
+
+		LapJournal current = journal;
+		if (current != null) {
+			current.begin(startedMillis, threshold, cars);
+		}
+
+		handler.post(new Runnable() {
+			public void run() {
+				flush();
+				end(startedMillis);
+
+				try {
+					carIds = getCarIds(cars);
+					lapNumbers = new int[cars.length];
+					sessionId = database.insertSession(startedMillis, threshold, carIds);
+					sessionStarted = startedMillis;
+				}
+				catch (RuntimeException e) {
+					// the laps of this session stay in the journal
+					Log.e("Mini4WD Lap Timer", "Could not start the session: " + e.getMessage());
+				}
+			}
+		});
+	}
+
+	private long[] getCarIds(String[] cars) {
+		long[] ids = new long[cars.length];
+		for (int i = 0; i < cars.length; i++) {
+			ids[i] = cars[i] != null && cars[i].length() > 0 ? database.getCarId(cars[i]) : 0;
+		}
+		return ids;
+	}
+
+	/**
+	 * Queues the laps of a lane, from the given index to the end of the store.
+	 */
+	public void addLaps(int lane, LapStore laps, int from) {
+
+		synchronized (this) {
+			for (int i = from; i < laps.size(); i++) {
+				pending[lane].add(laps.get(i), laps.getTimestamp(i), laps.getRaw(i), laps.getFlags(i));
+				appendToJournal(lane, laps.get(i), laps.getTimestamp(i), laps.getRaw(i), laps.getFlags(i));
+			}
+			pendingCount += laps.size() - from;
+
+			if (pendingCount >= BATCH_LAPS) {
+				handler.removeCallbacks(flushTask);
+				handler.post(flushTask);
+				flushPosted = true;
+			}
+			else if (!flushPosted && pendingCount > 0) {
+				handler.postDelayed(flushTask, FLUSH_DELAY);
+				flushPosted = true;
+			}
+		}
+	}
+
+	private void appendToJournal(int lane, long lapMillis, long timestampMillis, long rawMillis, int flags) {
+		LapJournal current = journal;
+		if (current != null) {
+			try {
+				current.append(lane, lapMillis, timestampMillis, rawMillis, flags);
+			}
+			catch (IOException e) {
+				// the laps still go to the database, only crash safety is lost
+				Log.e("Mini4WD Lap Timer", "Could not write the lap journal: " + e.getMessage());
+				journal = null;
+			}
+		}
+	}
+
+	/**
+	 * Writes the queued laps, and marks the session as ended.
+	 */
+	public void endSession(final long endedMillis) {
+		handler.post(new Runnable() {
+			public void run() {
+				flush();
+				end(endedMillis);
+			}
+		});
+	}
+
+	/**
+	 * Ends the session, writes what is left and closes the database. Nothing can be queued after this.
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+		}
+		final long now = System.currentTimeMillis();
+		handler.post(new Runnable() {
+			public void run() {
+				flush();
+				end(now);
+				database.close();
+				closeJournal();
+				thread.quit();
+			}
+		});
+	}
+
+	private final Runnable flushTask = new Runnable() {
+		public void run() {
+			flush();
+		}
+	};
+
+	private void closeJournal() {
+		LapJournal current = journal;
+		journal = null;
+		if (current != null) {
+			try {
+				current.close();
+			}
+			catch (IOException e) {
+				// nothing left to write
+			}
+		}
+	}
+
+	/**
+	 * Ends the current session. The journal is cleared only if all the laps made it to the database.
+	 */
+	private void end(long endedMillis) {
+		if (sessionId != 0) {
+			try {
+				database.endSession(sessionId, endedMillis);
+				LapJournal current = journal;
+				if (saved && current != null) {
+					current.clear(sessionStarted);
+				}
+			}
+			catch (RuntimeException e) {
+				Log.e("Mini4WD Lap Timer", "Could not end the session: " + e.getMessage());
+			}
+			sessionId = 0;
+			saved = true;
+		}
+	}
+
+	/**
+	 * Writes the queued laps in one transaction. Runs on the writer thread.
+	 */
+	private void flush() {
+
+		synchronized (this) {
+			handler.removeCallbacks(flushTask);
+			flushPosted = false;
+			if (pendingCount == 0) {
+				return;
+			}
+			LapStore[] swap = writing;
+			writing = pending;
+			pending = swap;
+			pendingCount = 0;
+		}
+
+		try {
+			if (sessionId != 0) {
+				database.getWritableDatabase().beginTransaction();
+				try {
+					for (int lane = 0; lane < lapNumbers.length; lane++) {
+						LapStore laps = writing[lane];
+						database.insertLaps(sessionId, lane, carIds[lane], laps, 0, laps.size(), lapNumbers[lane] + 1);
+						lapNumbers[lane] += laps.size();
+					}
+					database.getWritableDatabase().setTransactionSuccessful();
+				}
+				finally {
+					database.getWritableDatabase().endTransaction();
+				}
+			}
+		}
+		catch (RuntimeException e) {
+			// a full or broken database must not stop the timer, the laps are still in the journal
+			Log.e("Mini4WD Lap Timer", "Could not save laps: " + e.getMessage());
+			saved = false;
+		}
+		finally {
+			for (LapStore laps : writing) {
+				laps.clear();
+			}
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package com.pimentoso.android.laptimer;
+
+/**
+ * Formats times as minutes, seconds and a fraction of second, e.g. "1:05:3" in tenths, "1:05:32" in
+ * hundredths or "1:05:321" in milliseconds. The fraction is truncated, not rounded, so a time never
+ * shows more than it measured.
+ *
+ * {@link #format(long, int, char[], int)} writes into a buffer owned by the caller, and allocates
+ * nothing: a TextView can show it with {@link android.widget.TextView#setText(char[], int, int)}. The
+ * methods keep no state, and can be called from any thread.
+ *
+ * @author Pimentoso
+ */
+public final class TimeFormat {
+
+	public static final int TENTHS = 1;
+	public static final int HUNDREDTHS = 2;
+	public static final int MILLIS = 3;
+
+	/**
+	 * Buffer size that fits any time, at any precision.
+	 */
+	public static final int MAX_LENGTH = 24;
+
+	// divisor of the milliseconds for each precision
+	private static final int[] DIVISORS = { 0, 100, 10, 1 };
+
+	private TimeFormat() {}
+
+	/**
+	 * Writes a time into a buffer.
+	 *
+	 * @param millis time in milliseconds, not negative
+	 * @param precision {@link #TENTHS}, {@link #HUNDREDTHS} or {@link #MILLIS}
+	 * @param out destination, with at least {@link #MAX_LENGTH} chars from offset
+	 * @param offset where to start writing
+	 * @return number of chars written
+	 */
+	public static int format(long millis, int precision, char[] out, int offset) {
+
+		checkPrecision(precision);
+
+		long minutes = millis / 60000;
+		int seconds = (int) (millis / 1000 % 60);
+		int fraction = (int) (millis % 1000) / DIVISORS[precision];
+
+		int pos = offset;
+
+		// minutes, written backwards then reversed
+		int start = pos;
+		do {
+			out[pos++] = (char) ('0' + minutes % 10);
+			minutes /= 10;
+		} while (minutes > 0);
+		for (int i = start, j = pos - 1; i < j; i++, j--) {
+			char c = out[i];
+			out[i] = out[j];
+			out[j] = c;
+		}
+
+		out[pos++] = ':';
+		out[pos++] = (char) ('0' + seconds / 10);
+		out[pos++] = (char) ('0' + seconds % 10);
+		out[pos++] = ':';
+
+		// fraction, with leading zeros
+		for (int digit = precision - 1; digit >= 0; digit--) {
+			out[pos + digit] = (char) ('0' + fraction % 10);
+			fraction /= 10;
+		}
+		pos += precision;
+
+		return pos - offset;
+	}
+
+	/**
+	 * Appends a time to a builder, without intermediate strings.
+	 */
+	public static void append(long millis, int precision, StringBuilder sb) {
+
+		checkPrecision(precision);
+
+		int seconds = (int) (millis / 1000 % 60);
+		int fraction = (int) (millis % 1000) / DIVISORS[precision];
+
+		sb.append(millis / 60000).append(':');
+		sb.append((char) ('0' + seconds / 10)).append((char) ('0' + seconds % 10)).append(':');
+		for (int divisor = 1000 / DIVISORS[precision] / 10; divisor > 0; divisor /= 10) {
+			sb.append((char) ('0' + fraction / divisor % 10));
+		}
+	}
+
+	/**
+	 * Formats a time to a new string.
+	 */
+	public static String toString(long millis, int precision) {
+		char[] chars = new char[MAX_LENGTH];
+		return new String(chars, 0, format(millis, precision, chars, 0));
+	}
+
+	/**
+	 * Milliseconds in the last digit shown at the given precision.
+	 */
+	public static int unitMillis(int precision) {
+		checkPrecision(precision);
+		return DIVISORS[precision];
+	}
+
+	private static void checkPrecision(int precision) {
+		if (precision < TENTHS || precision > MILLIS) {
+			throw new IllegalArgumentException("Invalid precision: " + precision);
+		}
+	}
+}
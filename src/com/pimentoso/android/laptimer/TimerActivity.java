@@ -3,34 +3,48 @@ package com.pimentoso.android.laptimer;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.app.ProgressDialog;
+import android.content.ContentResolver;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.graphics.ImageFormat;
 import android.hardware.Camera;
 import android.media.AudioManager;
 import android.media.SoundPool;
+import android.net.Uri;
+import android.net.wifi.WifiManager;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
-import android.os.SystemClock;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
+import android.view.Surface;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.Button;
+import android.widget.EditText;
 import android.widget.ListView;
+import android.widget.RadioGroup;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -39,21 +53,28 @@ import android.widget.Toast;
  * 
  * @author Pimentoso
  */
-public class TimerActivity extends Activity implements SurfaceHolder.Callback, Camera.PreviewCallback, OnClickListener {
-	
-	private static final long DEFAULT_CATCH_DELAY = 500; // ignore laps shorter than this
-	private static final long CALIBRATION_ERROR_FRAMES = 50; // how many consecutive frames caught before calibration warning (about 2 sec) 
+public class TimerActivity extends Activity implements SurfaceHolder.Callback, Camera.PreviewCallback, LapDetector.Listener, Camera2Backend.Listener, OnClickListener, RadioGroup.OnCheckedChangeListener {
 	
 	// layout elements
 	private SurfaceView mSurfaceView;
 	private SurfaceHolder mSurfaceHolder;
 	private Camera mCamera;
+	private Camera2Backend mCamera2;
+
+	// size of the preview surface, and whether the camera2 session waits for it to get the output size
+	private int mSurfaceWidth;
+	private int mSurfaceHeight;
+	private boolean mCamera2SessionPending = false;
 
 	private View cameraBar;
 	private TextView timerLabel;
 	private TextView statusLabel;
+	private TextView statsLabel;
 	private TextView fpsLabel;
+	private TextView metricsLabel;
+	private final char[] fpsChars = new char[FPSCounter.MAX_LENGTH];
 	private ListView lapList;
+	private RadioGroup laneSelector;
 	private LapListAdapter lapListAdapter;
 	private Button startButton;
 	private Button calibrateButton;
@@ -64,50 +85,192 @@ public class TimerActivity extends Activity implements SurfaceHolder.Callback, C
 	private int cameraWidth;
 	private int cameraHeight;
 	
-	// flags
-	private boolean isCalibrating = false;
-	private boolean isCalibrated = false;
-	private boolean isStarted = false;
-	private boolean isTimerRunning = false;
+	// camera bar colors, resolved once
+	private int barRedColor;
+	private int barGreenColor;
 
-	// frame counter during calibration
-	private int frame = 0;
+	// lightness difference threshold, over which the frame is caught (= a new lap is started)
+	public static int calibrateThreshold = 10;
 
-	// offsets of the 3 relevant pixels
-	private int[] pixelOffset = new int[3];
+	// lane selector buttons, by lane index
+	private static final int[] LANE_BUTTONS = { R.id.lane_1, R.id.lane_2, R.id.lane_3 };
 
-	// color values of the 3 relevant pixels during calibration (20 frames are calculated)
-	private int[][] calibrateRange = new int[3][20];
+	// detection engine, fed by the camera thread. replaced as a whole when the gate setup changes
+	private volatile LaneSet lanes;
 
-	// final color values of the 3 relevant pixels after calibration
-	private int[] calibrateValue = new int[3];
+	// lane shown in the lap list
+	private int selectedLane = 0;
 
-	// lightness difference threshold, over which the frame is caught (= a new lap is started)
-	public static int calibrateThreshold = 10;
+	// if true, the detector scans a full line across the track instead of 3 pixels
+	private boolean useLineScan = true;
 
-	// last frame catch milliseconds
-	private long mLastCatchTime = 0;
-	
-	// number of frames caught subsequentially (for calibration warning purposes)
-	private int subsequentFramesCaught = 0;
+	// if true, the camera runs at its highest frame rate, with exposure locked after calibration
+	private volatile boolean useHighFps = true;
 
-	// lap times
-	private ArrayList<Long> laps = new ArrayList<Long>();
+	// if true, frames are captured with the camera2 API, where the device supports it natively
+	private boolean useCamera2 = true;
+	private boolean camera2Supported = false;
 
-	private Handler mHandler = new Handler();
-	private FPSCounter fps;
-	private long mStartTime = 0L;
-	
-	private static byte[] frameBuffer1;
-	private static byte[] frameBuffer2;
-	private static byte[] frameBuffer3;
+	// if true, laps are timed from the estimated frame capture time instead of the callback time
+	private volatile boolean useFrameClock = true;
+
+	// digits shown in lap times, see TimeFormat
+	private int timePrecision = TimeFormat.MILLIS;
+
+	// capture time estimator
+	private FrameClock frameClock = new FrameClock();
+
+	// records the frames around the gate while not null, for replay on a computer
+	private volatile FrameRecorder mRecorder;
+
+	// corrects the laps of the detectors before they are shown, on the camera thread
+	private final LapFilter mLapFilter = new LapFilter(LaneSet.MAX_LANES);
 
-	private Runnable mUpdateTimeTask = new Runnable() {
+	// lap times of each lane, reused from one session to the next
+	private final ArrayList<LapStore> laps = new ArrayList<LapStore>();
+
+	// statistics of each lane, updated with each lap
+	private final ArrayList<LapStatistics> stats = new ArrayList<LapStatistics>();
+
+	// saves sessions and laps to the database
+	private SessionWriter mSessions;
+
+	// wall clock start of the race on screen, 0 if not started
+	private long mSessionStarted = 0;
+
+	private static final int REQUEST_IMPORT = 1;
+
+	// files are exported and imported on this thread, one at a time
+	private final ExecutorService mExportExecutor = Executors.newSingleThreadExecutor();
+	private ExportTask mExportTask;
+	private ProgressDialog mExportDialog;
+
+	private Handler mHandler = new Handler();
+	private FPSCounter fps = new FPSCounter();
+
+	// timing of the capture to screen pipeline, shown by the metrics overlay
+	private final PipelineMetrics mMetrics = new PipelineMetrics();
+	private boolean showMetrics = false;
+
+	// first crossing of the race, on the System.nanoTime() clock, 0 before it
+	private volatile long mStartTime = 0L;
+
+	// shows the time since mStartTime, on display frames
+	private RunningClock mClock;
+
+	// the camera is opened on this thread, so preview frames are delivered here and not on the UI thread
+	private HandlerThread mCameraThread;
+	private Handler mCameraHandler;
+
+	// state produced by the camera thread, applied on the UI thread in batches by mUiUpdateTask
+	private final AtomicBoolean mUiUpdatePending = new AtomicBoolean(false);
+	private final LapStore[] mPendingLaps = new LapStore[LaneSet.MAX_LANES]; // by lane
+	private volatile int mPendingStatus = 0;
+	private volatile boolean mPendingCalibrated = false;
+	private volatile boolean mPendingTimerStart = false;
+	private volatile boolean mFrameCaught = false;
+	private volatile boolean mFpsChanged = false;
+	private volatile long mLastCrossingNanos = 0;
+
+	// preview callback buffers; in automatic mode more are added, up to CaptureProfile.MAX_BUFFERS, when
+	// the camera drops frames
+	private int bufferSetting = 0; // 0 = automatic
+	private final byte[][] frameBuffers = new byte[CaptureProfile.MAX_BUFFERS][];
+	private volatile int frameBufferCount = 0;
+	private int frameBufferSize = 0;
+	private volatile long frameIntervalNanos = 0;
+
+	// multi-phone timing: this phone is the start/finish master, or a sector gate linked to it
+	private static final int LINK_MAX_GATES = 4;
+	private volatile GateMaster mGateMaster;
+	private volatile GateLink mGateLink;
+
+	// many phones filter broadcast packets on wifi to save power, unless this is held
+	private WifiManager.MulticastLock mMulticastLock;
+	private final long[][] mPendingSectors = new long[LaneSet.MAX_LANES][SectorSequencer.MAX_GATES]; // by lane, guarded by mPendingLaps
+	private final int[] mPendingSectorCounts = new int[LaneSet.MAX_LANES];
+
+	// gate lines in the frame; with sector gates and no master, their crossings are merged on the camera thread
+	private GateLayout gateLayout;
+	private volatile SectorSequencer mSectorSequencer;
+	private volatile boolean mSectorResetPending = false;
+
+	// cars sharing the lane, told apart by their colors: each car has the laps of a lane
+	private boolean useCarId = false;
+	private volatile CarClassifier mCarClassifier;
+	private volatile boolean mCarResetPending = false;
+	private long mCarCrossingNanos = 0; // crossing waiting for the car to leave the gate, camera thread only
+	private final long[] mCarLastCrossing = new long[CarClassifier.MAX_CARS]; // camera thread only
+
+	private Runnable mUiUpdateTask = new Runnable() {
 
 		public void run() {
-			long millis = SystemClock.uptimeMillis() - mStartTime;
-			timerLabel.setText(Utils.convertTime(millis));
-			mHandler.postAtTime(this, SystemClock.uptimeMillis() + 40);
+			// clear the flag first, so changes made while this runs get another pass
+			mUiUpdatePending.set(false);
+
+			cameraBar.setBackgroundColor(mFrameCaught ? barGreenColor : barRedColor);
+
+			if (mFpsChanged) {
+				mFpsChanged = false;
+				fpsLabel.setText(fpsChars, 0, fps.format(fpsChars));
+			}
+
+			if (mPendingCalibrated) {
+				mPendingCalibrated = false;
+				startButton.setEnabled(true);
+				calibrateButton.setEnabled(true);
+			}
+
+			if (mPendingTimerStart) {
+				mPendingTimerStart = false;
+				if (lanes.isTimerRunning()) {
+					mClock.start(mStartTime);
+				}
+			}
+
+			int status = mPendingStatus;
+			if (status != 0) {
+				mPendingStatus = 0;
+				statusLabel.setText(getString(status));
+			}
+
+			boolean lapsChanged = false;
+			synchronized (mPendingLaps) {
+				for (int lane = 0; lane < laps.size(); lane++) {
+					LapStore pending = mPendingLaps[lane];
+					if (pending.size() > 0) {
+						mSessions.addLaps(lane, pending, 0);
+						laps.get(lane).addAll(pending);
+						addStatistics(lane, pending);
+						pending.clear();
+						lapsChanged |= lane == selectedLane;
+					}
+				}
+			}
+			String sectors = null;
+			synchronized (mPendingLaps) {
+				for (int lane = 0; lane < laps.size(); lane++) {
+					int count = mPendingSectorCounts[lane];
+					if (count > 0) {
+						mPendingSectorCounts[lane] = 0;
+						stats.get(lane).addSectors(mPendingSectors[lane], count);
+						if (lane == selectedLane) {
+							sectors = formatSectors(mPendingSectors[lane], count);
+						}
+					}
+				}
+			}
+			if (sectors != null) {
+				statusLabel.setText(getString(R.string.label_status_sectors, sectors));
+				lapsChanged = true;
+			}
+
+			if (lapsChanged) {
+				// only the visible rows are rebound
+				lapListAdapter.notifyDataSetChanged();
+				showStatistics();
+				mMetrics.record(PipelineMetrics.LAP_TO_SCREEN, System.nanoTime() - mLastCrossingNanos);
+			}
 		}
 	};
 
@@ -133,253 +296,1539 @@ public class TimerActivity extends Activity implements SurfaceHolder.Callback, C
 		mSurfaceHolder.addCallback(this);
 
 		calibrateThreshold = DefaultPreferences.get(this, "sensitivity", SensitivityDialogActivity.DEFAULT_SENSITIVITY);
+		useFrameClock = DefaultPreferences.get(this, "frame_timing", true);
+		mSessions = new SessionWriter(this);
+		timePrecision = DefaultPreferences.get(this, "time_precision", TimeFormat.MILLIS);
+		for (int i = 0; i < mPendingLaps.length; i++) {
+			mPendingLaps[i] = new LapStore();
+		}
+		useLineScan = DefaultPreferences.get(this, "line_scan", true);
+		mLapFilter.setEnabled(DefaultPreferences.get(this, "lap_filter", true));
+		bufferSetting = DefaultPreferences.get(this, "frame_buffers", 0);
+		try {
+			gateLayout = GateLayout.parse(DefaultPreferences.get(this, "gates", GateLayout.single().toString()));
+		}
+		catch (IllegalArgumentException e) {
+			gateLayout = GateLayout.single();
+		}
+		useHighFps = DefaultPreferences.get(this, "high_fps", true);
+		useCamera2 = DefaultPreferences.get(this, "camera2", true);
+		camera2Supported = Camera2Backend.isSupported(this);
+		useCarId = DefaultPreferences.get(this, "car_id", false);
+
+		lanes = createLaneSet(Math.max(1, Math.min(LaneSet.MAX_LANES, DefaultPreferences.get(this, "lanes", 1))));
+		startCarId();
+		resetLaps();
 
 		cameraBar = findViewById(R.id.camera_bar);
 		timerLabel = (TextView) findViewById(R.id.text_timer);
+		mClock = new RunningClock(timerLabel, TimeFormat.TENTHS);
 		statusLabel = (TextView) findViewById(R.id.text_status);
+		statsLabel = (TextView) findViewById(R.id.text_stats);
 		fpsLabel = (TextView) findViewById(R.id.text_fps);
+		metricsLabel = (TextView) findViewById(R.id.text_metrics);
+		showMetrics = DefaultPreferences.get(this, "metrics_overlay", false);
 		startButton = (Button) findViewById(R.id.button_start);
 		calibrateButton = (Button) findViewById(R.id.button_calibrate);
 		lapList = (ListView) findViewById(R.id.list_laps);
+		laneSelector = (RadioGroup) findViewById(R.id.lane_selector);
+
+		barRedColor = getResources().getColor(R.color.bar_red);
+		barGreenColor = getResources().getColor(R.color.bar_green);
 
 		startButton.setOnClickListener(this);
 		calibrateButton.setOnClickListener(this);
+		laneSelector.setOnCheckedChangeListener(this);
+		showLaneSelector();
+		refreshLaps();
+
+		statusLabel.setText(getString(R.string.label_status_init));
+		startButton.setEnabled(false);
+
+		// a session interrupted by the process being killed is shown again, with its lane setup. The
+		// journal is a file, read in the background
+		mExportExecutor.execute(new Runnable() {
+			public void run() {
+				final LapJournal.Session recovered = mSessions.recover();
+				if (recovered != null) {
+					mHandler.post(new Runnable() {
+						public void run() {
+							showRecoveredSession(recovered);
+						}
+					});
+				}
+			}
+		});
+
+		soundPool = new SoundPool(10, AudioManager.STREAM_NOTIFICATION, 0);
+		lapSound = soundPool.load(this, R.raw.lap, 1);
+		
+	}
+
+	@Override
+	public void onStart() {
+
+		super.onStart();
+
+		// sensitivity may have been changed by the dialog
+		lanes.setThreshold(calibrateThreshold);
+
+		// the other phones are only linked while the camera can time: no sockets or multicast lock
+		// in the background
+		startLink();
+
+		// show help
+		if (DefaultPreferences.get(this, "first_time", "1").equals("1")) {
+			showAlertBox();
+			DefaultPreferences.put(this, "first_time", "0");
+		}
+	}
+
+	@Override
+	public void onStop() {
+		stopLink();
+		super.onStop();
+	}
+
+	@Override
+	protected void onDestroy() {
+		if (mExportTask != null) {
+			mExportTask.cancel();
+			endExport();
+		}
+		mExportExecutor.shutdown();
+		mSessions.close();
+		super.onDestroy();
+	}
+
+	@Override
+	protected void onResume() {
+		super.onResume();
+		mClock.resume();
+		showMetrics(showMetrics);
+	}
+
+	@Override
+	protected void onPause() {
+		// no clock updates in the background, the count goes on and is shown again on resume
+		mClock.pause();
+		mHandler.removeCallbacks(mMetricsTask);
+		super.onPause();
+	}
+
+	@Override
+	public void surfaceChanged(SurfaceHolder surface, int format, int width, int height) {
+
+		mSurfaceWidth = width;
+		mSurfaceHeight = height;
+		if (mCamera2SessionPending && width == cameraWidth && height == cameraHeight) {
+			startCamera2Session();
+		}
+	}
+
+	@Override
+	public void surfaceCreated(final SurfaceHolder surface) {
+
+		// preview callbacks are delivered on the looper of the thread that opened the camera
+		mCameraThread = new HandlerThread("CameraThread", Process.THREAD_PRIORITY_URGENT_DISPLAY);
+		mCameraThread.start();
+		mCameraHandler = new Handler(mCameraThread.getLooper());
+		mCameraHandler.post(new Runnable() {
+			public void run() {
+				openBackend(surface);
+			}
+		});
+	}
+
+	@Override
+	public void surfaceDestroyed(SurfaceHolder arg0) {
+
+		stopRecording();
+
+		if (mCameraThread == null) {
+			return;
+		}
+
+		// release the camera on its own thread, then wait for it so the surface is no longer in use
+		mCamera2SessionPending = false;
+		mCameraHandler.post(new Runnable() {
+			public void run() {
+				releaseBackend();
+				mCameraThread.quit();
+			}
+		});
+
+		try {
+			mCameraThread.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		mCameraThread = null;
+		mCameraHandler = null;
+	}
+
+	/**
+	 * Opens the camera with the chosen backend. Must run on the camera thread.
+	 */
+	private void openBackend(SurfaceHolder surface) {
+
+		// the cars are told apart by the chroma of the NV21 preview frames, only camera1 delivers them here
+		if (useCamera2 && camera2Supported && !useCarId) {
+			// the camera2 preview starts when the surface has the output size, see onCameraOpened
+			mCamera2 = new Camera2Backend(this, mCameraHandler, this);
+			frameBufferCount = getBufferCount(frameIntervalNanos > 0 ? frameIntervalNanos : 1000000000L / 30);
+			mCamera2.setMaxImages(frameBufferCount);
+			boolean keepSize = lanes.isCalibrated() && cameraWidth > 0;
+			mCamera2.open(useHighFps, createLaneSet(lanes.getLaneCount()), keepSize ? cameraWidth : 0, keepSize ? cameraHeight : 0);
+		}
+		else {
+			openCamera(surface);
+		}
+	}
+
+	/**
+	 * Releases the camera, whichever the backend. Must run on the camera thread.
+	 */
+	private void releaseBackend() {
+
+		if (mCamera2 != null) {
+			mCamera2.close();
+			mCamera2 = null;
+		}
+		releaseCamera();
+	}
+
+	/**
+	 * Opens the camera and starts the preview. Must run on the camera thread.
+	 */
+	private void openCamera(SurfaceHolder surface) {
+
+		try {
+			mCamera = Camera.open();
+		}
+		catch (RuntimeException e) {
+			// camera service already in use: die
+			showCameraError(R.string.error_camera_locked_text);
+			return;
+		}
+
+		if (mCamera == null) {
+			// camera not found: die
+			showCameraError(R.string.error_camera_null_text);
+			return;
+		}
+
+		Camera.Parameters parameters = mCamera.getParameters();
+
+		int minFps = 0;
+		int targetFps = 0;
+		if (useHighFps) {
+			// fastest fps range, and the largest preview size the detection can keep up with
+			int[] fpsRange = CaptureProfile.chooseFpsRange(parameters);
+			if (fpsRange != null) {
+				parameters.setPreviewFpsRange(fpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX], fpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
+				minFps = fpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX] / 1000;
+				targetFps = fpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX] / 1000;
+				Log.d("Mini4WD Lap Timer", "Camera fps range: " + fpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX] + "-" + fpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
+			}
+
+			if (lanes.isCalibrated() && cameraWidth > 0) {
+				// the camera was reopened on a calibrated gate: keep the same frame
+				CaptureProfile.setLocks(parameters, true);
+			}
+			else {
+				long frameNanos = 1000000000L / (targetFps > 0 ? targetFps : 30);
+				Camera.Size previewSize = CaptureProfile.choosePreviewSize(parameters, createLaneSet(lanes.getLaneCount()), frameNanos);
+				cameraWidth = previewSize.width;
+				cameraHeight = previewSize.height;
+			}
+		}
+		else {
+			// find smallest camera preview size (it's good for fps)
+			Camera.Size smallestPreviewSize = getSmallestPreviewSize(parameters);
+			cameraWidth = smallestPreviewSize.width;
+			cameraHeight = smallestPreviewSize.height;
+		}
+		// sized on the buffer hold times of the last preview, before they are reset
+		frameIntervalNanos = 1000000000L / (targetFps > 0 ? targetFps : 30);
+		int bufferCount = getBufferCount(frameIntervalNanos);
+		fps.setTargetFps(targetFps);
+		mMetrics.setFpsRange(minFps, targetFps);
+		mMetrics.reset();
+		
+		parameters.setPreviewSize(cameraWidth, cameraHeight);
+		Log.d("Mini4WD Lap Timer", "Camera preview size: " + cameraWidth + "x" + cameraHeight);
+
+		// create the framebuffers
+		int bytesPerPixel = ImageFormat.getBitsPerPixel(parameters.getPreviewFormat());
+		frameBufferSize = (cameraWidth * cameraHeight * bytesPerPixel) >> 3;
+		frameBufferCount = 0;
+		while (frameBufferCount < bufferCount) {
+			addFrameBuffer();
+		}
+		Log.d("Mini4WD Lap Timer", "Camera frame buffers: " + bufferCount);
+
+		frameClock.reset();
+
+		// init camera preview
+		try {
+			mCamera.setParameters(parameters);
+		}
+		catch (RuntimeException e) {
+			// some devices reject their own fps range at some preview sizes: keep the default rate
+			Log.e("Camera", "Could not set capture profile: " + e.getMessage());
+			parameters = mCamera.getParameters();
+			parameters.setPreviewSize(cameraWidth, cameraHeight);
+			mCamera.setParameters(parameters);
+			fps.setTargetFps(0);
+			mMetrics.setFpsRange(0, 0);
+		}
+		mCamera.setDisplayOrientation(90);
+
+		try {
+			mCamera.setPreviewDisplay(surface);
+			mCamera.setPreviewCallbackWithBuffer(this);
+			mCamera.startPreview();
+		}
+		catch (IOException e) {
+			// startPreview failed: die
+			showCameraError(R.string.error_camera_null_text);
+			return;
+		}
+	}
+
+	/**
+	 * Locks or unlocks exposure and white balance, in the high frame rate profile. Must run on the camera
+	 * thread.
+	 */
+	private void setCameraLocks(boolean locked) {
+
+		if (!useHighFps) {
+			return;
+		}
+
+		if (mCamera2 != null) {
+			mCamera2.setLocks(locked);
+			return;
+		}
+
+		if (mCamera == null) {
+			return;
+		}
+
+		try {
+			Camera.Parameters parameters = mCamera.getParameters();
+			CaptureProfile.setLocks(parameters, locked);
+			mCamera.setParameters(parameters);
+		}
+		catch (RuntimeException e) {
+			Log.e("Camera", "Could not set exposure lock: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Stops the preview and releases the camera. Must run on the camera thread.
+	 */
+	private void releaseCamera() {
+
+		try {
+			if (mCamera != null) {
+				mCamera.setPreviewCallback(null);
+				mCamera.stopPreview();
+			}
+		}
+		catch (Exception e) {
+			Log.e("Camera", e.getMessage());
+		}
+		finally {
+			if (mCamera != null) {
+				mCamera.release();
+				mCamera = null;
+			}
+		}
+	}
+
+	private void showCameraError(final int messageId) {
+
+		runOnUiThread(new Runnable() {
+			public void run() {
+				new AlertDialog.Builder(TimerActivity.this).setMessage(getString(messageId)).setTitle("Error").setCancelable(true).setIcon(android.R.drawable.ic_dialog_info).setNeutralButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+					public void onClick(DialogInterface dialog, int whichButton) {
+						TimerActivity.this.finish();
+					}
+				}).show();
+			}
+		});
+	}
+
+	/**
+	 * Creates the detectors for the given number of lanes, with the current settings. The new set is not
+	 * calibrated.
+	 */
+	private LaneSet createLaneSet(int laneCount) {
+		int band = DefaultPreferences.get(this, "line_band", GateRegion.DEFAULT_BAND);
+		int segments = DefaultPreferences.get(this, "line_segments", GateRegion.DEFAULT_SEGMENTS);
+		// cars told apart by color share one lane
+		int count = useCarId ? 1 : Math.max(1, Math.min(laneCount, LaneSet.MAX_LANES));
+		LaneSet set = new LaneSet(count, gateLayout, useLineScan, band, segments);
+		set.setThreshold(calibrateThreshold);
+		set.setInterpolate(useFrameClock);
+		set.setListener(this);
+		return set;
+	}
+
+	/**
+	 * Replaces the detectors, after a change in the gate setup. The camera thread picks up the new set
+	 * from the next frame; it must be calibrated again.
+	 */
+	private void changeLanes(int laneCount) {
+		lanes = createLaneSet(laneCount);
+		startCarId();
+		resetLaps();
+		showLaneSelector();
+		refreshLaps();
+		startButton.setEnabled(false);
+		calibrateButton.setEnabled(true);
+		statusLabel.setText(getString(R.string.label_status_init));
+	}
+
+	/**
+	 * Shows the laps of a session read back from the journal, unless a new session has been started
+	 * meanwhile. The session itself is already being saved to the history.
+	 */
+	private void showRecoveredSession(LapJournal.Session recovered) {
+		if (isFinishing() || lanes.isStarted() || mSessionStarted != 0) {
+			return;
+		}
+		if (!useCarId && recovered.laps.length != lanes.getLaneCount()) {
+			changeLanes(Math.max(1, Math.min(LaneSet.MAX_LANES, recovered.laps.length)));
+		}
+		mSessionStarted = recovered.startedMillis;
+		for (int lane = 0; lane < Math.min(laps.size(), recovered.laps.length); lane++) {
+			laps.get(lane).addAll(recovered.laps[lane]);
+			addStatistics(lane, recovered.laps[lane]);
+		}
+		refreshLaps();
+		if (recovered.getLapCount() > 0) {
+			Toast.makeText(this, getString(R.string.message_session_recovered, recovered.getLapCount()), Toast.LENGTH_LONG).show();
+		}
+	}
+
+	/**
+	 * Starts recording the frames around the gate to a file in the SD card.
+	 */
+	private void startRecording() {
+
+		if (cameraWidth == 0) {
+			return;
+		}
+
+		try {
+			File directory = new File(Environment.getExternalStorageDirectory(), "/Mini4WD/");
+			directory.mkdirs();
+
+			SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss");
+			String filename = "/Mini4WD/frames-" + format.format(new Date()) + ".m4wr";
+			File file = new File(Environment.getExternalStorageDirectory(), filename);
+
+			int band = DefaultPreferences.get(this, "line_band", GateRegion.DEFAULT_BAND);
+			int segments = DefaultPreferences.get(this, "line_segments", GateRegion.DEFAULT_SEGMENTS);
+			mRecorder = new FrameRecorder(new FileOutputStream(file), cameraWidth, cameraHeight, calibrateThreshold, lanes.getLaneCount(),
+					lanes.getLayout(), useLineScan, band, segments, useFrameClock);
+
+			Toast.makeText(this, getString(R.string.menu_record_started) + filename, Toast.LENGTH_SHORT).show();
+		}
+		catch (IOException e) {
+			Toast.makeText(this, getString(R.string.menu_csv_ko) + e.getLocalizedMessage(), Toast.LENGTH_SHORT).show();
+		}
+	}
+
+	/**
+	 * Stops recording and closes the file.
+	 */
+	private void stopRecording() {
+
+		FrameRecorder recorder = mRecorder;
+		if (recorder == null) {
+			return;
+		}
+		mRecorder = null;
+
+		try {
+			recorder.close();
+			Toast.makeText(this, getString(R.string.menu_record_stopped, recorder.getFrameCount(), recorder.getDroppedCount()), Toast.LENGTH_SHORT).show();
+		}
+		catch (IOException e) {
+			Toast.makeText(this, getString(R.string.menu_csv_ko) + e.getLocalizedMessage(), Toast.LENGTH_SHORT).show();
+		}
+	}
+
+	/**
+	 * Reopens the camera after a change in the capture settings. The preview size may change, so the gate
+	 * must be calibrated again.
+	 */
+	private void reopenCamera() {
+		changeLanes(lanes.getLaneCount());
+		if (mCameraHandler != null) {
+			mCamera2SessionPending = false;
+			mCameraHandler.post(new Runnable() {
+				public void run() {
+					releaseBackend();
+					openBackend(mSurfaceHolder);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Number of lap lists: one per lane, or one per car when they are told apart by color.
+	 */
+	private int getLapListCount() {
+		return useCarId ? CarClassifier.MAX_CARS : lanes.getLaneCount();
+	}
+
+	/**
+	 * Shows a button for each lane above the lap list, only if there are more than one.
+	 */
+	private void showLaneSelector() {
+		int count = getLapListCount();
+		laneSelector.setVisibility(count > 1 ? View.VISIBLE : View.GONE);
+		for (int i = 0; i < LANE_BUTTONS.length; i++) {
+			findViewById(LANE_BUTTONS[i]).setVisibility(i < count ? View.VISIBLE : View.GONE);
+		}
+		if (selectedLane >= count) {
+			laneSelector.check(LANE_BUTTONS[0]);
+		}
+	}
+
+	private void showLanesDialog() {
+		String[] items = new String[LaneSet.MAX_LANES];
+		for (int i = 0; i < items.length; i++) {
+			items[i] = String.valueOf(i + 1);
+		}
+		new AlertDialog.Builder(this)
+		.setTitle(getString(R.string.menu_lanes_label))
+		.setSingleChoiceItems(items, lanes.getLaneCount() - 1, new DialogInterface.OnClickListener() {
+			@Override
+			public void onClick(DialogInterface dialog, int which) {
+				dialog.dismiss();
+				if (which + 1 != lanes.getLaneCount()) {
+					DefaultPreferences.put(TimerActivity.this, "lanes", which + 1);
+					changeLanes(which + 1);
+				}
+			}
+		}).show();
+	}
+
+	/**
+	 * Number of frame buffers: the one chosen in the menu, or enough for the longest hold of the buffers
+	 * measured so far, see {@link CaptureProfile#chooseBufferCount(long, long)}.
+	 */
+	private int getBufferCount(long frameNanos) {
+		if (bufferSetting > 0) {
+			return bufferSetting;
+		}
+		long heldNanos = mMetrics.getHistogram(PipelineMetrics.BUFFER).getPercentileMicros(0.99) * 1000L;
+		return CaptureProfile.chooseBufferCount(heldNanos, frameNanos);
+	}
+
+	/**
+	 * Gives the camera one more preview buffer, reusing the one of a previous preview if it has the right
+	 * size. Camera thread only.
+	 */
+	private void addFrameBuffer() {
+		byte[] buffer = frameBuffers[frameBufferCount];
+		if (buffer == null || buffer.length != frameBufferSize) {
+			buffer = new byte[frameBufferSize];
+			frameBuffers[frameBufferCount] = buffer;
+		}
+		mCamera.addCallbackBuffer(buffer);
+		frameBufferCount++;
+	}
+
+	private void showBufferDialog() {
+		String[] items = new String[CaptureProfile.MAX_BUFFERS - CaptureProfile.MIN_BUFFERS + 2];
+		items[0] = getString(R.string.buffers_auto, frameBufferCount);
+		for (int i = 1; i < items.length; i++) {
+			items[i] = String.valueOf(CaptureProfile.MIN_BUFFERS + i - 1);
+		}
+		int checked = bufferSetting > 0 ? bufferSetting - CaptureProfile.MIN_BUFFERS + 1 : 0;
+		new AlertDialog.Builder(this)
+		.setTitle(getString(R.string.menu_buffers_label))
+		.setSingleChoiceItems(items, checked, new DialogInterface.OnClickListener() {
+			@Override
+			public void onClick(DialogInterface dialog, int which) {
+				dialog.dismiss();
+				int setting = which > 0 ? CaptureProfile.MIN_BUFFERS + which - 1 : 0;
+				if (setting != bufferSetting) {
+					bufferSetting = setting;
+					DefaultPreferences.put(TimerActivity.this, "frame_buffers", bufferSetting);
+					reopenCamera();
+				}
+			}
+		}).show();
+	}
+
+	/**
+	 * Starts the link to the other phones chosen in the menu, if any: as the start/finish master, the
+	 * sectors of the laps come from its {@link SectorSequencer}; as a sector gate, the crossings are sent
+	 * to the master. The sector gates in the frame of this phone are numbered first, then the other
+	 * phones; without a link they have a sequencer of their own.
+	 */
+	private void startLink() {
+		stopLink();
+		int gate = DefaultPreferences.get(this, "link_gate", -1);
+		int localGates = gateLayout.getGateCount();
+		if (gate >= 0) {
+			WifiManager wifi = (WifiManager) getApplicationContext().getSystemService(WIFI_SERVICE);
+			if (wifi != null) {
+				mMulticastLock = wifi.createMulticastLock("Mini4WD Lap Timer");
+				mMulticastLock.setReferenceCounted(false);
+				mMulticastLock.acquire();
+			}
+		}
+		if (gate == 0) {
+			int gates = Math.min(SectorSequencer.MAX_GATES, Math.max(localGates, DefaultPreferences.get(this, "link_gates", 2)));
+			SectorSequencer sequencer = new SectorSequencer(LaneSet.MAX_LANES, gates);
+			sequencer.setListener(mSectorListener);
+			mGateMaster = new GateMaster(sequencer, GateLink.PORT, ClockSync.SYSTEM);
+			mGateMaster.start();
+		}
+		else if (gate > 0) {
+			String host = DefaultPreferences.get(this, "link_master", "");
+			mGateLink = new GateLink(gate, host.length() > 0 ? host : null, GateLink.PORT, ClockSync.SYSTEM);
+			mGateLink.start();
+		}
+		else if (localGates > 1) {
+			SectorSequencer sequencer = new SectorSequencer(LaneSet.MAX_LANES, localGates);
+			sequencer.setListener(mSectorListener);
+			mSectorSequencer = sequencer;
+		}
+	}
+
+	private void stopLink() {
+		mSectorSequencer = null;
+		if (mMulticastLock != null) {
+			mMulticastLock.release();
+			mMulticastLock = null;
+		}
+		if (mGateMaster != null) {
+			mGateMaster.stop();
+			mGateMaster = null;
+		}
+		if (mGateLink != null) {
+			mGateLink.stop();
+			mGateLink = null;
+		}
+	}
+
+	/**
+	 * Called on the thread of the master, with the crossings of all the gates merged, or on the camera
+	 * thread for the gates in the frame of this phone.
+	 */
+	private final SectorSequencer.Listener mSectorListener = new SectorSequencer.Listener() {
+
+		@Override
+		public void onSector(int lane, int sector, long sectorNanos) {
+		}
+
+		@Override
+		public void onLap(int lane, long lapNanos, long[] sectorNanos, int sectors) {
+			if (sectors == 0 || mCarClassifier != null) {
+				// a gate was missed, or the sectors of the lane mix several cars: the lap itself comes from
+				// the detector of this phone
+				return;
+			}
+			synchronized (mPendingLaps) {
+				for (int i = 0; i < sectors; i++) {
+					mPendingSectors[lane][i] = (sectorNanos[i] + 500000L) / 1000000L;
+				}
+				mPendingSectorCounts[lane] = sectors;
+			}
+			requestUiUpdate();
+		}
+	};
+
+	/**
+	 * The sectors of a lap, each named after the gate it ends at when that gate is in the frame.
+	 */
+	private String formatSectors(long[] sectorMillis, int sectors) {
+		StringBuilder s = new StringBuilder();
+		for (int i = 0; i < sectors; i++) {
+			if (i > 0) {
+				s.append(" | ");
+			}
+			int end = (i + 1) % sectors;
+			if (end < gateLayout.getGateCount()) {
+				s.append(gateLayout.getName(end)).append(' ');
+			}
+			TimeFormat.append(sectorMillis[i], timePrecision, s);
+		}
+		return s.toString();
+	}
+
+	/**
+	 * Edits the names and positions of the gate lines in the frame; a new layout needs a new calibration.
+	 */
+	private void showGatesDialog() {
+		final EditText input = new EditText(this);
+		input.setSingleLine(true);
+		input.setHint(R.string.gates_hint);
+		input.setText(gateLayout.toString());
+		new AlertDialog.Builder(this)
+		.setTitle(getString(R.string.menu_gates_label))
+		.setView(input)
+		.setNegativeButton(android.R.string.cancel, null)
+		.setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+			@Override
+			public void onClick(DialogInterface dialog, int which) {
+				GateLayout layout;
+				try {
+					layout = GateLayout.parse(input.getText().toString());
+				}
+				catch (IllegalArgumentException e) {
+					Toast.makeText(TimerActivity.this, getString(R.string.gates_invalid), Toast.LENGTH_LONG).show();
+					return;
+				}
+				gateLayout = layout;
+				DefaultPreferences.put(TimerActivity.this, "gates", layout.toString());
+				startLink();
+				changeLanes(lanes.getLaneCount());
+			}
+		}).show();
+	}
+
+	/**
+	 * Dialog items: off, start/finish with 2 to {@link #LINK_MAX_GATES} sectors, then each sector gate. A
+	 * sector gate then asks the address of the master.
+	 */
+	private void showLinkDialog() {
+		int gate = DefaultPreferences.get(this, "link_gate", -1);
+		int checked = gate < 0 ? 0 : gate == 0 ? DefaultPreferences.get(this, "link_gates", 2) - 1 : LINK_MAX_GATES - 1 + gate;
+		new AlertDialog.Builder(this)
+		.setTitle(getString(R.string.menu_link_label))
+		.setSingleChoiceItems(getResources().getStringArray(R.array.link_roles), checked, new DialogInterface.OnClickListener() {
+			@Override
+			public void onClick(DialogInterface dialog, int which) {
+				dialog.dismiss();
+				if (which == 0) {
+					DefaultPreferences.put(TimerActivity.this, "link_gate", -1);
+					startLink();
+				}
+				else if (which < LINK_MAX_GATES) {
+					DefaultPreferences.put(TimerActivity.this, "link_gate", 0);
+					DefaultPreferences.put(TimerActivity.this, "link_gates", which + 1);
+					startLink();
+				}
+				else {
+					showLinkMasterDialog(which - LINK_MAX_GATES + 1);
+				}
+			}
+		}).show();
+	}
+
+	private void showLinkMasterDialog(final int gate) {
+		final EditText input = new EditText(this);
+		input.setSingleLine(true);
+		input.setHint(R.string.link_master_hint);
+		input.setText(DefaultPreferences.get(this, "link_master", ""));
+		new AlertDialog.Builder(this)
+		.setTitle(getString(R.string.link_master_label))
+		.setView(input)
+		.setNegativeButton(android.R.string.cancel, null)
+		.setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+			@Override
+			public void onClick(DialogInterface dialog, int which) {
+				DefaultPreferences.put(TimerActivity.this, "link_master", input.getText().toString().trim());
+				DefaultPreferences.put(TimerActivity.this, "link_gate", gate);
+				startLink();
+			}
+		}).show();
+	}
+
+	/**
+	 * One line on the link to the other phones, if any.
+	 */
+	private void appendLinkStatus(StringBuilder s) {
+		GateMaster master = mGateMaster;
+		GateLink link = mGateLink;
+		if (master != null) {
+			s.append("link: start/finish, ").append(master.getSequencer().getGateCount()).append(" gates, ").append(master.getGateCount())
+					.append(" heard, late crossings: ").append(master.getLateCrossings());
+			if (master.getError() != null) {
+				s.append(", ").append(master.getError().getMessage());
+			}
+			s.append('\n');
+		}
+		else if (link != null) {
+			ClockSync sync = link.getClockSync();
+			s.append("link: gate ").append(link.getGate()).append(", master ").append(link.getMaster() != null ? link.getMaster().toString() : "not found");
+			if (sync.isSynced()) {
+				s.append(String.format(", offset %.3f ms, round trip %.3f ms, drift %.1f ppm", sync.getOffsetNanos(System.nanoTime()) / 1e6,
+						sync.getRoundTripNanos() / 1e6, sync.getDrift() * 1e6));
+			}
+			if (link.getError() != null) {
+				s.append(", ").append(link.getError().getMessage());
+			}
+			s.append('\n');
+		}
+	}
+
+	private void showPrecisionDialog() {
+		String[] items = new String[TimeFormat.MILLIS];
+		for (int i = 0; i < items.length; i++) {
+			items[i] = TimeFormat.toString(0, i + 1);
+		}
+		new AlertDialog.Builder(this)
+		.setTitle(getString(R.string.menu_precision_label))
+		.setSingleChoiceItems(items, timePrecision - 1, new DialogInterface.OnClickListener() {
+			@Override
+			public void onClick(DialogInterface dialog, int which) {
+				dialog.dismiss();
+				if (which + 1 != timePrecision) {
+					timePrecision = which + 1;
+					DefaultPreferences.put(TimerActivity.this, "time_precision", timePrecision);
+					refreshLaps();
+				}
+			}
+		}).show();
+	}
+
+	/**
+	 * Asks the file format, then exports the laps on screen, or all the saved sessions.
+	 */
+	private void showExportDialog(final boolean history) {
+		if (mExportTask != null) {
+			Toast.makeText(this, getString(R.string.error_export_running), Toast.LENGTH_SHORT).show();
+			return;
+		}
+		new AlertDialog.Builder(this)
+		.setTitle(getString(history ? R.string.menu_export_history_label : R.string.menu_csv_label))
+		.setItems(getResources().getStringArray(R.array.export_formats), new DialogInterface.OnClickListener() {
+			@Override
+			public void onClick(DialogInterface dialog, int which) {
+				startExport(which, history);
+			}
+		}).show();
+	}
+
+	private void startExport(int format, boolean history) {
+
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss");
+		final String filename = "/Mini4WD/" + (history ? "history-" : "times-") + dateFormat.format(new Date()) + ExportWriter.getExtension(format);
+		File file = new File(Environment.getExternalStorageDirectory(), filename);
+
+		ExportTask.Source source = history ? mSessions.getDatabase().getExportSource() : ExportTask.snapshot(laps, getCarNames(), mSessionStarted);
+
+		mExportTask = new ExportTask(source, format, timePrecision, history, laps.size() > 1, file, mHandler, new ExportTask.Listener() {
+
+			@Override
+			public void onExportProgress(int done, int total) {
+				if (mExportDialog != null) {
+					mExportDialog.setIndeterminate(false);
+					mExportDialog.setMax(total);
+					mExportDialog.setProgress(done);
+				}
+			}
+
+			@Override
+			public void onExportFinished(File file) {
+				if (mExportTask == null) {
+					// the activity is gone
+					return;
+				}
+				endExport();
+				Toast.makeText(getBaseContext(), getString(R.string.menu_csv_ok) + filename, Toast.LENGTH_LONG).show();
+			}
+
+			@Override
+			public void onExportFailed(IOException e) {
+				if (mExportTask == null) {
+					// the activity is gone
+					return;
+				}
+				endExport();
+				Toast.makeText(getBaseContext(), getString(R.string.menu_csv_ko) + e.getLocalizedMessage(), Toast.LENGTH_SHORT).show();
+			}
+
+			@Override
+			public void onExportCancelled() {
+				if (mExportTask == null) {
+					// the activity is gone
+					return;
+				}
+				endExport();
+				Toast.makeText(getBaseContext(), getString(R.string.export_cancelled), Toast.LENGTH_SHORT).show();
+			}
+		});
+
+		mExportDialog = new ProgressDialog(this);
+		mExportDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+		mExportDialog.setIndeterminate(true);
+		mExportDialog.setMessage(getString(R.string.export_progress));
+		mExportDialog.setCancelable(true);
+		mExportDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+			@Override
+			public void onCancel(DialogInterface dialog) {
+				if (mExportTask != null) {
+					mExportTask.cancel();
+				}
+			}
+		});
+		mExportDialog.show();
+
+		mExportExecutor.execute(mExportTask);
+	}
+
+	@Override
+	protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+		if (requestCode == REQUEST_IMPORT && resultCode == RESULT_OK && data != null && data.getData() != null) {
+			importArchive(data.getData());
+		}
+	}
+
+	/**
+	 * Merges the sessions of an archive into the database, in the background.
+	 */
+	private void importArchive(final Uri uri) {
+		Toast.makeText(this, getString(R.string.import_started), Toast.LENGTH_SHORT).show();
+		final ContentResolver resolver = getContentResolver();
+		mExportExecutor.execute(new Runnable() {
+			public void run() {
+				SessionDatabase.Importer importer = mSessions.getDatabase().getImporter();
+				String message;
+				try {
+					InputStream in = resolver.openInputStream(uri);
+					try {
+						LapArchive.read(in, importer);
+					}
+					finally {
+						in.close();
+					}
+					SessionDatabase.ImportResult result = importer.getResult();
+					message = getString(R.string.import_done, result.sessions, result.laps, result.duplicates);
+				}
+				catch (IOException e) {
+					importer.abort();
+					message = getString(R.string.menu_csv_ko) + e.getLocalizedMessage();
+				}
+				catch (RuntimeException e) {
+					// a database error, the sessions imported before it are kept
+					importer.abort();
+					message = getString(R.string.menu_csv_ko) + e.getLocalizedMessage();
+				}
+
+				final String text = message;
+				mHandler.post(new Runnable() {
+					public void run() {
+						Toast.makeText(getBaseContext(), text, Toast.LENGTH_LONG).show();
+					}
+				});
+			}
+		});
+	}
+
+	private void endExport() {
+		mExportTask = null;
+		if (mExportDialog != null) {
+			mExportDialog.dismiss();
+			mExportDialog = null;
+		}
+	}
+
+	/**
+	 * Starts telling the cars apart by color if chosen in the menu, with the colors learned before.
+	 */
+	private void startCarId() {
+		if (!useCarId) {
+			mCarClassifier = null;
+			return;
+		}
+		GateRegion gate = lanes.getDetector(0).getRegion();
+		CarClassifier classifier = new CarClassifier(gateLayout.getPosition(0) / 100f, gate.getTop(), gate.getBottom());
+		for (int car = 0; car < CarClassifier.MAX_CARS; car++) {
+			String signature = DefaultPreferences.get(this, "car_color_" + (car + 1), "");
+			if (signature.length() > 0) {
+				try {
+					classifier.setSignature(car, CarClassifier.parse(signature));
+				}
+				catch (IllegalArgumentException e) {
+					Log.w("Mini4WD Lap Timer", "Invalid color of car " + (car + 1) + ": " + signature);
+				}
+			}
+		}
+		classifier.setListener(mCarListener);
+		mCarClassifier = classifier;
+	}
+
+	/**
+	 * Name of a car for the status line: the one given in the menu, or its number.
+	 */
+	private String getCarName(int car) {
+		String name = DefaultPreferences.get(this, "car_" + (car + 1), "");
+		return name.length() > 0 ? name : String.valueOf(car + 1);
+	}
+
+	/**
+	 * Dialog items: off, on, then learn the color of each car. Learning takes the next car that passes the
+	 * gate.
+	 */
+	private void showCarIdDialog() {
+		String[] items = new String[CarClassifier.MAX_CARS + 2];
+		items[0] = getString(R.string.car_id_off);
+		items[1] = getString(R.string.car_id_on);
+		for (int car = 0; car < CarClassifier.MAX_CARS; car++) {
+			items[car + 2] = getString(R.string.car_id_learn, getCarName(car));
+		}
+		new AlertDialog.Builder(this)
+		.setTitle(getString(R.string.menu_car_id_label))
+		.setSingleChoiceItems(items, useCarId ? 1 : 0, new DialogInterface.OnClickListener() {
+			@Override
+			public void onClick(DialogInterface dialog, int which) {
+				dialog.dismiss();
+				boolean carId = which > 0;
+				if (carId != useCarId) {
+					useCarId = carId;
+					DefaultPreferences.put(TimerActivity.this, "car_id", useCarId);
+					// one lane for all the cars, and the chroma of the camera1 frames
+					changeLanes(DefaultPreferences.get(TimerActivity.this, "lanes", 1));
+					reopenCamera();
+				}
+				if (which >= 2) {
+					mCarClassifier.learn(which - 2);
+					statusLabel.setText(getString(R.string.label_status_car_learning, getCarName(which - 2)));
+				}
+			}
+		}).show();
+	}
+
+	/**
+	 * Car name of each lane, empty if not set.
+	 */
+	private String[] getCarNames() {
+		String[] cars = new String[getLapListCount()];
+		for (int i = 0; i < cars.length; i++) {
+			cars[i] = DefaultPreferences.get(this, "car_" + (i + 1), "");
+		}
+		return cars;
+	}
+
+	/**
+	 * Asks the name of the car in the selected lane, used from the next start.
+	 */
+	private void showCarDialog() {
+		final String key = "car_" + (selectedLane + 1);
+		final EditText input = new EditText(this);
+		input.setSingleLine(true);
+		input.setText(DefaultPreferences.get(this, key, ""));
+		new AlertDialog.Builder(this)
+		.setTitle(getString(R.string.menu_car_label))
+		.setView(input)
+		.setNegativeButton(android.R.string.cancel, null)
+		.setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+			@Override
+			public void onClick(DialogInterface dialog, int which) {
+				DefaultPreferences.put(TimerActivity.this, key, input.getText().toString().trim());
+			}
+		}).show();
+	}
+
+	/**
+	 * Loads the personal bests, the history of the car in the selected lane and the last days from the
+	 * database, then shows them.
+	 */
+	private void showHistory() {
+		final String car = DefaultPreferences.get(this, "car_" + (selectedLane + 1), "");
+		final int precision = timePrecision;
+		mSessions.post(new Runnable() {
+			public void run() {
+				SessionDatabase database = mSessions.getDatabase();
+				final StringBuilder s = new StringBuilder();
+				SimpleDateFormat dayFormat = new SimpleDateFormat("yyyy-MM-dd");
+				SimpleDateFormat sessionFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+
+				for (SessionDatabase.Summary best : database.getPersonalBests()) {
+					appendSummary(s, best.name, best, precision);
+				}
+				if (s.length() > 0) {
+					s.insert(0, getString(R.string.history_bests) + "\n");
+				}
+
+				if (car.length() > 0) {
+					List<SessionDatabase.Summary> sessions = database.getCarHistory(car, 10);
+					if (!sessions.isEmpty()) {
+						s.append("\n").append(getString(R.string.history_car, car)).append("\n");
+						for (SessionDatabase.Summary session : sessions) {
+							appendSummary(s, sessionFormat.format(new Date(session.time)), session, precision);
+						}
+					}
+				}
+
+				List<SessionDatabase.Summary> days = database.getDaySummaries(7);
+				if (!days.isEmpty()) {
+					s.append("\n").append(getString(R.string.history_days)).append("\n");
+					for (SessionDatabase.Summary day : days) {
+						appendSummary(s, dayFormat.format(new Date(day.time)), day, precision);
+					}
+				}
+
+				mHandler.post(new Runnable() {
+					public void run() {
+						new AlertDialog.Builder(TimerActivity.this)
+						.setTitle(getString(R.string.menu_history_label))
+						.setMessage(s.length() > 0 ? s.toString().trim() : getString(R.string.history_empty))
+						.setNeutralButton(android.R.string.ok, null)
+						.show();
+					}
+				});
+			}
+		});
+	}
 
-		statusLabel.setText(getString(R.string.label_status_init));
-		startButton.setEnabled(false);
+	private void appendSummary(StringBuilder s, String name, SessionDatabase.Summary summary, int precision) {
+		s.append(name).append(": ");
+		TimeFormat.append(summary.best, precision, s);
+		s.append(" (").append(getString(R.string.history_laps, summary.laps));
+		if (summary.mean > 0) {
+			s.append(", ").append(getString(R.string.history_mean)).append(" ");
+			TimeFormat.append(summary.mean, precision, s);
+		}
+		s.append(")\n");
+	}
 
-		soundPool = new SoundPool(10, AudioManager.STREAM_NOTIFICATION, 0);
-		lapSound = soundPool.load(this, R.raw.lap, 1);
-		
-		fps = new FPSCounter();
+	/**
+	 * Empties the lap lists, one per lane.
+	 */
+	private void resetLaps() {
+		int count = getLapListCount();
+		for (int i = 0; i < count; i++) {
+			if (i < laps.size()) {
+				laps.get(i).clear();
+				stats.get(i).clear();
+			}
+			else {
+				laps.add(new LapStore());
+				stats.add(new LapStatistics());
+			}
+		}
+		while (laps.size() > count) {
+			laps.remove(laps.size() - 1);
+			stats.remove(stats.size() - 1);
+		}
+		synchronized (mPendingLaps) {
+			for (LapStore pending : mPendingLaps) {
+				pending.clear();
+			}
+			mLapFilter.reset();
+			Arrays.fill(mPendingSectorCounts, 0);
+		}
+		GateMaster master = mGateMaster;
+		if (master != null) {
+			master.reset();
+		}
+		mSectorResetPending = true;
+		mCarResetPending = true;
 	}
 
-	@Override
-	public void onStart() {
+	/**
+	 * Logs the false triggers that were still waiting for the next lap of their lane when the race was
+	 * stopped: there is no lap to merge them into.
+	 */
+	private void logDroppedTriggers() {
+		synchronized (mPendingLaps) {
+			for (int lane = 0; lane < laps.size(); lane++) {
+				int count = mLapFilter.getCarryCount(lane);
+				if (count > 0) {
+					Log.i("Mini4WD Lap Timer", "Lane " + (lane + 1) + ": " + count + " false triggers after the last lap, "
+							+ mLapFilter.getCarry(lane) + " ms, dropped at stop");
+				}
+			}
+		}
+	}
 
-		super.onStart();
+	private void addStatistics(int lane, LapStore newLaps) {
+		LapStatistics laneStats = stats.get(lane);
+		for (int i = 0; i < newLaps.size(); i++) {
+			laneStats.add(newLaps.get(i));
+		}
+	}
 
-		// show help
-		if (DefaultPreferences.get(this, "first_time", "1").equals("1")) {
-			showAlertBox();
-			DefaultPreferences.put(this, "first_time", "0");
+	/**
+	 * Shows the statistics of the selected lane, or nothing until it has 2 laps.
+	 */
+	private void showStatistics() {
+		LapStatistics laneStats = stats.get(selectedLane);
+		if (laneStats.getCount() < 2) {
+			statsLabel.setVisibility(View.GONE);
+			return;
 		}
+		int window = laneStats.getWindow();
+		String rolling = TimeFormat.toString(Math.round(laneStats.getRollingMean()), timePrecision);
+		String theoretical = TimeFormat.toString(laneStats.getTheoreticalBest(), timePrecision);
+		String text = getString(R.string.stats_summary,
+				TimeFormat.toString(Math.round(laneStats.getMean()), timePrecision),
+				TimeFormat.toString(Math.round(laneStats.getStandardDeviation()), timePrecision),
+				TimeFormat.toString(laneStats.getMedian(), timePrecision),
+				TimeFormat.toString(laneStats.getP90(), timePrecision))
+				+ "\n"
+				+ (laneStats.getCount() >= window
+						? getString(R.string.stats_rolling, window, rolling,
+								TimeFormat.toString(Math.round(laneStats.getBestRollingMean()), timePrecision), theoretical)
+						: getString(R.string.stats_recent, window, rolling, theoretical));
+		statsLabel.setText(text);
+		statsLabel.setVisibility(View.VISIBLE);
 	}
 
-	@Override
-	public void surfaceChanged(SurfaceHolder arg0, int arg1, int arg2, int arg3) {
+	private final Runnable mMetricsTask = new Runnable() {
+		public void run() {
+			StringBuilder s = new StringBuilder(256);
+			s.append("p50 / p99 / max ms\n");
+			mMetrics.appendSummary(s);
+			if (mGateMaster != null || mGateLink != null) {
+				s.append('\n');
+				appendLinkStatus(s);
+			}
+			metricsLabel.setText(s);
+			mHandler.postDelayed(this, 1000);
+		}
+	};
 
+	/**
+	 * Shows or hides the metrics overlay, refreshed once per second while shown.
+	 */
+	private void showMetrics(boolean show) {
+		mHandler.removeCallbacks(mMetricsTask);
+		metricsLabel.setVisibility(show ? View.VISIBLE : View.GONE);
+		if (show) {
+			mMetricsTask.run();
+		}
 	}
 
-	@Override
-	public void surfaceCreated(SurfaceHolder surface) {
+	/**
+	 * The pipeline metrics with the device and camera setup, as plain text for sharing.
+	 */
+	private String getMetricsReport() {
+		StringBuilder s = new StringBuilder();
+		s.append("Mini 4WD Android Lap Timer pipeline metrics\n\n");
+		s.append("device: ").append(Build.MANUFACTURER).append(' ').append(Build.MODEL).append(", Android ").append(Build.VERSION.SDK_INT).append('\n');
+		s.append("camera: ").append(mCamera2 != null ? "camera2" : "camera1").append(", ").append(cameraWidth).append('x').append(cameraHeight).append(", ");
+		s.append(fpsChars, 0, fps.format(fpsChars)).append(", lanes: ").append(lanes.getLaneCount()).append(", gates: ").append(lanes.getGateCount());
+		s.append(", buffers: ").append(frameBufferCount).append(bufferSetting == 0 ? " (auto)" : "").append("\n\n");
+		mMetrics.appendReport(s);
+		appendLinkStatus(s);
+		return s.toString();
+	}
 
-		synchronized (this) {
-			
-			try {
-				mCamera = Camera.open();
-			}
-			catch (RuntimeException e) {
-				// camera service already in use: die
-				new AlertDialog.Builder(this).setMessage(getString(R.string.error_camera_locked_text)).setTitle("Error").setCancelable(true).setIcon(android.R.drawable.ic_dialog_info).setNeutralButton(android.R.string.ok, new DialogInterface.OnClickListener() {
-					public void onClick(DialogInterface dialog, int whichButton) {
-						TimerActivity.this.finish();
-					}
-				}).show();
-				return;
+	private boolean hasLaps() {
+		for (LapStore laneLaps : laps) {
+			if (laneLaps.size() > 0) {
+				return true;
 			}
+		}
+		return false;
+	}
 
-			if (mCamera == null) {
-				// camera not found: die
-				new AlertDialog.Builder(this).setMessage(getString(R.string.error_camera_null_text)).setTitle("Error").setCancelable(true).setIcon(android.R.drawable.ic_dialog_info).setNeutralButton(android.R.string.ok, new DialogInterface.OnClickListener() {
-					public void onClick(DialogInterface dialog, int whichButton) {
-						TimerActivity.this.finish();
-					}
-				}).show();
-				return;
-			}
+	/**
+	 * Called from the camera thread; coalesces all pending UI changes into a single post to the UI thread.
+	 */
+	private void requestUiUpdate() {
+		if (mUiUpdatePending.compareAndSet(false, true)) {
+			mHandler.post(mUiUpdateTask);
+		}
+	}
 
-			Camera.Parameters parameters = mCamera.getParameters();
+	@Override
+	public void onPreviewFrame(byte[] yuv, Camera arg1) {
 
-			// find smallest camera preview size (it's good for fps)
-			Camera.Size smallestPreviewSize = getSmallestPreviewSize(parameters);
-			
-			cameraWidth = smallestPreviewSize.width;
-			cameraHeight = smallestPreviewSize.height;
-			parameters.setPreviewSize(cameraWidth, cameraHeight);
-			Log.d("Mini4WD Lap Timer", "Camera preview size: " + cameraWidth + "x" + cameraHeight);
+		// runs on the camera thread: UI changes are only recorded here, and applied by mUiUpdateTask
+		long now = System.nanoTime();
+		long frameNanos = useFrameClock ? frameClock.onFrame(now) : now;
+		boolean dropped = mMetrics.onFrame(now, frameNanos);
 
-			// create 3 framebuffers
-			int bytesPerPixel = ImageFormat.getBitsPerPixel(parameters.getPreviewFormat());
-			int bufferSize = (cameraWidth * cameraHeight * bytesPerPixel) >> 3;
-			
-			frameBuffer1 = new byte[bufferSize];
-			frameBuffer2 = new byte[bufferSize];
-			frameBuffer3 = new byte[bufferSize];
-
-			mCamera.addCallbackBuffer(frameBuffer1);
-			mCamera.addCallbackBuffer(frameBuffer2);
-			mCamera.addCallbackBuffer(frameBuffer3);
-
-			/* calculate pixel offsets from the top left corner.
-			 * the app takes 3 relevant pixels in the center of the camera, and checks for variation in only those 3 pixels.
-			 * the pixels are positioned in the middle line of the camera surface, at 10%, 50% and 90% of width.
-			 * (the camera is then rotated to portrait)
-			 * 
-			 *         CAMERA
-			 * +--------------------+
-			 * |         0          |
-			 * |                    |
-			 * |         1          |
-			 * |                    |
-			 * |         2          |
-			 * +--------------------+
-			 */
-			pixelOffset[0] = (int) (cameraWidth / 2) + (cameraWidth * (int) (cameraHeight * 0.1));
-			pixelOffset[1] = (int) (cameraWidth / 2) + (cameraWidth * (int) (cameraHeight * 0.5));
-			pixelOffset[2] = (int) (cameraWidth / 2) + (cameraWidth * (int) (cameraHeight * 0.9));
-
-			// init camera preview
-			mCamera.setParameters(parameters);
-			mCamera.setDisplayOrientation(90);
+		// the luma plane comes first in the NV21 buffer
+		boolean frameCaught = lanes.process(yuv, cameraWidth, cameraHeight, frameNanos);
+		CarClassifier classifier = mCarClassifier;
+		if (classifier != null) {
+			classifier.process(yuv, cameraWidth, cameraHeight, lanes.getDetector(0).isCaught());
+		}
+		mMetrics.record(PipelineMetrics.DETECTION, System.nanoTime() - now);
 
-			try {
-				mCamera.setPreviewDisplay(surface);
-				mCamera.setPreviewCallbackWithBuffer(this);
-				mCamera.startPreview();
-			}
-			catch (IOException e) {
-				// startPreview failed: die
-				new AlertDialog.Builder(this).setMessage(getString(R.string.error_camera_null_text)).setTitle("Error").setCancelable(true).setIcon(android.R.drawable.ic_dialog_info).setNeutralButton(android.R.string.ok, new DialogInterface.OnClickListener() {
-					public void onClick(DialogInterface dialog, int whichButton) {
-						TimerActivity.this.finish();
-					}
-				}).show();
-				return;
+		FrameRecorder recorder = mRecorder;
+		if (recorder != null) {
+			recorder.record(yuv, cameraWidth, cameraHeight, frameNanos);
+		}
+
+		mCamera.addCallbackBuffer(yuv);
+		mMetrics.record(PipelineMetrics.BUFFER, System.nanoTime() - now);
+
+		if (dropped && bufferSetting == 0) {
+			// the camera may have run out of buffers: give it as many as the longest hold so far needs
+			long heldNanos = mMetrics.getHistogram(PipelineMetrics.BUFFER).getMaxMicros() * 1000L;
+			int needed = CaptureProfile.chooseBufferCount(heldNanos, frameIntervalNanos);
+			while (frameBufferCount < needed) {
+				addFrameBuffer();
 			}
 		}
+
+		onFrameProcessed(frameCaught);
 	}
 
 	@Override
-	public void surfaceDestroyed(SurfaceHolder arg0) {
-
-		synchronized (this) {
-			try {
-				if (mCamera != null) {
-					mCamera.setPreviewCallback(null);
-					mCamera.stopPreview();
+	public void onCameraOpened(final int width, final int height, int minFps, int targetFps) {
+
+		// runs on the camera thread
+		cameraWidth = width;
+		cameraHeight = height;
+		frameIntervalNanos = 1000000000L / (targetFps > 0 ? targetFps : 30);
+		fps.setTargetFps(targetFps);
+		mMetrics.setFpsRange(minFps, targetFps);
+		mMetrics.reset();
+
+		// the preview surface must have the output size before the session is created
+		runOnUiThread(new Runnable() {
+			public void run() {
+				mSurfaceHolder.setFixedSize(width, height);
+				if (mSurfaceWidth == width && mSurfaceHeight == height) {
+					startCamera2Session();
+				}
+				else {
+					mCamera2SessionPending = true;
 				}
 			}
-			catch (Exception e) {
-				Log.e("Camera", e.getMessage());
-			}
-			finally {
-				if (mCamera != null) {
-					mCamera.release();
+		});
+	}
+
+	private void startCamera2Session() {
+
+		mCamera2SessionPending = false;
+		final Surface surface = mSurfaceHolder.getSurface();
+		mCameraHandler.post(new Runnable() {
+			public void run() {
+				if (mCamera2 != null) {
+					mCamera2.startSession(surface);
+					// the gate may already be calibrated, if the camera was reopened
+					setCameraLocks(lanes.isCalibrated());
 				}
 			}
+		});
+	}
+
+	@Override
+	public void onFrame(ByteBuffer luma, int width, int height, int rowStride, long timestampNanos) {
+
+		// runs on the camera thread, with the sensor timestamp: no need for the frame clock
+		long now = System.nanoTime();
+		mMetrics.onFrame(now, timestampNanos);
+		boolean frameCaught = lanes.process(luma, width, height, rowStride, timestampNanos);
+		mMetrics.record(PipelineMetrics.DETECTION, System.nanoTime() - now);
+
+		FrameRecorder recorder = mRecorder;
+		if (recorder != null) {
+			recorder.record(luma, width, height, rowStride, timestampNanos);
 		}
+		onFrameProcessed(frameCaught);
+
+		// the image is closed as soon as this returns
+		mMetrics.record(PipelineMetrics.BUFFER, System.nanoTime() - now);
 	}
 
 	@Override
-	public void onPreviewFrame(byte[] yuv, Camera arg1) {
+	public void onCameraError(int messageId) {
+		showCameraError(messageId);
+	}
 
-		// a frame has arrived from the camera: get the lightness value of the 3 relevant pixels
-		int value0 = (int) yuv[pixelOffset[0]] & 0xFF;
-		int value1 = (int) yuv[pixelOffset[1]] & 0xFF;
-		int value2 = (int) yuv[pixelOffset[2]] & 0xFF;
+	/**
+	 * Records the UI changes after a frame has been processed. Runs on the camera thread.
+	 */
+	private void onFrameProcessed(boolean frameCaught) {
+
+		boolean uiChanged = false;
+
+		if (frameCaught != mFrameCaught) {
+			mFrameCaught = frameCaught;
+			uiChanged = true;
+		}
 		
-		cameraBar.setBackgroundColor(getResources().getColor(R.color.bar_red));
+		// show FPS
+		if (fps.update()) {
+			mFpsChanged = true;
+			uiChanged = true;
+		}
 
-		// calibrating...
-		if (isCalibrating) {
-			
-			frame++;
+		if (uiChanged) {
+			requestUiUpdate();
+		}
+	}
 
-			calibrateRange[0][frame - 1] = value0;
-			calibrateRange[1][frame - 1] = value1;
-			calibrateRange[2][frame - 1] = value2;
+	@Override
+	public void onCalibrated(LapDetector detector) {
+		if (!lanes.isCalibrated()) {
+			// wait for the other lanes
+			return;
+		}
+		// keep the camera from changing the lightness of the calibrated track
+		setCameraLocks(true);
 
-			if (frame >= 20) {
-				// got values from 20 frames, finish calibration
-				isCalibrating = false;
-				isCalibrated = true;
-				startButton.setEnabled(true);
-				calibrateButton.setEnabled(true);
-				statusLabel.setText(getString(R.string.label_status_calibrated));
+		mPendingCalibrated = true;
+		mPendingStatus = R.string.label_status_calibrated;
+		requestUiUpdate();
+	}
 
-				// calculate average from the 20 values
-				int tot0 = 0, tot1 = 0, tot2 = 0;
-				for (int i = 0; i < 20; i++) {
-					tot0 += calibrateRange[0][i];
-					tot1 += calibrateRange[1][i];
-					tot2 += calibrateRange[2][i];
-				}
+	@Override
+	public void onBackgroundReset(LapDetector detector) {
+		mPendingStatus = R.string.label_status_background_reset;
+		requestUiUpdate();
+	}
 
-				calibrateValue[0] = tot0 / 20;
-				calibrateValue[1] = tot1 / 20;
-				calibrateValue[2] = tot2 / 20;
-			}
+	@Override
+	public void onGateBlocked(LapDetector detector) {
+		mPendingStatus = R.string.label_status_gate_blocked;
+		requestUiUpdate();
+	}
+
+	@Override
+	public void onTimerStarted(LapDetector detector, long crossingNanos) {
+		linkCrossing(detector.getLane(), detector.getGate(), crossingNanos);
+		if (detector.getGate() > 0) {
+			// a sector gate: only the start/finish line starts the clock
+			return;
+		}
+		if (mStartTime == 0L) {
+			// first car on any lane: start the clock
+			mStartTime = crossingNanos;
+			mPendingTimerStart = true;
+			mPendingStatus = R.string.label_status_started;
+		}
+		if (mCarClassifier != null) {
+			// the car is known once it has left the gate, see mCarListener
+			mCarCrossingNanos = crossingNanos;
+		}
+		else {
+			soundPool.play(lapSound, 1f, 1f, 1, 0, 1f);
 		}
+		requestUiUpdate();
+	}
 
-		// calibrated, listening for lightness variations
-		else if (isCalibrated) {
-			
-			boolean frameCaught = (value0 < calibrateValue[0] - calibrateThreshold
-					|| value0 > calibrateValue[0] + calibrateThreshold
-					|| value1 < calibrateValue[1] - calibrateThreshold
-					|| value1 > calibrateValue[1] + calibrateThreshold
-					|| value2 < calibrateValue[2] - calibrateThreshold
-					|| value2 > calibrateValue[2] + calibrateThreshold);
-			
-			if (frameCaught) {
-				subsequentFramesCaught++;
-				cameraBar.setBackgroundColor(getResources().getColor(R.color.bar_green));
+	@Override
+	public void onLap(LapDetector detector, long lapNanos, long crossingNanos) {
+		if (detector.getGate() > 0) {
+			// a sector gate: the lap is timed at the start/finish line
+			linkCrossing(detector.getLane(), detector.getGate(), crossingNanos);
+			return;
+		}
+		if (mCarClassifier != null) {
+			// the lap is timed from the previous crossing of the same car, once it has left the gate
+			linkCrossing(detector.getLane(), 0, crossingNanos);
+			mCarCrossingNanos = crossingNanos;
+			return;
+		}
+		if (addLap(detector.getLane(), lapNanos, crossingNanos)) {
+			linkCrossing(detector.getLane(), 0, crossingNanos);
+		}
+	}
+
+	/**
+	 * Hands a lap to the UI thread, through the false lap filter. Camera thread.
+	 *
+	 * @param lane the lane, or the car when they are told apart by color
+	 * @return false if the filter rejected the lap
+	 */
+	private boolean addLap(int lane, long lapNanos, long crossingNanos) {
+		// wall clock time of the crossing
+		long timestampMillis = System.currentTimeMillis() - (System.nanoTime() - crossingNanos) / 1000000L;
+		mLastCrossingNanos = crossingNanos;
+		// frames dropped during the lap: the car may have crossed unseen, or been seen late
+		int flags = mMetrics.getGaps().overlaps(crossingNanos - lapNanos, crossingNanos) ? LapStore.FLAG_POSSIBLY_MISSED : 0;
+		int result;
+		synchronized (mPendingLaps) {
+			result = mLapFilter.process(lane, (lapNanos + 500000L) / 1000000L, timestampMillis, flags, mPendingLaps[lane]);
+		}
+		if (result == LapFilter.REJECTED) {
+			// no beep for a false trigger
+			mPendingStatus = R.string.label_status_lap_rejected;
+		}
+		else {
+			if (result == LapFilter.SPLIT) {
+				mPendingStatus = R.string.label_status_lap_split;
 			}
-			else {
-				subsequentFramesCaught = 0;
+			else if (flags != 0) {
+				mPendingStatus = R.string.label_status_lap_possibly_missed;
 			}
+			soundPool.play(lapSound, 1f, 1f, 1, 0, 1f);
+		}
+		requestUiUpdate();
+		return result != LapFilter.REJECTED;
+	}
 
-			// check if car has passed
-			if (isStarted && frameCaught) {
-
-				// caught lap: calculate time
-				long catchTime = SystemClock.uptimeMillis();
-				long lapTime = catchTime - mLastCatchTime;
-				
-				// ignore lap if previous frame was caught, and time is below threshold
-				if (subsequentFramesCaught == 1 && lapTime >= DEFAULT_CATCH_DELAY) {
-					if (isTimerRunning) {
-						// car has passed: start a new lap
-						laps.add(lapTime);
-						refreshLaps();
-						mLastCatchTime = catchTime;
-					}
-					else {
-						// car has passed for the first time: start timer
-						isTimerRunning = true;
-						mStartTime = SystemClock.uptimeMillis();
-						mLastCatchTime = mStartTime;
-						mHandler.removeCallbacks(mUpdateTimeTask);
-						mHandler.postDelayed(mUpdateTimeTask, 50);
-						statusLabel.setText(getString(R.string.label_status_started));
-					}
-					
-					// play sound
-					soundPool.play(lapSound, 1f, 1f, 1, 0, 1f);
-				}
+	/**
+	 * Called on the camera thread when a car has left the gate. The pass follows the caught frames of the
+	 * start/finish detector, so a crossing it timed is always handed to the pass it started.
+	 */
+	private final CarClassifier.Listener mCarListener = new CarClassifier.Listener() {
+
+		@Override
+		public void onCarPassed(int car, float distance) {
+			long crossingNanos = mCarCrossingNanos;
+			mCarCrossingNanos = 0;
+			if (mCarResetPending) {
+				mCarResetPending = false;
+				Arrays.fill(mCarLastCrossing, 0);
 			}
-			
-			if (subsequentFramesCaught > CALIBRATION_ERROR_FRAMES) {
-				statusLabel.setText(getString(R.string.label_status_calibration_error));
+			if (crossingNanos == 0) {
+				// not a crossing for the detector, e.g. a bounce within the catch delay
+				return;
+			}
+			if (car < 0) {
+				mPendingStatus = R.string.label_status_car_unknown;
+				requestUiUpdate();
+				return;
+			}
+			long last = mCarLastCrossing[car];
+			mCarLastCrossing[car] = crossingNanos;
+			if (last == 0) {
+				// first crossing of this car
+				soundPool.play(lapSound, 1f, 1f, 1, 0, 1f);
+				return;
 			}
+			addLap(car, crossingNanos - last, crossingNanos);
 		}
 
-		mCamera.addCallbackBuffer(yuv);
-		
-		// show FPS
-		fps.update();
-		fpsLabel.setText(fps.printFrames());
+		@Override
+		public void onCarLearned(final int car, float[] signature) {
+			final String text = CarClassifier.format(signature);
+			mCarCrossingNanos = 0;
+			mHandler.post(new Runnable() {
+				public void run() {
+					DefaultPreferences.put(TimerActivity.this, "car_color_" + (car + 1), text);
+					statusLabel.setText(getString(R.string.label_status_car_learned, getCarName(car)));
+				}
+			});
+		}
+	};
+
+	/**
+	 * Hands a crossing of this phone to the master, or sends it to the master phone, or merges it with
+	 * the other gates in the frame. A sector gate phone only sends its start/finish line. Camera thread.
+	 */
+	private void linkCrossing(int lane, int gate, long crossingNanos) {
+		GateMaster master = mGateMaster;
+		if (master != null) {
+			master.addCrossing(lane, gate, crossingNanos);
+		}
+		GateLink link = mGateLink;
+		if (link != null && gate == 0) {
+			link.sendCrossing(lane, crossingNanos);
+		}
+		SectorSequencer sequencer = mSectorSequencer;
+		if (sequencer != null) {
+			if (mSectorResetPending) {
+				mSectorResetPending = false;
+				sequencer.reset();
+			}
+			sequencer.crossing(lane, gate, crossingNanos);
+		}
 	}
 
 	@Override
@@ -389,40 +1838,43 @@ public class TimerActivity extends Activity implements SurfaceHolder.Callback, C
 			
 			case R.id.button_start: {
 				
-				if (!isCalibrated || isCalibrating) {
+				if (!lanes.isCalibrated() || lanes.isCalibrating()) {
 					// not calibrated
 					break;
 				}
 
-				if (isStarted) {
+				if (lanes.isStarted()) {
 					// clicked on start while timer was running: stop everything
 					startButton.setText(getString(R.string.label_start));
 					statusLabel.setText(getString(R.string.label_status_stopped));
 					calibrateButton.setEnabled(true);
-					isStarted = false;
-					isTimerRunning = false;
-					mHandler.removeCallbacks(mUpdateTimeTask);
+					lanes.stop();
+					logDroppedTriggers();
+					mSessions.endSession(System.currentTimeMillis());
+					mClock.stop();
 				}
 				else {
 					// clicked on start while timer was stopped: start everything
 					startButton.setText(getString(R.string.label_stop));
 					statusLabel.setText(getString(R.string.label_status_ready));
 					calibrateButton.setEnabled(false);
-					timerLabel.setText("0:00:0");
-					isStarted = true;
+					mClock.reset();
 					mStartTime = 0L;
 
 					// reset laps list
-					laps = new ArrayList<Long>();
+					resetLaps();
 
 					refreshLaps();
+					lanes.start();
+					mSessionStarted = System.currentTimeMillis();
+					mSessions.startSession(mSessionStarted, calibrateThreshold, getCarNames());
 				}
 
 				break;
 			}
 			case R.id.button_calibrate: {
 				
-				if (isTimerRunning) {
+				if (lanes.isTimerRunning()) {
 					// cannot calibrate while timer is running
 					break;
 				}
@@ -432,17 +1884,23 @@ public class TimerActivity extends Activity implements SurfaceHolder.Callback, C
 
 				// started calibration: need to reset some stuff
 				statusLabel.setText(getString(R.string.label_status_calibrating));
-				timerLabel.setText("0:00:0");
+				mClock.reset();
 
-				frame = 0;
 				mStartTime = 0L;
-				isStarted = false;
-				isTimerRunning = false;
-				isCalibrating = true;
-				isCalibrated = false;
+
+				// let the camera adapt to the light again, then calibrate
+				if (mCameraHandler != null) {
+					mCameraHandler.post(new Runnable() {
+						public void run() {
+							setCameraLocks(false);
+						}
+					});
+				}
+				lanes.calibrate();
+				mSessions.endSession(System.currentTimeMillis());
 
 				// reset lap list
-				laps = new ArrayList<Long>();
+				resetLaps();
 
 				refreshLaps();
 
@@ -471,10 +1929,24 @@ public class TimerActivity extends Activity implements SurfaceHolder.Callback, C
 		return supportedPreviewSizes.get(index);
 	}
 
+	/**
+	 * Shows the laps of the selected lane. Only needed when the lap store or the format change: new laps
+	 * are shown by notifying the adapter.
+	 */
 	private void refreshLaps() {
-		lapListAdapter = new LapListAdapter(this, laps);
+		lapListAdapter = new LapListAdapter(this, laps.get(selectedLane), timePrecision);
 		lapList.setAdapter(lapListAdapter);
-		lapListAdapter.notifyDataSetChanged();
+		showStatistics();
+	}
+
+	@Override
+	public void onCheckedChanged(RadioGroup group, int checkedId) {
+		for (int i = 0; i < LANE_BUTTONS.length; i++) {
+			if (LANE_BUTTONS[i] == checkedId) {
+				selectedLane = i;
+			}
+		}
+		refreshLaps();
 	}
 
 	@Override
@@ -482,6 +1954,13 @@ public class TimerActivity extends Activity implements SurfaceHolder.Callback, C
 		super.onCreateOptionsMenu(menu);
 		MenuInflater inflater = getMenuInflater();
 		inflater.inflate(R.menu.menu, menu);
+		menu.findItem(R.id.menu_frame_timing).setChecked(useFrameClock);
+		menu.findItem(R.id.menu_line_scan).setChecked(useLineScan);
+		menu.findItem(R.id.menu_lap_filter).setChecked(mLapFilter.isEnabled());
+		menu.findItem(R.id.menu_metrics).setChecked(showMetrics);
+		menu.findItem(R.id.menu_high_fps).setChecked(useHighFps);
+		menu.findItem(R.id.menu_record).setChecked(mRecorder != null);
+		menu.findItem(R.id.menu_camera2).setChecked(useCamera2).setVisible(camera2Supported);
 		return true;
 	}
 
@@ -496,25 +1975,151 @@ public class TimerActivity extends Activity implements SurfaceHolder.Callback, C
 			case R.id.menu_sensitivity: {
 				startButton.setText(getString(R.string.label_start));
 				statusLabel.setText(getString(R.string.label_status_stopped));
-				isStarted = false;
-				isTimerRunning = false;
-				mHandler.removeCallbacks(mUpdateTimeTask);
+				lanes.stop();
+				mSessions.endSession(System.currentTimeMillis());
+				mClock.stop();
 
 				Intent i = new Intent(this, SensitivityDialogActivity.class);
 				startActivity(i);
 				return true;
 			}
+			case R.id.menu_frame_timing: {
+				useFrameClock = !item.isChecked();
+				item.setChecked(useFrameClock);
+				lanes.setInterpolate(useFrameClock);
+				DefaultPreferences.put(this, "frame_timing", useFrameClock);
+				return true;
+			}
+			case R.id.menu_lap_filter: {
+				boolean enabled = !item.isChecked();
+				item.setChecked(enabled);
+				mLapFilter.setEnabled(enabled);
+				DefaultPreferences.put(this, "lap_filter", enabled);
+				return true;
+			}
+			case R.id.menu_line_scan: {
+				if (lanes.isStarted()) {
+					Toast.makeText(this, getString(R.string.error_timer_started), Toast.LENGTH_SHORT).show();
+					return true;
+				}
+				useLineScan = !item.isChecked();
+				item.setChecked(useLineScan);
+				DefaultPreferences.put(this, "line_scan", useLineScan);
+
+				// the new gate needs a new calibration
+				changeLanes(lanes.getLaneCount());
+				return true;
+			}
+			case R.id.menu_high_fps: {
+				if (lanes.isStarted()) {
+					Toast.makeText(this, getString(R.string.error_timer_started), Toast.LENGTH_SHORT).show();
+					return true;
+				}
+				useHighFps = !item.isChecked();
+				item.setChecked(useHighFps);
+				DefaultPreferences.put(this, "high_fps", useHighFps);
+				reopenCamera();
+				return true;
+			}
+			case R.id.menu_camera2: {
+				if (lanes.isStarted()) {
+					Toast.makeText(this, getString(R.string.error_timer_started), Toast.LENGTH_SHORT).show();
+					return true;
+				}
+				useCamera2 = !item.isChecked();
+				item.setChecked(useCamera2);
+				DefaultPreferences.put(this, "camera2", useCamera2);
+				reopenCamera();
+				return true;
+			}
+			case R.id.menu_record: {
+				if (mRecorder != null) {
+					stopRecording();
+				}
+				else {
+					startRecording();
+				}
+				item.setChecked(mRecorder != null);
+				return true;
+			}
+			case R.id.menu_precision: {
+				showPrecisionDialog();
+				return true;
+			}
+			case R.id.menu_link: {
+				if (lanes.isStarted()) {
+					Toast.makeText(this, getString(R.string.error_timer_started), Toast.LENGTH_SHORT).show();
+					return true;
+				}
+				showLinkDialog();
+				return true;
+			}
+			case R.id.menu_buffers: {
+				if (lanes.isStarted()) {
+					Toast.makeText(this, getString(R.string.error_timer_started), Toast.LENGTH_SHORT).show();
+					return true;
+				}
+				showBufferDialog();
+				return true;
+			}
+			case R.id.menu_car: {
+				showCarDialog();
+				return true;
+			}
+			case R.id.menu_history: {
+				showHistory();
+				return true;
+			}
+			case R.id.menu_lanes: {
+				if (lanes.isStarted()) {
+					Toast.makeText(this, getString(R.string.error_timer_started), Toast.LENGTH_SHORT).show();
+					return true;
+				}
+				showLanesDialog();
+				return true;
+			}
+			case R.id.menu_car_id: {
+				if (lanes.isStarted()) {
+					Toast.makeText(this, getString(R.string.error_timer_started), Toast.LENGTH_SHORT).show();
+					return true;
+				}
+				showCarIdDialog();
+				return true;
+			}
+			case R.id.menu_gates: {
+				if (lanes.isStarted()) {
+					Toast.makeText(this, getString(R.string.error_timer_started), Toast.LENGTH_SHORT).show();
+					return true;
+				}
+				showGatesDialog();
+				return true;
+			}
+			case R.id.menu_metrics: {
+				showMetrics = !item.isChecked();
+				item.setChecked(showMetrics);
+				DefaultPreferences.put(this, "metrics_overlay", showMetrics);
+				showMetrics(showMetrics);
+				return true;
+			}
+			case R.id.menu_metrics_report: {
+				final Intent reportIntent = new Intent(android.content.Intent.ACTION_SEND);
+				reportIntent.setType("plain/text");
+				reportIntent.putExtra(android.content.Intent.EXTRA_SUBJECT, getString(R.string.menu_metrics_report_label));
+				reportIntent.putExtra(android.content.Intent.EXTRA_TEXT, getMetricsReport());
+				startActivity(Intent.createChooser(reportIntent, getString(R.string.menu_share_label)));
+				return true;
+			}
 			case R.id.menu_email: {
-				if (isStarted || isTimerRunning) {
+				if (lanes.isStarted()) {
 					Toast.makeText(this, getString(R.string.error_timer_started), Toast.LENGTH_SHORT).show();
 					return true;
 				}
-				if (laps == null || laps.size() == 0) {
+				if (!hasLaps()) {
 					Toast.makeText(this, getString(R.string.error_laps_empty), Toast.LENGTH_SHORT).show();
 					return true;
 				}
 
-				String emailBody = lapsToString();
+				String emailBody = LapExporter.lapsToString(laps, stats, timePrecision);
 
 				final Intent emailIntent = new Intent(android.content.Intent.ACTION_SEND);
 				emailIntent.setType("plain/text");
@@ -525,39 +2130,26 @@ public class TimerActivity extends Activity implements SurfaceHolder.Callback, C
 				return true;
 			}
 			case R.id.menu_csv: {
-				if (isStarted || isTimerRunning) {
+				if (lanes.isStarted()) {
 					Toast.makeText(this, getString(R.string.error_timer_started), Toast.LENGTH_SHORT).show();
 					return true;
 				}
-				if (laps == null || laps.size() == 0) {
+				if (!hasLaps()) {
 					Toast.makeText(this, getString(R.string.error_laps_empty), Toast.LENGTH_SHORT).show();
 					return true;
 				}
-
-				String csv = lapsToCSV();
-				
-				// save csv file in SD card
-				try {
-					File directory = new File(Environment.getExternalStorageDirectory(), "/Mini4WD/");
-					directory.mkdirs();
-					
-					SimpleDateFormat format = new SimpleDateFormat("yyyy-mm-dd-hh-mm-ss");
-					String filename = "/Mini4WD/times-" + format.format(new Date()) + ".csv";
-					File file = new File(Environment.getExternalStorageDirectory(), filename);
-					file.createNewFile();
-					
-					FileOutputStream fos = new FileOutputStream(file);
-					OutputStreamWriter writer = new OutputStreamWriter(fos);
-					writer.append(csv);
-					writer.close();
-					fos.close();
-					
-					Toast.makeText(getBaseContext(), getString(R.string.menu_csv_ok) + filename, Toast.LENGTH_LONG).show();
-				} 
-				catch (Exception e) {
-					Toast.makeText(this, getString(R.string.menu_csv_ko) + e.getLocalizedMessage(), Toast.LENGTH_SHORT).show();
-				}
-				
+				showExportDialog(false);
+				return true;
+			}
+			case R.id.menu_export_history: {
+				showExportDialog(true);
+				return true;
+			}
+			case R.id.menu_import_history: {
+				Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+				intent.setType("*/*");
+				intent.addCategory(Intent.CATEGORY_OPENABLE);
+				startActivityForResult(Intent.createChooser(intent, getString(R.string.menu_import_history_label)), REQUEST_IMPORT);
 				return true;
 			}
 		}
@@ -576,49 +2168,4 @@ public class TimerActivity extends Activity implements SurfaceHolder.Callback, C
 			}
 		}).show();
 	}
-
-	private String lapsToString() {
-
-		StringBuilder s = new StringBuilder();
-
-		s.append("Mini 4WD Android Lap Timer data");
-		s.append("\n\n");
-
-		long bestTime = Long.MAX_VALUE;
-		int bestIndex = 0;
-		
-		for (int i = 0; i < laps.size(); i++) {
-			long lap = laps.get(i);
-			
-			if (lap < bestTime) {
-				bestTime = lap;
-				bestIndex = i;
-			}
-		}
-		
-		for (int i = 0; i < laps.size(); i++) {
-			long lap = laps.get(i);
-			s.append("Lap ").append(i + 1).append(": ").append(Utils.convertTime(lap));
-			
-			if (i == bestIndex)
-				s.append(" (best)");
-			
-			s.append("\n");
-		}
-
-		return s.toString();
-	}
-	
-	private String lapsToCSV() {
-
-		StringBuilder s = new StringBuilder();
-		s.append("lap,time,milliseconds").append("\r\n");
-
-		for (int i = 0; i < laps.size(); i++) {
-			long lap = laps.get(i);
-			s.append(i + 1).append(",").append(Utils.convertTime(lap)).append(",").append(lap).append("\r\n");
-		}
-
-		return s.toString();
-	}
 }
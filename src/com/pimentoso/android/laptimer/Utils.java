@@ -2,27 +2,11 @@ package com.pimentoso.android.laptimer;
 
 public class Utils {
 	
-	private static StringBuilder sb = new StringBuilder();
-	
+	/**
+	 * Formats a time in tenths of second, e.g. "1:05:3". See {@link TimeFormat} for other precisions, and
+	 * for formatting without allocations.
+	 */
 	public static String convertTime(long millis) {
-
-		if (millis == 0) {
-			return "0:00:0";
-		}
-
-		sb.setLength(0);
-		int split = ((int) (millis / 100)) % 10;
-		int seconds = (int) (millis / 1000);
-		int minutes = seconds / 60;
-		seconds = seconds % 60;
-
-		if (seconds < 10) {
-			sb.append(minutes).append(":0").append(seconds).append(":").append(split);
-		}
-		else {
-			sb.append(minutes).append(":").append(seconds).append(":").append(split);
-		}
-		
-		return sb.toString();
+		return TimeFormat.toString(millis, TimeFormat.TENTHS);
 	}
 }